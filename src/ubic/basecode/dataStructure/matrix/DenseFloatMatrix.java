@@ -0,0 +1,235 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.dataStructure.matrix;
+
+import cern.colt.list.DoubleArrayList;
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+
+import java.util.List;
+
+/**
+ * A dense matrix of doubles with named rows and columns, storing its values as floats. It uses half the memory of a
+ * {@link DenseDoubleMatrix}, at the cost of keeping only about 7 significant digits, which is usually all that
+ * measurements such as expression levels carry.
+ * <p>
+ * Values are rounded to floats when set and read back as doubles, so computations on them are done in double
+ * precision. Matrices derived from this one (copies, ranges, subsets and transposes) also store floats. Rows and
+ * columns obtained with {@link #viewRow(int)} and {@link #viewColumn(int)} are views: setting their values modifies
+ * this matrix.
+ *
+ * @author poirigui
+ * @see DenseFloatMatrix2D
+ * @see DoubleMatrixFactory#densefloat(int, int)
+ */
+public class DenseFloatMatrix<R, C> extends DoubleMatrix<R, C> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DenseFloatMatrix2D matrix;
+
+    /**
+     * @param T values, rounded to floats
+     */
+    public DenseFloatMatrix( double[][] T ) {
+        super();
+        matrix = new DenseFloatMatrix2D( T );
+    }
+
+    public DenseFloatMatrix( float[][] T ) {
+        super();
+        matrix = new DenseFloatMatrix2D( T );
+    }
+
+    public DenseFloatMatrix( int rows, int cols ) {
+        super();
+        matrix = new DenseFloatMatrix2D( rows, cols );
+    }
+
+    /**
+     * @return a Colt view of this matrix, backed by the same floats
+     */
+    public DoubleMatrix2D asDoubleMatrix2D() {
+        return matrix.viewPart( 0, 0, matrix.rows(), matrix.columns() );
+    }
+
+    @Override
+    public double[][] asArray() {
+        return matrix.toArray();
+    }
+
+    @Override
+    public int columns() {
+        return matrix.columns();
+    }
+
+    @Override
+    public int rows() {
+        return matrix.rows();
+    }
+
+    @Override
+    public int size() {
+        return matrix.size();
+    }
+
+    @Override
+    public double get( int row, int column ) {
+        return matrix.getQuick( row, column );
+    }
+
+    @Override
+    public void set( int row, int column, Double value ) {
+        matrix.set( row, column, value );
+    }
+
+    @Override
+    public boolean isMissing( int i, int j ) {
+        return Double.isNaN( get( i, j ) );
+    }
+
+    @Override
+    public Double getObject( int row, int col ) {
+        return get( row, col );
+    }
+
+    @Override
+    public double[] getRow( int row ) {
+        return matrix.viewRow( row ).toArray();
+    }
+
+    @Override
+    public DoubleArrayList getRowArrayList( int i ) {
+        return new DoubleArrayList( getRow( i ) );
+    }
+
+    @Override
+    public Double[] getRowObj( int row ) {
+        Double[] result = new Double[columns()];
+        for ( int i = 0; i < columns(); i++ ) {
+            result[i] = get( row, i );
+        }
+        return result;
+    }
+
+    @Override
+    public double[] getColumn( int col ) {
+        return matrix.viewColumn( col ).toArray();
+    }
+
+    @Override
+    public Double[] getColObj( int col ) {
+        Double[] result = new Double[rows()];
+        for ( int i = 0; i < rows(); i++ ) {
+            result[i] = get( i, col );
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix1D viewRow( int row ) {
+        return matrix.viewRow( row );
+    }
+
+    @Override
+    public DoubleMatrix1D viewColumn( int column ) {
+        return matrix.viewColumn( column );
+    }
+
+    @Override
+    public DoubleMatrix<R, C> copy() {
+        DenseFloatMatrix<R, C> returnval = new DenseFloatMatrix<>( rows(), columns() );
+        returnval.matrix.assign( matrix );
+        if ( !getRowNames().isEmpty() ) {
+            returnval.setRowNames( getRowNames() );
+        }
+        if ( !getColNames().isEmpty() ) {
+            returnval.setColumnNames( getColNames() );
+        }
+        return returnval;
+    }
+
+    @Override
+    public DoubleMatrix<R, C> getColRange( int startCol, int endCol ) {
+        super.checkColRange( startCol, endCol );
+        DenseFloatMatrix<R, C> returnval = new DenseFloatMatrix<>( rows(), 1 + endCol - startCol );
+        returnval.matrix.assign( matrix.viewPart( 0, startCol, rows(), 1 + endCol - startCol ) );
+        if ( !getRowNames().isEmpty() ) {
+            returnval.setRowNames( getRowNames() );
+        }
+        if ( !getColNames().isEmpty() ) {
+            returnval.setColumnNames( getColNames().subList( startCol, endCol + 1 ) );
+        }
+        return returnval;
+    }
+
+    @Override
+    public DoubleMatrix<R, C> getRowRange( int startRow, int endRow ) {
+        super.checkRowRange( startRow, endRow );
+        DenseFloatMatrix<R, C> returnval = new DenseFloatMatrix<>( 1 + endRow - startRow, columns() );
+        returnval.matrix.assign( matrix.viewPart( startRow, 0, 1 + endRow - startRow, columns() ) );
+        if ( !getRowNames().isEmpty() ) {
+            returnval.setRowNames( getRowNames().subList( startRow, endRow + 1 ) );
+        }
+        if ( !getColNames().isEmpty() ) {
+            returnval.setColumnNames( getColNames() );
+        }
+        return returnval;
+    }
+
+    @Override
+    public DoubleMatrix<R, C> subsetColumns( List<C> columns ) {
+        int[] indices = new int[columns.size()];
+        for ( int j = 0; j < indices.length; j++ ) {
+            indices[j] = getColIndexByName( columns.get( j ) );
+        }
+        DenseFloatMatrix<R, C> returnval = new DenseFloatMatrix<>( rows(), indices.length );
+        returnval.matrix.assign( matrix.viewSelection( null, indices ) );
+        returnval.setRowNames( getRowNames() );
+        returnval.setColumnNames( columns );
+        return returnval;
+    }
+
+    @Override
+    public DoubleMatrix<R, C> subsetRows( List<R> rowNames ) {
+        if ( !getRowNames().containsAll( rowNames ) ) {
+            throw new IllegalArgumentException( "Invalid rows to select, some are not in the original matrix" );
+        }
+        int[] indices = new int[rowNames.size()];
+        for ( int i = 0; i < indices.length; i++ ) {
+            indices[i] = getRowIndexByName( rowNames.get( i ) );
+        }
+        DenseFloatMatrix<R, C> returnval = new DenseFloatMatrix<>( indices.length, columns() );
+        returnval.matrix.assign( matrix.viewSelection( indices, null ) );
+        returnval.setRowNames( rowNames );
+        if ( !getColNames().isEmpty() ) {
+            returnval.setColumnNames( getColNames() );
+        }
+        return returnval;
+    }
+
+    @Override
+    public DoubleMatrix<C, R> transpose() {
+        DenseFloatMatrix<C, R> result = new DenseFloatMatrix<>( columns(), rows() );
+        result.matrix.assign( matrix.viewDice() );
+        if ( !getColNames().isEmpty() ) {
+            result.setRowNames( getColNames() );
+        }
+        if ( !getRowNames().isEmpty() ) {
+            result.setColumnNames( getRowNames() );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.dataStructure.matrix;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.AbstractMatrix2D;
+
+/**
+ * A Colt matrix of doubles that stores its values as floats, halving its memory footprint. This is meant for large
+ * data matrices (e.g. expression levels) whose values do not carry more than about 7 significant digits.
+ * <p>
+ * Values are converted to double when read and rounded to the nearest float when written, so all the computations done
+ * through the {@link DoubleMatrix2D} API are in double precision. Views (rows, columns, parts, selections, etc.) share
+ * the floats of this matrix, but new matrices obtained with {@link #like()} (and thus {@link #copy()}) are regular
+ * {@link cern.colt.matrix.impl.DenseDoubleMatrix2D}, since they typically hold the results of computations.
+ *
+ * @author poirigui
+ * @see DenseFloatMatrix
+ */
+public class DenseFloatMatrix2D extends DoubleMatrix2D {
+
+    private static final long serialVersionUID = 1L;
+
+    private final float[] elements;
+
+    /**
+     * Offsets of the rows and columns in {@link #elements}; the element (i, j) is at rowOffsets[i] + columnOffsets[j].
+     * This covers both regular and selection views.
+     */
+    private int[] rowOffsets;
+    private int[] columnOffsets;
+
+    public DenseFloatMatrix2D( int rows, int columns ) {
+        this( new float[rows * columns], rows, columns );
+    }
+
+    /**
+     * @param values values to copy, rounded to floats; all the rows must have the same length
+     */
+    public DenseFloatMatrix2D( double[][] values ) {
+        this( values.length, values.length == 0 ? 0 : values[0].length );
+        for ( int i = 0; i < values.length; i++ ) {
+            if ( values[i].length != columns ) {
+                throw new IllegalArgumentException( "All rows must have the same length." );
+            }
+            for ( int j = 0; j < columns; j++ ) {
+                elements[i * columns + j] = ( float ) values[i][j];
+            }
+        }
+    }
+
+    /**
+     * @param values values to copy; all the rows must have the same length
+     */
+    public DenseFloatMatrix2D( float[][] values ) {
+        this( values.length, values.length == 0 ? 0 : values[0].length );
+        for ( int i = 0; i < values.length; i++ ) {
+            if ( values[i].length != columns ) {
+                throw new IllegalArgumentException( "All rows must have the same length." );
+            }
+            System.arraycopy( values[i], 0, elements, i * columns, columns );
+        }
+    }
+
+    private DenseFloatMatrix2D( float[] elements, int rows, int columns ) {
+        this( elements, sequence( rows, columns ), sequence( columns, 1 ) );
+    }
+
+    private DenseFloatMatrix2D( float[] elements, int[] rowOffsets, int[] columnOffsets ) {
+        setUp( rowOffsets.length, columnOffsets.length, 0, 0, 1, 1 );
+        this.elements = elements;
+        this.rowOffsets = rowOffsets;
+        this.columnOffsets = columnOffsets;
+    }
+
+    @Override
+    public double getQuick( int row, int column ) {
+        return elements[index( row, column )];
+    }
+
+    @Override
+    public void setQuick( int row, int column, double value ) {
+        elements[index( row, column )] = ( float ) value;
+    }
+
+    /**
+     * @return a new {@link cern.colt.matrix.impl.DenseDoubleMatrix2D}, see the class documentation.
+     */
+    @Override
+    public DoubleMatrix2D like( int rows, int columns ) {
+        return new cern.colt.matrix.impl.DenseDoubleMatrix2D( rows, columns );
+    }
+
+    @Override
+    public DoubleMatrix1D like1D( int size ) {
+        return new cern.colt.matrix.impl.DenseDoubleMatrix1D( size );
+    }
+
+    @Override
+    public DoubleMatrix1D viewRow( int row ) {
+        checkRow( row );
+        return new DenseFloatMatrix1D( columns, elements, columnZero, columnStride, columnOffsets,
+                rowOffsets[rowZero + row * rowStride] );
+    }
+
+    @Override
+    public DoubleMatrix1D viewColumn( int column ) {
+        checkColumn( column );
+        return new DenseFloatMatrix1D( rows, elements, rowZero, rowStride, rowOffsets,
+                columnOffsets[columnZero + column * columnStride] );
+    }
+
+    @Override
+    protected int _rowOffset( int absRank ) {
+        return rowOffsets[absRank];
+    }
+
+    @Override
+    protected int _columnOffset( int absRank ) {
+        return columnOffsets[absRank];
+    }
+
+    @Override
+    protected int index( int row, int column ) {
+        return rowOffsets[rowZero + row * rowStride] + columnOffsets[columnZero + column * columnStride];
+    }
+
+    @Override
+    protected AbstractMatrix2D vDice() {
+        super.vDice();
+        int[] tmp = rowOffsets;
+        rowOffsets = columnOffsets;
+        columnOffsets = tmp;
+        return this;
+    }
+
+    /**
+     * @param zero   offset of the first element in {@link #elements}
+     * @param stride distance between consecutive elements in {@link #elements}
+     * @return a view sharing the floats of this matrix
+     */
+    @Override
+    protected DoubleMatrix1D like1D( int size, int zero, int stride ) {
+        int[] offsets = new int[size];
+        for ( int i = 0; i < size; i++ ) {
+            offsets[i] = zero + i * stride;
+        }
+        return new DenseFloatMatrix1D( size, elements, 0, 1, offsets, 0 );
+    }
+
+    @Override
+    protected DoubleMatrix2D viewSelectionLike( int[] rowOffsets, int[] columnOffsets ) {
+        return new DenseFloatMatrix2D( elements, rowOffsets, columnOffsets );
+    }
+
+    @Override
+    protected boolean haveSharedCellsRaw( DoubleMatrix2D other ) {
+        return other instanceof DenseFloatMatrix2D && ( ( DenseFloatMatrix2D ) other ).elements == elements;
+    }
+
+    private static int[] sequence( int n, int step ) {
+        int[] result = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            result[i] = i * step;
+        }
+        return result;
+    }
+
+    /**
+     * A row, column or selection of a {@link DenseFloatMatrix2D}.
+     */
+    private static class DenseFloatMatrix1D extends DoubleMatrix1D {
+
+        private static final long serialVersionUID = 1L;
+
+        private final float[] elements;
+        private final int[] offsets;
+        private final int offset;
+
+        /**
+         * @param offsets offsets of the elements, relative to offset, indexed by rank
+         */
+        private DenseFloatMatrix1D( int size, float[] elements, int zero, int stride, int[] offsets, int offset ) {
+            setUp( size, zero, stride );
+            this.elements = elements;
+            this.offsets = offsets;
+            this.offset = offset;
+        }
+
+        @Override
+        public double getQuick( int index ) {
+            return elements[index( index )];
+        }
+
+        @Override
+        public void setQuick( int index, double value ) {
+            elements[index( index )] = ( float ) value;
+        }
+
+        @Override
+        public DoubleMatrix1D like( int size ) {
+            return new cern.colt.matrix.impl.DenseDoubleMatrix1D( size );
+        }
+
+        @Override
+        public DoubleMatrix2D like2D( int rows, int columns ) {
+            return new cern.colt.matrix.impl.DenseDoubleMatrix2D( rows, columns );
+        }
+
+        @Override
+        protected int _offset( int absRank ) {
+            return offsets[absRank];
+        }
+
+        @Override
+        protected int index( int rank ) {
+            return offset + offsets[zero + rank * stride];
+        }
+
+        /**
+         * @param offsets absolute offsets in the elements, as computed by {@link #index(int)}
+         */
+        @Override
+        protected DoubleMatrix1D viewSelectionLike( int[] offsets ) {
+            return new DenseFloatMatrix1D( offsets.length, elements, 0, 1, offsets, 0 );
+        }
+
+        @Override
+        protected boolean haveSharedCellsRaw( DoubleMatrix1D other ) {
+            return other instanceof DenseFloatMatrix1D && ( ( DenseFloatMatrix1D ) other ).elements == elements;
+        }
+    }
+}
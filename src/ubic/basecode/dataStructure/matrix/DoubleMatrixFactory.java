@@ -56,6 +56,37 @@ public class DoubleMatrixFactory {
         return new DenseDoubleMatrix<String, String>( rows, cols );
     }
 
+    /**
+     * @param T values, rounded to floats
+     * @return a matrix storing its values as floats, see {@link DenseFloatMatrix}
+     */
+    public static DenseFloatMatrix<String, String> densefloat( double T[][] ) {
+        return new DenseFloatMatrix<String, String>( T );
+    }
+
+    /**
+     * Creates a matrix storing its values as floats, in which the underlying data is a copy rounded to floats. This can
+     * be used to halve the memory used by a matrix once it is read.
+     * 
+     * @param T
+     * @return
+     */
+    public static DenseFloatMatrix<String, String> densefloat( DoubleMatrix<String, String> T ) {
+        DenseFloatMatrix<String, String> copy = new DenseFloatMatrix<String, String>( T.rows(), T.columns() );
+        copy.setRowNames( T.getRowNames() );
+        copy.setColumnNames( T.getColNames() );
+        for ( int i = 0; i < T.rows(); i++ ) {
+            for ( int j = 0; j < T.columns(); j++ ) {
+                copy.set( i, j, T.get( i, j ) );
+            }
+        }
+        return copy;
+    }
+
+    public static DenseFloatMatrix<String, String> densefloat( int rows, int cols ) {
+        return new DenseFloatMatrix<String, String>( rows, cols );
+    }
+
     public static FastRowAccessDoubleMatrix<String, String> fastrow( double T[][] ) {
         return new FastRowAccessDoubleMatrix<String, String>( T );
     }
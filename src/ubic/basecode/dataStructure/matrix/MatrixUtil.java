@@ -556,6 +556,21 @@ public class MatrixUtil {
         return size;
     }
 
+    /**
+     * Copy the values of a matrix into a Colt matrix, for computations. A {@link DenseFloatMatrix} is copied into a
+     * {@link DenseFloatMatrix2D}, so that its values are not widened to doubles in memory.
+     * 
+     * @param  matrix
+     * @return a copy of the values, independent of the given matrix
+     */
+    public static DoubleMatrix2D toDoubleMatrix2D( DoubleMatrix<?, ?> matrix ) {
+        if ( matrix instanceof DenseFloatMatrix ) {
+            DoubleMatrix2D copy = new DenseFloatMatrix2D( matrix.rows(), matrix.columns() );
+            return copy.assign( ( ( DenseFloatMatrix<?, ?> ) matrix ).asDoubleMatrix2D() );
+        }
+        return new DenseDoubleMatrix2D( matrix.asArray() );
+    }
+
     /**
      * Makes a copy
      * 
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
@@ -222,6 +223,80 @@ public class DoubleMatrixReader extends AbstractMatrixReader<DoubleMatrix<String
         return read( filename, null, maxRows );
     }
 
+    /**
+     * Read a matrix in blocks of rows, so that only one block needs to be held in memory at a time. The header is read
+     * immediately; rows are parsed as the blocks are requested. The stream is closed once the last block was read.
+     * <p>
+     * The reader must not be used for anything else while iterating.
+     *
+     * @param stream InputStream
+     * @param blockSize maximum number of rows per block
+     * @return an iterator over blocks of rows, each with the row names and all the column names; reading errors are
+     *         raised as {@link UncheckedIOException}
+     * @throws IOException if the header could not be read
+     */
+    @SuppressWarnings("resource")
+    public Iterator<DoubleMatrix<String, String>> readBlocks( InputStream stream, final int blockSize )
+            throws IOException {
+        if ( blockSize <= 0 ) {
+            throw new IllegalArgumentException( "Block size must be strictly positive" );
+        }
+
+        final NumberFormat nf = NumberFormat.getInstance( Locale.ENGLISH );
+        final BufferedReader dis = new BufferedReader( new InputStreamReader( stream ) );
+
+        colNames = readHeader( dis, 0 );
+        numHeadings = colNames.size();
+
+        return new Iterator<DoubleMatrix<String, String>>() {
+
+            private DoubleMatrix<String, String> next = null;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if ( next == null && !done ) {
+                    next = readBlock();
+                }
+                return next != null;
+            }
+
+            @Override
+            public DoubleMatrix<String, String> next() {
+                if ( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                DoubleMatrix<String, String> result = next;
+                next = null;
+                return result;
+            }
+
+            private DoubleMatrix<String, String> readBlock() {
+                List<DoubleArrayList> MTemp = new ArrayList<DoubleArrayList>( blockSize );
+                List<String> rowNames = new ArrayList<String>( blockSize );
+                try {
+                    String row;
+                    while ( MTemp.size() < blockSize && ( row = dis.readLine() ) != null ) {
+                        if ( StringUtils.isBlank( row ) ) {
+                            continue;
+                        }
+                        parseRow( row, rowNames, MTemp, null, 0, nf );
+                    }
+                    if ( MTemp.size() < blockSize ) {
+                        done = true;
+                        dis.close();
+                    }
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+                if ( MTemp.isEmpty() ) {
+                    return null;
+                }
+                return createMatrix( MTemp, rowNames, colNames );
+            }
+        };
+    }
+
     protected DoubleArrayList createEmptyRow( int numColumns ) {
 
         DoubleArrayList row = new DoubleArrayList();
@@ -0,0 +1,107 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import java.util.Arrays;
+
+/**
+ * Correlations between pairs of rows that passed a threshold, in compressed sparse row (CSR) form.
+ * <p>
+ * Each pair is stored once, under its first row: the edges of row i are at positions <tt>rowPointers[i]</tt> (included)
+ * to <tt>rowPointers[i + 1]</tt> (excluded) of the column and value arrays, with columns greater than i and in
+ * increasing order.
+ *
+ * @author poirigui
+ * @see RowCorrelations#edges(java.util.concurrent.ForkJoinPool, double)
+ */
+public class CorrelationEdges {
+
+    private final int numRows;
+    private final int[] rowPointers;
+    private final int[] columns;
+    private final double[] values;
+
+    CorrelationEdges( int numRows, int[] rowPointers, int[] columns, double[] values ) {
+        this.numRows = numRows;
+        this.rowPointers = rowPointers;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumEdges() {
+        return columns.length;
+    }
+
+    /**
+     * @return offsets of the edges of each row, with one extra element holding the number of edges. Do not modify.
+     */
+    public int[] getRowPointers() {
+        return rowPointers;
+    }
+
+    /**
+     * @return the second row of each edge. Do not modify.
+     */
+    public int[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the correlation of each edge. Do not modify.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return the correlation of rows i and j, in either order, or NaN if it was not retained.
+     */
+    public double get( int i, int j ) {
+        if ( i > j ) {
+            return get( j, i );
+        }
+        int k = Arrays.binarySearch( columns, rowPointers[i], rowPointers[i + 1], j );
+        return k >= 0 ? values[k] : Double.NaN;
+    }
+
+    /**
+     * @return the number of edges of each row, counting both ends of each edge
+     */
+    public int[] getDegrees() {
+        int[] degrees = new int[numRows];
+        for ( int i = 0; i < numRows; i++ ) {
+            degrees[i] += rowPointers[i + 1] - rowPointers[i];
+            for ( int k = rowPointers[i]; k < rowPointers[i + 1]; k++ ) {
+                degrees[columns[k]]++;
+            }
+        }
+        return degrees;
+    }
+
+    /**
+     * Visit all the edges, in order of their first row and then their second.
+     */
+    public void forEach( RowCorrelations.PairConsumer consumer ) {
+        for ( int i = 0; i < numRows; i++ ) {
+            for ( int k = rowPointers[i]; k < rowPointers[i + 1]; k++ ) {
+                consumer.accept( i, columns[k], values[k] );
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import java.util.Arrays;
+
+/**
+ * The k most correlated partners of each row of a matrix, from the best to the worst.
+ * <p>
+ * A row has fewer than k partners if there are not enough other rows it has a defined correlation with.
+ *
+ * @author poirigui
+ * @see RowCorrelations#nearestNeighbours(java.util.concurrent.ForkJoinPool, int, boolean, boolean)
+ */
+public class CorrelationNeighbours {
+
+    private final int numRows;
+    private final int k;
+    private final int[] neighbours;
+    private final double[] correlations;
+    private final int[] counts;
+
+    CorrelationNeighbours( int numRows, int k, int[] neighbours, double[] correlations, int[] counts ) {
+        this.numRows = numRows;
+        this.k = k;
+        this.neighbours = neighbours;
+        this.correlations = correlations;
+        this.counts = counts;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return the number of partners of row i, at most k
+     */
+    public int getNumNeighbours( int i ) {
+        return counts[i];
+    }
+
+    /**
+     * @return the partners of row i
+     */
+    public int[] getNeighbours( int i ) {
+        return Arrays.copyOfRange( neighbours, i * k, i * k + counts[i] );
+    }
+
+    /**
+     * @return the correlations of row i with its partners
+     */
+    public double[] getCorrelations( int i ) {
+        return Arrays.copyOfRange( correlations, i * k, i * k + counts[i] );
+    }
+}
@@ -315,7 +315,33 @@ public class CorrelationStats {
      * @return int
      */
     public static int pvalueAsByte( double correl, int count ) {
-        int p = -( int ) Math.floor( PVALCHOP * Arithmetic.log10( pvalue( correl, count ) ) );
+        return pvalueToByte( pvalue( correl, count ) );
+    }
+
+    /**
+     * Same as {@link #pvalueAsByte(double, int)}, but the pvalue is always computed, rather than looked up in the table
+     * shared by all callers, which is not thread-safe.
+     */
+    static int pvalueAsByteUncached( double correl, int count ) {
+        double acorrel = Math.abs( correl );
+        int dof = count - 2;
+        double p;
+        if ( acorrel == 1.0 ) {
+            p = 0.0;
+        } else if ( acorrel == 0.0 || dof <= 0 ) {
+            p = 1.0;
+        } else {
+            p = Probability.studentT( dof, -correlationTstat( acorrel, dof ) );
+        }
+        return pvalueToByte( p );
+    }
+
+    private static int pvalueToByte( double pvalue ) {
+        if ( pvalue <= 0.0 ) {
+            // the log would be infinite
+            return 255;
+        }
+        int p = -( int ) Math.floor( PVALCHOP * Arithmetic.log10( pvalue ) );
 
         if ( p < 0 ) {
             return 0;
@@ -362,6 +388,24 @@ public class CorrelationStats {
         return p;
     }
 
+    /**
+     * Compute the p-values of many Spearman correlations at once.
+     * 
+     * @param correl Spearman's correlations
+     * @param count the number of values each correlation was computed from
+     * @return two-tailed pvalues as in {@link #spearmanPvalue(double, int)}, or NaN where the correlation is NaN
+     */
+    public static double[] spearmanPvalue( double[] correl, int[] count ) {
+        if ( correl.length != count.length ) {
+            throw new IllegalArgumentException( "There must be one count per correlation." );
+        }
+        double[] p = new double[correl.length];
+        for ( int i = 0; i < correl.length; i++ ) {
+            p[i] = Double.isNaN( correl[i] ) ? Double.NaN : spearmanPvalue( correl[i], count[i] );
+        }
+        return p;
+    }
+
     /**
      * Reverse the Fisher z-transform of Pearson correlations
      * 
@@ -0,0 +1,413 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compact on-disk storage of a correlation matrix, with one byte per correlation and, optionally, one byte per pvalue.
+ * <p>
+ * Correlations are quantized with {@link CorrelationStats#correlAsByte(double)} and pvalues with
+ * {@link CorrelationStats#pvalueAsByte(double, int)}, and only the pairs of distinct rows are kept, in upper-triangular
+ * packed layout: row i holds its correlations with rows i + 1 to n - 1, and rows follow each other. The file starts with
+ * a header holding the number of rows and their names, followed by the correlations, then the pvalues if any. A
+ * 30,000 &times; 30,000 matrix takes about 450 MB, instead of 7 GB as doubles.
+ * <p>
+ * Opening a file only reads the header; the rest is memory-mapped, in segments of at most 2 GB made of whole rows, so
+ * that the stored part of each row can be accessed without copying. Missing correlations are stored as
+ * {@link #MISSING_CORRELATION}, and read back as NaN, as are their pvalues; the highest correlations, which would be
+ * quantized to that byte, are stored as the byte below it. Instances are safe for concurrent use.
+ *
+ * @author poirigui
+ */
+public class MappedCorrelationMatrix {
+
+    /**
+     * "CORB", for correlations, binary.
+     */
+    private static final int MAGIC = 0x434F5242;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_PVALUES = 1;
+
+    /**
+     * Set if missing correlations are stored as {@link #MISSING_CORRELATION}; files written without it stored them as
+     * zero.
+     */
+    private static final int FLAG_MISSING = 2;
+
+    /**
+     * Byte marking a missing correlation.
+     */
+    public static final int MISSING_CORRELATION = 255;
+
+    /**
+     * Write the correlations of all the pairs of rows to a file, replacing it if it exists.
+     * <p>
+     * Correlations are computed and written directly to the mapped file, so the full matrix is never held in memory.
+     *
+     * @param correlations correlations to store
+     * @param rowNames     names of the rows, unique
+     * @param pvalues      also store the pvalues of the correlations, as Pearson correlations computed from the values
+     *                     present in both rows
+     * @param pool         if not null, correlations are computed concurrently in this pool
+     * @param path         destination
+     * @throws IOException if the file cannot be written
+     */
+    public static void write( RowCorrelations correlations, List<String> rowNames, boolean pvalues,
+            @Nullable ForkJoinPool pool, Path path ) throws IOException {
+        write( correlations, rowNames, pvalues, pool, path, Integer.MAX_VALUE );
+    }
+
+    static void write( final RowCorrelations correlations, List<String> rowNames, final boolean pvalues,
+            @Nullable ForkJoinPool pool, Path path, int maxSegmentSize ) throws IOException {
+        int n = correlations.getNumRows();
+        if ( rowNames.size() != n ) {
+            throw new IllegalArgumentException( "There must be one name per row." );
+        }
+        if ( index( rowNames ).size() != n ) {
+            throw new IllegalArgumentException( "Row names must be unique." );
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( header );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( FLAG_MISSING | ( pvalues ? FLAG_PVALUES : 0 ) );
+        out.writeInt( n );
+        for ( String name : rowNames ) {
+            byte[] bytes = name.getBytes( StandardCharsets.UTF_8 );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+        out.flush();
+
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            ByteBuffer h = ByteBuffer.wrap( header.toByteArray() );
+            while ( h.hasRemaining() ) {
+                channel.write( h );
+            }
+            long start = header.size();
+            final Section correls = new Section( channel, FileChannel.MapMode.READ_WRITE, start, n, maxSegmentSize );
+            final Section pvals = pvalues ? new Section( channel, FileChannel.MapMode.READ_WRITE,
+                    start + packedSize( n ), n, maxSegmentSize ) : null;
+            correlations.forEachPair( pool, ( i, j, r ) -> {
+                if ( Double.isNaN( r ) ) {
+                    correls.put( i, j, MISSING_CORRELATION );
+                    // never read
+                    if ( pvals != null ) {
+                        pvals.put( i, j, 0 );
+                    }
+                    return;
+                }
+                double c = Math.max( -1.0, Math.min( 1.0, r ) );
+                correls.put( i, j, Math.min( CorrelationStats.correlAsByte( c ), MISSING_CORRELATION - 1 ) );
+                if ( pvals != null ) {
+                    pvals.put( i, j, CorrelationStats.pvalueAsByteUncached( c, correlations.getNumPresent( i, j ) ) );
+                }
+            } );
+            correls.force();
+            if ( pvals != null ) {
+                pvals.force();
+            }
+        }
+    }
+
+    /**
+     * Open a matrix previously written with
+     * {@link #write(RowCorrelations, List, boolean, ForkJoinPool, Path)}.
+     *
+     * @param path file to open
+     * @throws IOException if the file cannot be read, or is not in the expected format
+     */
+    public static MappedCorrelationMatrix open( Path path ) throws IOException {
+        return open( path, Integer.MAX_VALUE );
+    }
+
+    static MappedCorrelationMatrix open( Path path, int maxSegmentSize ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            // the mappings remain valid after the channel is closed
+            return new MappedCorrelationMatrix( channel, path, maxSegmentSize );
+        }
+    }
+
+    private final int numRows;
+    private final List<String> rowNames;
+    private final Map<String, Integer> rowIndex;
+    private final Section correlations;
+    @Nullable
+    private final Section pvalues;
+    /**
+     * Byte marking missing correlations, or -1 if there is none.
+     */
+    private final int missingCorrelation;
+
+    private MappedCorrelationMatrix( FileChannel channel, Path path, int maxSegmentSize ) throws IOException {
+        boolean hasPvalues;
+        boolean hasMissing;
+        long start;
+        try {
+            // the header is small, but its length depends on the names
+            ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min( channel.size(), Integer.MAX_VALUE ) );
+            if ( buffer.getInt() != MAGIC ) {
+                throw new IOException( path + " does not contain a correlation matrix." );
+            }
+            int version = buffer.getInt();
+            if ( version != VERSION ) {
+                throw new IOException( "Unsupported version " + version + " of correlation matrix in " + path + "." );
+            }
+            int flags = buffer.getInt();
+            hasPvalues = ( flags & FLAG_PVALUES ) != 0;
+            hasMissing = ( flags & FLAG_MISSING ) != 0;
+            this.numRows = buffer.getInt();
+            if ( numRows < 0 || numRows > channel.size() ) {
+                throw new IOException( path + " is truncated or corrupted." );
+            }
+            List<String> names = new ArrayList<>( numRows );
+            for ( int i = 0; i < numRows; i++ ) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get( bytes );
+                names.add( new String( bytes, StandardCharsets.UTF_8 ) );
+            }
+            this.rowNames = Collections.unmodifiableList( names );
+            start = buffer.position();
+        } catch ( RuntimeException e ) {
+            throw new IOException( path + " is truncated or corrupted.", e );
+        }
+        if ( channel.size() != start + ( hasPvalues ? 2 : 1 ) * packedSize( numRows ) ) {
+            throw new IOException( path + " is truncated or corrupted." );
+        }
+        this.rowIndex = index( rowNames );
+        this.missingCorrelation = hasMissing ? MISSING_CORRELATION : -1;
+        this.correlations = new Section( channel, FileChannel.MapMode.READ_ONLY, start, numRows, maxSegmentSize );
+        this.pvalues = hasPvalues ? new Section( channel, FileChannel.MapMode.READ_ONLY, start
+                + packedSize( numRows ), numRows, maxSegmentSize ) : null;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public List<String> getRowNames() {
+        return rowNames;
+    }
+
+    /**
+     * @return the position of the row with the given name, or -1 if there is no such row
+     */
+    public int getRowIndex( String rowName ) {
+        Integer i = rowIndex.get( rowName );
+        return i != null ? i : -1;
+    }
+
+    public boolean hasPvalues() {
+        return pvalues != null;
+    }
+
+    /**
+     * @return the correlation of rows i and j, in either order; 1 if they are the same, NaN if it is missing
+     */
+    public double getCorrelation( int i, int j ) {
+        if ( i == j ) {
+            return 1.0;
+        }
+        int b = correlations.get( i, j );
+        return b == missingCorrelation ? Double.NaN : CorrelationStats.byteToCorrel( b );
+    }
+
+    public double getCorrelation( String rowName1, String rowName2 ) {
+        return getCorrelation( requireRow( rowName1 ), requireRow( rowName2 ) );
+    }
+
+    /**
+     * @return the pvalue of the correlation of rows i and j, in either order; NaN if they are the same or if the
+     *         correlation is missing
+     * @throws IllegalStateException if pvalues were not stored
+     */
+    public double getPvalue( int i, int j ) {
+        if ( pvalues == null ) {
+            throw new IllegalStateException( "Pvalues were not stored." );
+        }
+        if ( i == j || correlations.get( i, j ) == missingCorrelation ) {
+            return Double.NaN;
+        }
+        return CorrelationStats.byteToPvalue( pvalues.get( i, j ) );
+    }
+
+    public double getPvalue( String rowName1, String rowName2 ) {
+        return getPvalue( requireRow( rowName1 ), requireRow( rowName2 ) );
+    }
+
+    /**
+     * @return all the correlations of row i, decoded; the diagonal is 1
+     */
+    public double[] getRow( int i ) {
+        double[] row = new double[numRows];
+        for ( int j = 0; j < numRows; j++ ) {
+            row[j] = getCorrelation( i, j );
+        }
+        return row;
+    }
+
+    /**
+     * @return a read-only view of the stored correlations of row i with rows i + 1 to n - 1, as bytes to be decoded
+     *         with {@link CorrelationStats#byteToCorrel(int)} (after masking with 0xFF), except for
+     *         {@link #MISSING_CORRELATION}
+     */
+    public ByteBuffer getCorrelationBytes( int i ) {
+        return correlations.row( i );
+    }
+
+    /**
+     * @return a read-only view of the stored pvalues of row i with rows i + 1 to n - 1, as bytes to be decoded with
+     *         {@link CorrelationStats#byteToPvalue(int)} (after masking with 0xFF)
+     * @throws IllegalStateException if pvalues were not stored
+     */
+    public ByteBuffer getPvalueBytes( int i ) {
+        if ( pvalues == null ) {
+            throw new IllegalStateException( "Pvalues were not stored." );
+        }
+        return pvalues.row( i );
+    }
+
+    private int requireRow( String rowName ) {
+        Integer i = rowIndex.get( rowName );
+        if ( i == null ) {
+            throw new IllegalArgumentException( "No row named " + rowName + "." );
+        }
+        return i;
+    }
+
+    private static Map<String, Integer> index( List<String> rowNames ) {
+        Map<String, Integer> index = new HashMap<>( 2 * rowNames.size() );
+        for ( int i = 0; i < rowNames.size(); i++ ) {
+            index.put( rowNames.get( i ), i );
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of pairs of distinct rows
+     */
+    private static long packedSize( int n ) {
+        return ( long ) n * ( n - 1 ) / 2;
+    }
+
+    /**
+     * @return the position of the first stored value of row i, relative to the start of the packed values
+     */
+    private static long rowOffset( int i, int n ) {
+        return ( long ) i * ( n - 1 ) - ( long ) i * ( i - 1 ) / 2;
+    }
+
+    /**
+     * Packed values of all the pairs of rows, mapped in segments of whole rows.
+     */
+    private static class Section {
+
+        private final int numRows;
+        /**
+         * First row of each segment, and one past the last row.
+         */
+        private final int[] firstRows;
+        private final MappedByteBuffer[] segments;
+
+        private Section( FileChannel channel, FileChannel.MapMode mode, long start, int numRows, int maxSegmentSize )
+                throws IOException {
+            if ( numRows - 1 > maxSegmentSize ) {
+                throw new IllegalArgumentException( "A row does not fit in a segment." );
+            }
+            this.numRows = numRows;
+            List<Integer> firstRows = new ArrayList<>();
+            List<MappedByteBuffer> segments = new ArrayList<>();
+            int r0 = 0;
+            do {
+                int r1 = r0;
+                while ( r1 < numRows && rowOffset( r1 + 1, numRows ) - rowOffset( r0, numRows ) <= maxSegmentSize ) {
+                    r1++;
+                }
+                long size = rowOffset( r1, numRows ) - rowOffset( r0, numRows );
+                firstRows.add( r0 );
+                segments.add( channel.map( mode, start + rowOffset( r0, numRows ), size ) );
+                r0 = r1;
+            } while ( r0 < numRows );
+            firstRows.add( numRows );
+            this.firstRows = firstRows.stream().mapToInt( Integer::intValue ).toArray();
+            this.segments = segments.toArray( new MappedByteBuffer[0] );
+        }
+
+        private int get( int i, int j ) {
+            if ( i > j ) {
+                return get( j, i );
+            }
+            int s = segment( i );
+            return segments[s].get( index( s, i, j ) ) & 0xFF;
+        }
+
+        private void put( int i, int j, int value ) {
+            int s = segment( i );
+            // absolute puts, so distinct pairs can be written concurrently
+            segments[s].put( index( s, i, j ), ( byte ) value );
+        }
+
+        private ByteBuffer row( int i ) {
+            int s = segment( i );
+            ByteBuffer view = segments[s].asReadOnlyBuffer();
+            int from = ( int ) ( rowOffset( i, numRows ) - rowOffset( firstRows[s], numRows ) );
+            view.position( from );
+            view.limit( from + numRows - 1 - i );
+            return view.slice();
+        }
+
+        private void force() {
+            for ( MappedByteBuffer segment : segments ) {
+                segment.force();
+            }
+        }
+
+        private int segment( int i ) {
+            if ( i < 0 || i >= numRows ) {
+                throw new IndexOutOfBoundsException( "No row " + i + "." );
+            }
+            int s = Arrays.binarySearch( firstRows, i );
+            return s >= 0 ? s : -s - 2;
+        }
+
+        private int index( int s, int i, int j ) {
+            if ( j <= i || j >= numRows ) {
+                throw new IndexOutOfBoundsException( "No column " + j + " in row " + i + "." );
+            }
+            return ( int ) ( rowOffset( i, numRows ) - rowOffset( firstRows[s], numRows ) + j - i - 1 );
+        }
+    }
+}
@@ -20,6 +20,7 @@ package ubic.basecode.math;
 
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix1D;
+import ubic.basecode.dataStructure.matrix.DenseFloatMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.dataStructure.matrix.MatrixUtil;
 import ubic.basecode.dataStructure.matrix.SparseDoubleMatrix;
@@ -31,6 +32,9 @@ import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
 import cern.jet.math.Functions;
+import org.jspecify.annotations.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author pavlidis
@@ -106,29 +110,55 @@ public class MatrixStats {
     }
 
     /**
-     * Compute the correlation matrix of the rows of a matrix.
+     * Compute the correlation matrix of the rows of a matrix. The correlations are computed in double precision, but
+     * they are stored as floats if the data are (see {@link DenseFloatMatrix}).
      * 
      * @param data
      * @return a symmetric matrix that has the rows and columns set to be the names of the rows of the input.
      */
     public static <R, C> DoubleMatrix<R, R> correlationMatrix( DoubleMatrix<R, C> data ) {
-        DoubleMatrix<R, R> result = new DenseDoubleMatrix<>( data.rows(), data.rows() );
+        return correlationMatrix( data, ( ForkJoinPool ) null );
+    }
+
+    /**
+     * Compute the correlation matrix of the rows of a matrix, optionally in parallel. Missing values are handled as in
+     * {@link DescriptiveWithMissing#correlation(DoubleArrayList, DoubleArrayList)}; see {@link RowCorrelations}.
+     * 
+     * @param data
+     * @param pool if not null, blocks of the matrix are computed concurrently in this pool
+     * @return a symmetric matrix that has the rows and columns set to be the names of the rows of the input.
+     */
+    public static <R, C> DoubleMatrix<R, R> correlationMatrix( DoubleMatrix<R, C> data, @Nullable ForkJoinPool pool ) {
+        return correlationMatrix( data, new RowCorrelations( data.asArray() ), pool );
+    }
+
+    /**
+     * Compute the Spearman rank correlation matrix of the rows of a matrix, optionally in parallel. Each row is ranked
+     * only once; see {@link RowCorrelations#spearman(double[][])} for how missing values are handled.
+     * 
+     * @param data
+     * @param pool if not null, blocks of the matrix are computed concurrently in this pool
+     * @return a symmetric matrix that has the rows and columns set to be the names of the rows of the input.
+     */
+    public static <R, C> DoubleMatrix<R, R> spearmanCorrelationMatrix( DoubleMatrix<R, C> data,
+            @Nullable ForkJoinPool pool ) {
+        return correlationMatrix( data, RowCorrelations.spearman( data.asArray() ), pool );
+    }
 
+    private static <R, C> DoubleMatrix<R, R> correlationMatrix( DoubleMatrix<R, C> data, RowCorrelations correlations,
+            @Nullable ForkJoinPool pool ) {
+        final DoubleMatrix<R, R> result = newMatrixLike( data, data.rows(), data.rows() );
         for ( int i = 0; i < data.rows(); i++ ) {
-            DoubleArrayList irow = new DoubleArrayList( data.getRow( i ) );
-            for ( int j = i; j < data.rows(); j++ ) {
-                if ( j == i ) {
-                    result.set( i, j, 1.0 );
-                    continue;
-                }
-                DoubleArrayList jrow = new DoubleArrayList( data.getRow( j ) );
-                double c = DescriptiveWithMissing.correlation( irow, jrow );
-                result.set( i, j, c );
-                result.set( j, i, c );
-            }
+            result.set( i, i, 1.0 );
+        }
+        correlations.forEachPair( pool, ( i, j, c ) -> {
+            result.set( i, j, c );
+            result.set( j, i, c );
+        } );
+        if ( data.hasRowNames() ) {
+            result.setRowNames( data.getRowNames() );
+            result.setColumnNames( data.getRowNames() );
         }
-        result.setRowNames( data.getRowNames() );
-        result.setColumnNames( data.getRowNames() );
 
         return result;
     }
@@ -138,6 +168,7 @@ public class MatrixStats {
      * @param threshold only correlations with absolute values above this level are stored (others are Double.NaN)
      * @return a sparse symmetric matrix that has the rows and columns set to be the names of the rows of the input. The
      *         diagonal is set to Double.NaN
+     * @see #correlationEdges(DoubleMatrix, double, ForkJoinPool) to store only the retained correlations
      */
     public static <R, C> SparseDoubleMatrix<R, R> correlationMatrix( DoubleMatrix<R, C> data, double threshold ) {
         SparseDoubleMatrix<R, R> result = new SparseDoubleMatrix<>( data.rows(), data.rows() );
@@ -163,6 +194,35 @@ public class MatrixStats {
         return result;
     }
 
+    /**
+     * Compute the correlations between the rows of a matrix, keeping only those with an absolute value above a threshold.
+     * Unlike {@link #correlationMatrix(DoubleMatrix, double)}, nothing is stored for the other pairs.
+     * 
+     * @param data
+     * @param threshold only correlations with absolute values above this level are retained
+     * @param pool if not null, blocks of rows are processed concurrently in this pool
+     * @return the retained correlations, indexed by the positions of the rows in the input
+     */
+    public static <R, C> CorrelationEdges correlationEdges( DoubleMatrix<R, C> data, double threshold,
+            @Nullable ForkJoinPool pool ) {
+        return new RowCorrelations( data.asArray() ).edges( pool, threshold );
+    }
+
+    /**
+     * Find, for each row of a matrix, the k other rows it is the most correlated with, without computing the full
+     * correlation matrix.
+     * 
+     * @param data
+     * @param k maximum number of partners for each row
+     * @param absolute rank the partners by the absolute value of their correlation, otherwise by its signed value
+     * @param pool if not null, blocks of rows are processed concurrently in this pool
+     * @return the partners of each row, indexed by the positions of the rows in the input
+     */
+    public static <R, C> CorrelationNeighbours correlationNeighbours( DoubleMatrix<R, C> data, int k,
+            boolean absolute, @Nullable ForkJoinPool pool ) {
+        return new RowCorrelations( data.asArray() ).nearestNeighbours( pool, k, absolute, true );
+    }
+
     /**
      * Iteratively standardize the columns and rows of the matrix.
      * 
@@ -370,7 +430,7 @@ public class MatrixStats {
     }
 
     /**
-     * Scale the rows of the matrix; returns a new matrix.
+     * Scale the rows of the matrix; returns a new matrix, storing floats if the given matrix does.
      * 
      * @param <R>
      * @param <C>
@@ -378,7 +438,7 @@ public class MatrixStats {
      * @return
      */
     public static <R, C> DoubleMatrix<R, C> standardize( DoubleMatrix<R, C> matrix ) {
-        DoubleMatrix<R, C> newMatrix = new DenseDoubleMatrix<>( matrix.rows(), matrix.columns() );
+        DoubleMatrix<R, C> newMatrix = newMatrixLike( matrix, matrix.rows(), matrix.columns() );
         newMatrix.setRowNames( matrix.getRowNames() );
         newMatrix.setColumnNames( matrix.getColNames() );
         for ( int i = 0; i < matrix.rows(); i++ ) {
@@ -437,4 +497,14 @@ public class MatrixStats {
 
     }
 
+    /**
+     * @return a new dense matrix, storing floats if the given matrix does
+     */
+    private static <R, C> DoubleMatrix<R, C> newMatrixLike( DoubleMatrix<?, ?> matrix, int rows, int columns ) {
+        if ( matrix instanceof DenseFloatMatrix ) {
+            return new DenseFloatMatrix<>( rows, columns );
+        }
+        return new DenseDoubleMatrix<>( rows, columns );
+    }
+
 }
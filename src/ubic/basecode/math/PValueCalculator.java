@@ -0,0 +1,169 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import org.apache.commons.math3.distribution.FDistribution;
+import org.apache.commons.math3.distribution.TDistribution;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes p-values for t and F statistics, reusing the distribution for each distinct number of degrees of freedom.
+ * <p>
+ * When summarizing thousands of linear models, the degrees of freedom typically take only a handful of distinct values
+ * (e.g. the residual degrees of freedom plus the prior degrees of freedom after ebayes), so creating a distribution
+ * for each statistic is wasteful. The p-values are exactly the same as those obtained with a new distribution for each
+ * statistic.
+ * <p>
+ * Instances are thread-safe. At most {@link #MAX_CACHED} distributions of each kind are kept; beyond that, distributions
+ * are created as needed.
+ *
+ * @author poirigui
+ */
+public class PValueCalculator {
+
+    /**
+     * Maximum number of distributions of each kind that are cached.
+     */
+    public static final int MAX_CACHED = 1024;
+
+    private final Map<Double, TDistribution> tDistributions = new ConcurrentHashMap<>();
+    private final Map<DofPair, FDistribution> fDistributions = new ConcurrentHashMap<>();
+
+    /**
+     * @param t  t statistic
+     * @param df degrees of freedom
+     * @return two-sided p-value, 2 * (1 - P(T &lt;= |t|))
+     * @throws org.apache.commons.math3.exception.NotStrictlyPositiveException if df &lt;= 0
+     */
+    public double tTestTwoSided( double t, double df ) {
+        return 2.0 * ( 1.0 - tDistribution( df ).cumulativeProbability( Math.abs( t ) ) );
+    }
+
+    /**
+     * Vectorized version of {@link #tTestTwoSided(double, double)}, for statistics sharing the same degrees of freedom.
+     *
+     * @param t  t statistics
+     * @param df degrees of freedom
+     * @return two-sided p-values
+     */
+    public double[] tTestTwoSided( double[] t, double df ) {
+        TDistribution dist = tDistribution( df );
+        double[] result = new double[t.length];
+        for ( int i = 0; i < t.length; i++ ) {
+            result[i] = 2.0 * ( 1.0 - dist.cumulativeProbability( Math.abs( t[i] ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * Vectorized version of {@link #tTestTwoSided(double, double)}.
+     *
+     * @param t  t statistics
+     * @param df degrees of freedom for each statistic; NaN yields a NaN p-value
+     * @return two-sided p-values
+     */
+    public double[] tTestTwoSided( double[] t, double[] df ) {
+        if ( t.length != df.length ) {
+            throw new IllegalArgumentException( "Statistics and degrees of freedom must have the same length" );
+        }
+        double[] result = new double[t.length];
+        for ( int i = 0; i < t.length; i++ ) {
+            result[i] = Double.isNaN( df[i] ) ? Double.NaN : tTestTwoSided( t[i], df[i] );
+        }
+        return result;
+    }
+
+    /**
+     * @param f   F statistic
+     * @param df1 numerator degrees of freedom
+     * @param df2 denominator degrees of freedom
+     * @return upper-tail p-value, 1 - P(F &lt;= f)
+     * @throws org.apache.commons.math3.exception.NotStrictlyPositiveException if either df is &lt;= 0
+     */
+    public double fTest( double f, double df1, double df2 ) {
+        return 1.0 - fDistribution( df1, df2 ).cumulativeProbability( f );
+    }
+
+    /**
+     * Vectorized version of {@link #fTest(double, double, double)}.
+     *
+     * @param f   F statistics
+     * @param df1 numerator degrees of freedom for each statistic
+     * @param df2 denominator degrees of freedom for each statistic
+     * @return upper-tail p-values; NaN where either of the degrees of freedom is NaN or zero
+     */
+    public double[] fTest( double[] f, double[] df1, double[] df2 ) {
+        if ( f.length != df1.length || f.length != df2.length ) {
+            throw new IllegalArgumentException( "Statistics and degrees of freedom must have the same length" );
+        }
+        double[] result = new double[f.length];
+        for ( int i = 0; i < f.length; i++ ) {
+            if ( Double.isNaN( df1[i] ) || Double.isNaN( df2[i] ) || df1[i] == 0 || df2[i] == 0 ) {
+                result[i] = Double.NaN;
+            } else {
+                result[i] = fTest( f[i], df1[i], df2[i] );
+            }
+        }
+        return result;
+    }
+
+    private TDistribution tDistribution( double df ) {
+        TDistribution dist = tDistributions.get( df );
+        if ( dist == null ) {
+            // no random generator: we never sample, and seeding one is costly
+            dist = new TDistribution( null, df );
+            if ( tDistributions.size() < MAX_CACHED ) {
+                tDistributions.putIfAbsent( df, dist );
+            }
+        }
+        return dist;
+    }
+
+    private FDistribution fDistribution( double df1, double df2 ) {
+        DofPair key = new DofPair( df1, df2 );
+        FDistribution dist = fDistributions.get( key );
+        if ( dist == null ) {
+            dist = new FDistribution( null, df1, df2 );
+            if ( fDistributions.size() < MAX_CACHED ) {
+                fDistributions.putIfAbsent( key, dist );
+            }
+        }
+        return dist;
+    }
+
+    private static final class DofPair {
+        private final double df1;
+        private final double df2;
+
+        private DofPair( double df1, double df2 ) {
+            this.df1 = df1;
+            this.df2 = df2;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !( o instanceof DofPair ) ) return false;
+            DofPair that = ( DofPair ) o;
+            return Double.compare( df1, that.df1 ) == 0 && Double.compare( df2, that.df2 ) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Double.hashCode( df1 ) + Double.hashCode( df2 );
+        }
+    }
+}
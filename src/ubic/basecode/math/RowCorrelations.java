@@ -0,0 +1,627 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Pearson correlations between all the rows of a matrix.
+ * <p>
+ * The mean and the norm of each row are computed once, and the rows are centered and scaled into a single contiguous
+ * buffer, so that the correlation of two rows without missing values is the dot product of their standardized values.
+ * The correlations of a constant row are NaN.
+ * <p>
+ * Pairs involving a row with missing values are computed from the values present in both rows, as in
+ * {@link DescriptiveWithMissing#correlation(double[], double[], double[], double[], boolean[], boolean[])}, and are NaN
+ * when there are no such values. Such rows are centered and scaled using their present values and stored with zeroes
+ * in place of the missing values, so that their cross-product is still a plain dot product. Which values are present
+ * is kept as bitmasks packed in longs, from which the number of values present in both rows is a popcount; the sums
+ * and the sums of squares over those values are only computed, in the same pass as the cross-product, for a row that
+ * has values where the other row is missing.
+ * <p>
+ * All the pairs are visited in square tiles of rows small enough for both blocks of rows to stay in cache; tiles are
+ * processed concurrently if a {@link ForkJoinPool} is given.
+ *
+ * @author poirigui
+ * @see MatrixStats#correlationMatrix(ubic.basecode.dataStructure.matrix.DoubleMatrix, ForkJoinPool)
+ */
+public class RowCorrelations {
+
+    /**
+     * Receives the correlation of a pair of rows; it may be called concurrently for different pairs.
+     */
+    @FunctionalInterface
+    public interface PairConsumer {
+        void accept( int i, int j, double r );
+    }
+
+    /**
+     * Target size, in bytes, of the two blocks of rows of a tile.
+     */
+    private static final int TILE_BYTES = 1 << 18;
+
+    private final int numRows;
+    private final int numColumns;
+
+    /**
+     * Standardized rows, in row-major order; missing values are replaced by zeroes.
+     */
+    private final double[] standardized;
+
+    /**
+     * Whether each row has missing values.
+     */
+    private final boolean[] hasMissing;
+
+    /**
+     * If any row has missing values, bitmasks of the values present in each row ({@link #numWords} longs per row), and
+     * for the rows with missing values, the same as 0/1 indicators ({@link #numColumns} doubles for the k-th such row,
+     * starting at <tt>indicatorOffsets[i]</tt>); otherwise, these are null.
+     */
+    private final long @Nullable [] masks;
+    private final double @Nullable [] indicators;
+    private final int @Nullable [] indicatorOffsets;
+    private final int numWords;
+
+    /**
+     * Sums and sums of squares of the standardized values of each row.
+     */
+    private final double[] sums;
+    private final double[] sumsOfSquares;
+
+    private final int tileSize;
+
+    /**
+     * @param data rows to correlate, all of the same length; they are not modified.
+     */
+    public RowCorrelations( double[][] data ) {
+        this.numRows = data.length;
+        this.numColumns = numRows > 0 ? data[0].length : 0;
+        this.standardized = new double[numRows * numColumns];
+        this.hasMissing = new boolean[numRows];
+        boolean anyMissing = false;
+        for ( int i = 0; i < numRows; i++ ) {
+            if ( data[i].length != numColumns ) {
+                throw new IllegalArgumentException( "All the rows must have the same length" );
+            }
+            for ( double v : data[i] ) {
+                if ( Double.isNaN( v ) ) {
+                    hasMissing[i] = true;
+                    anyMissing = true;
+                    break;
+                }
+            }
+        }
+        this.numWords = ( numColumns + Long.SIZE - 1 ) / Long.SIZE;
+        if ( anyMissing ) {
+            int numWithMissing = 0;
+            this.indicatorOffsets = new int[numRows];
+            for ( int i = 0; i < numRows; i++ ) {
+                indicatorOffsets[i] = hasMissing[i] ? numColumns * numWithMissing++ : -1;
+            }
+            this.masks = new long[numRows * numWords];
+            this.indicators = new double[numWithMissing * numColumns];
+        } else {
+            this.indicatorOffsets = null;
+            this.masks = null;
+            this.indicators = null;
+        }
+
+        this.sums = new double[numRows];
+        this.sumsOfSquares = new double[numRows];
+        for ( int i = 0; i < numRows; i++ ) {
+            double[] row = data[i];
+            double sum = 0.0;
+            int n = 0;
+            for ( int k = 0; k < numColumns; k++ ) {
+                if ( !Double.isNaN( row[k] ) ) {
+                    sum += row[k];
+                    n++;
+                    if ( masks != null ) {
+                        masks[i * numWords + k / Long.SIZE] |= 1L << ( k % Long.SIZE );
+                    }
+                    if ( hasMissing[i] ) {
+                        assert indicators != null && indicatorOffsets != null;
+                        indicators[indicatorOffsets[i] + k] = 1.0;
+                    }
+                }
+            }
+            double mean = sum / n;
+            double ss = 0.0;
+            for ( double v : row ) {
+                if ( !Double.isNaN( v ) ) {
+                    ss += ( v - mean ) * ( v - mean );
+                }
+            }
+            // a constant row has a zero norm, and NaN correlations
+            double norm = Math.sqrt( ss );
+            int offset = i * numColumns;
+            double s = 0.0, s2 = 0.0;
+            for ( int k = 0; k < numColumns; k++ ) {
+                if ( !Double.isNaN( row[k] ) ) {
+                    double z = ( row[k] - mean ) / norm;
+                    standardized[offset + k] = z;
+                    s += z;
+                    s2 += z * z;
+                }
+            }
+            sums[i] = s;
+            sumsOfSquares[i] = s2;
+        }
+        this.tileSize = Math.max( 8, Math.min( 256, TILE_BYTES / ( 2 * Double.BYTES * Math.max( 1, numColumns ) ) ) );
+    }
+
+    /**
+     * Prepare Spearman rank correlations between the rows of a matrix.
+     * <p>
+     * Each row is rank-transformed once, tied values receiving the mean of their ranks, and the Pearson correlations of
+     * the ranks are computed as usual. Missing values are left out of the ranking of their row; note that unlike
+     * {@link Distance#spearmanRankCorrelation(cern.colt.list.DoubleArrayList, cern.colt.list.DoubleArrayList)}, the
+     * values of a pair of rows that have different missing values are therefore not re-ranked among the values present
+     * in both.
+     *
+     * @param data rows to correlate, all of the same length; they are not modified.
+     */
+    public static RowCorrelations spearman( double[][] data ) {
+        double[][] ranks = new double[data.length][];
+        for ( int i = 0; i < data.length; i++ ) {
+            ranks[i] = rank( data[i] );
+        }
+        return new RowCorrelations( ranks );
+    }
+
+    /**
+     * @return the ranks of the values of a row, starting at 1, with ties given their mean rank and missing values left
+     * missing
+     */
+    private static double[] rank( double[] row ) {
+        double[] sorted = new double[row.length];
+        int n = 0;
+        for ( double v : row ) {
+            if ( !Double.isNaN( v ) ) {
+                sorted[n++] = v;
+            }
+        }
+        Arrays.sort( sorted, 0, n );
+        double[] ranks = new double[row.length];
+        for ( int k = 0; k < row.length; k++ ) {
+            double v = row[k];
+            if ( Double.isNaN( v ) ) {
+                ranks[k] = Double.NaN;
+                continue;
+            }
+            // first and last positions of the value among the sorted values
+            int first = Arrays.binarySearch( sorted, 0, n, v );
+            int last = first;
+            while ( first > 0 && sorted[first - 1] == v ) {
+                first--;
+            }
+            while ( last < n - 1 && sorted[last + 1] == v ) {
+                last++;
+            }
+            ranks[k] = ( first + last ) / 2.0 + 1.0;
+        }
+        return ranks;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumColumns() {
+        return numColumns;
+    }
+
+    /**
+     * @return the number of values present in both rows i and j, which is the sample size of their correlation
+     */
+    public int getNumPresent( int i, int j ) {
+        if ( masks == null ) {
+            return numColumns;
+        }
+        int n = 0;
+        for ( int w = 0; w < numWords; w++ ) {
+            n += Long.bitCount( masks[i * numWords + w] & masks[j * numWords + w] );
+        }
+        return n;
+    }
+
+    /**
+     * @return the correlation of rows i and j
+     */
+    public double correlation( int i, int j ) {
+        if ( hasMissing[i] || hasMissing[j] ) {
+            return correlationWithMissing( i, j );
+        }
+        return dot( i, j );
+    }
+
+    private double correlationWithMissing( int i, int j ) {
+        assert masks != null && indicators != null && indicatorOffsets != null;
+        int n = 0;
+        // whether i (resp. j) has values where j (resp. i) is missing
+        boolean iOutside = false, jOutside = false;
+        for ( int w = 0; w < numWords; w++ ) {
+            long mi = masks[i * numWords + w], mj = masks[j * numWords + w];
+            n += Long.bitCount( mi & mj );
+            iOutside |= ( mi & ~mj ) != 0;
+            jOutside |= ( mj & ~mi ) != 0;
+        }
+        if ( n == 0 ) {
+            return Double.NaN;
+        }
+        int oi = i * numColumns, oj = j * numColumns;
+        double sxy = 0.0;
+        double sx = sums[i], sxx = sumsOfSquares[i], sy = sums[j], syy = sumsOfSquares[j];
+        if ( iOutside && jOutside ) {
+            int ii = indicatorOffsets[i], ij = indicatorOffsets[j];
+            sx = sxx = sy = syy = 0.0;
+            for ( int k = 0; k < numColumns; k++ ) {
+                double x = standardized[oi + k], y = standardized[oj + k];
+                double xp = x * indicators[ij + k], yp = y * indicators[ii + k];
+                sxy += x * y;
+                sx += xp;
+                sxx += x * xp;
+                sy += yp;
+                syy += y * yp;
+            }
+        } else if ( iOutside ) {
+            // j is only missing where i is missing, so its sums need no correction
+            int ij = indicatorOffsets[j];
+            sx = sxx = 0.0;
+            for ( int k = 0; k < numColumns; k++ ) {
+                double x = standardized[oi + k], y = standardized[oj + k];
+                double xp = x * indicators[ij + k];
+                sxy += x * y;
+                sx += xp;
+                sxx += x * xp;
+            }
+        } else if ( jOutside ) {
+            int ii = indicatorOffsets[i];
+            sy = syy = 0.0;
+            for ( int k = 0; k < numColumns; k++ ) {
+                double x = standardized[oi + k], y = standardized[oj + k];
+                double yp = y * indicators[ii + k];
+                sxy += x * y;
+                sy += yp;
+                syy += y * yp;
+            }
+        } else {
+            sxy = dot( i, j );
+        }
+        return ( sxy - sx * sy / n ) / Math.sqrt( ( sxx - sx * sx / n ) * ( syy - sy * sy / n ) );
+    }
+
+    /**
+     * Compute the correlations of all the pairs of distinct rows, each pair being visited once with i &lt; j.
+     *
+     * @param pool     if not null, tiles are processed concurrently in this pool; otherwise, serially
+     * @param consumer receives the correlations; it must be safe to call concurrently if a pool is given.
+     */
+    public void forEachPair( @Nullable ForkJoinPool pool, PairConsumer consumer ) {
+        List<Callable<Void>> tiles = new ArrayList<>();
+        for ( int i0 = 0; i0 < numRows; i0 += tileSize ) {
+            for ( int j0 = i0; j0 < numRows; j0 += tileSize ) {
+                final int fi = i0, fj = j0;
+                tiles.add( () -> {
+                    tile( fi, Math.min( fi + tileSize, numRows ), fj, Math.min( fj + tileSize, numRows ), consumer );
+                    return null;
+                } );
+            }
+        }
+        run( pool, tiles );
+    }
+
+    /**
+     * Compute the correlations of all the pairs of distinct rows and pass on those whose absolute value exceeds a
+     * threshold, so that they can be written out as they are found.
+     *
+     * @param pool      if not null, tiles are processed concurrently in this pool; otherwise, serially
+     * @param threshold only pairs with an absolute correlation above this value are retained
+     * @param consumer  receives the retained pairs, with i &lt; j; it must be safe to call concurrently if a pool is
+     *                  given.
+     */
+    public void forEachEdge( @Nullable ForkJoinPool pool, double threshold, PairConsumer consumer ) {
+        forEachPair( pool, ( i, j, r ) -> {
+            if ( Math.abs( r ) > threshold ) {
+                consumer.accept( i, j, r );
+            }
+        } );
+    }
+
+    /**
+     * Compute the correlations of all the pairs of distinct rows and keep those whose absolute value exceeds a
+     * threshold.
+     * <p>
+     * Each block of rows is correlated with the rows that follow it in a separate task, which collects its own edges;
+     * these are then copied into a single compressed structure, so memory scales with the number of retained edges.
+     *
+     * @param pool      if not null, blocks of rows are processed concurrently in this pool; otherwise, serially
+     * @param threshold only pairs with an absolute correlation above this value are retained
+     */
+    public CorrelationEdges edges( @Nullable ForkJoinPool pool, double threshold ) {
+        int numBlocks = ( numRows + tileSize - 1 ) / tileSize;
+        final IntArrayList[][] blockColumns = new IntArrayList[numBlocks][];
+        final DoubleArrayList[][] blockValues = new DoubleArrayList[numBlocks][];
+        List<Callable<Void>> tasks = new ArrayList<>( numBlocks );
+        for ( int b = 0; b < numBlocks; b++ ) {
+            final int fb = b;
+            tasks.add( () -> {
+                int i0 = fb * tileSize, i1 = Math.min( i0 + tileSize, numRows );
+                IntArrayList[] columns = new IntArrayList[i1 - i0];
+                DoubleArrayList[] values = new DoubleArrayList[i1 - i0];
+                for ( int i = i0; i < i1; i++ ) {
+                    columns[i - i0] = new IntArrayList();
+                    values[i - i0] = new DoubleArrayList();
+                }
+                // going through the tiles in order keeps the columns of each row sorted
+                for ( int j0 = i0; j0 < numRows; j0 += tileSize ) {
+                    int j1 = Math.min( j0 + tileSize, numRows );
+                    for ( int i = i0; i < i1; i++ ) {
+                        for ( int j = Math.max( j0, i + 1 ); j < j1; j++ ) {
+                            double r = correlation( i, j );
+                            if ( Math.abs( r ) > threshold ) {
+                                columns[i - i0].add( j );
+                                values[i - i0].add( r );
+                            }
+                        }
+                    }
+                }
+                blockColumns[fb] = columns;
+                blockValues[fb] = values;
+                return null;
+            } );
+        }
+        run( pool, tasks );
+
+        int[] rowPointers = new int[numRows + 1];
+        long numEdges = 0;
+        for ( int i = 0; i < numRows; i++ ) {
+            numEdges += blockColumns[i / tileSize][i % tileSize].size();
+            if ( numEdges > Integer.MAX_VALUE ) {
+                throw new IllegalStateException( "Too many correlations above " + threshold + "; use forEachEdge()." );
+            }
+            rowPointers[i + 1] = ( int ) numEdges;
+        }
+        int[] columns = new int[( int ) numEdges];
+        double[] values = new double[( int ) numEdges];
+        for ( int i = 0; i < numRows; i++ ) {
+            IntArrayList c = blockColumns[i / tileSize][i % tileSize];
+            DoubleArrayList v = blockValues[i / tileSize][i % tileSize];
+            System.arraycopy( c.elements(), 0, columns, rowPointers[i], c.size() );
+            System.arraycopy( v.elements(), 0, values, rowPointers[i], v.size() );
+            // release the memory as we go
+            blockColumns[i / tileSize][i % tileSize] = null;
+            blockValues[i / tileSize][i % tileSize] = null;
+        }
+        return new CorrelationEdges( numRows, rowPointers, columns, values );
+    }
+
+    /**
+     * Find, for each row, the k other rows it is the most correlated with.
+     * <p>
+     * Each block of rows is handled by a separate task that keeps a bounded heap of the best partners of each of its
+     * rows, so memory scales with the number of rows times k. Once the heap of a row is full, a pair of rows without
+     * missing values can be skipped after computing only the first half of their dot product: by the Cauchy-Schwarz
+     * inequality, the rest of it cannot exceed the product of the norms of the second halves of the rows.
+     *
+     * @param pool     if not null, blocks of rows are processed concurrently in this pool; otherwise, serially
+     * @param k        maximum number of partners for each row
+     * @param absolute rank the partners by the absolute value of their correlation, otherwise by its signed value
+     * @param prune    skip pairs that cannot make it to the heap using the norm bound described above; this does not
+     *                 change the result
+     */
+    public CorrelationNeighbours nearestNeighbours( @Nullable ForkJoinPool pool, final int k, final boolean absolute,
+            boolean prune ) {
+        if ( k <= 0 ) {
+            throw new IllegalArgumentException( "k must be positive" );
+        }
+        final int split = numColumns / 2;
+        final double[] tailNorms = prune ? new double[numRows] : null;
+        if ( tailNorms != null ) {
+            for ( int i = 0; i < numRows; i++ ) {
+                tailNorms[i] = Math.sqrt( dot( i, i, split, numColumns, 0.0 ) );
+            }
+        }
+        final int[] neighbours = new int[numRows * k];
+        final double[] correlations = new double[numRows * k];
+        final int[] counts = new int[numRows];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for ( int i0 = 0; i0 < numRows; i0 += tileSize ) {
+            final int fi0 = i0, fi1 = Math.min( i0 + tileSize, numRows );
+            tasks.add( () -> {
+                Heap[] heaps = new Heap[fi1 - fi0];
+                for ( int i = fi0; i < fi1; i++ ) {
+                    heaps[i - fi0] = new Heap( k );
+                }
+                for ( int j0 = 0; j0 < numRows; j0 += tileSize ) {
+                    int j1 = Math.min( j0 + tileSize, numRows );
+                    for ( int i = fi0; i < fi1; i++ ) {
+                        Heap heap = heaps[i - fi0];
+                        for ( int j = j0; j < j1; j++ ) {
+                            if ( j == i ) {
+                                continue;
+                            }
+                            double r;
+                            if ( tailNorms != null && heap.size == k && !hasMissing[i] && !hasMissing[j] ) {
+                                double head = dot( i, j, 0, split, 0.0 );
+                                // a little slack for rounding
+                                double bound = tailNorms[i] * tailNorms[j] + 1e-12;
+                                if ( ( absolute ? Math.abs( head ) : head ) + bound < heap.scores[0] ) {
+                                    continue;
+                                }
+                                r = dot( i, j, split, numColumns, head );
+                            } else {
+                                r = correlation( i, j );
+                            }
+                            if ( !Double.isNaN( r ) ) {
+                                heap.offer( absolute ? Math.abs( r ) : r, j, r );
+                            }
+                        }
+                    }
+                }
+                for ( int i = fi0; i < fi1; i++ ) {
+                    Heap heap = heaps[i - fi0];
+                    counts[i] = heap.size;
+                    // the heap yields the worst partners first
+                    for ( int m = heap.size - 1; m >= 0; m-- ) {
+                        neighbours[i * k + m] = heap.indices[0];
+                        correlations[i * k + m] = heap.values[0];
+                        heap.poll();
+                    }
+                }
+                return null;
+            } );
+        }
+        run( pool, tasks );
+        return new CorrelationNeighbours( numRows, k, neighbours, correlations, counts );
+    }
+
+    private void tile( int i0, int i1, int j0, int j1, PairConsumer consumer ) {
+        for ( int i = i0; i < i1; i++ ) {
+            for ( int j = Math.max( j0, i + 1 ); j < j1; j++ ) {
+                consumer.accept( i, j, correlation( i, j ) );
+            }
+        }
+    }
+
+    private double dot( int i, int j ) {
+        return dot( i, j, 0, numColumns, 0.0 );
+    }
+
+    /**
+     * Accumulate the products of the standardized values of rows i and j from column c0 (included) to c1 (excluded).
+     */
+    private double dot( int i, int j, int c0, int c1, double sxy ) {
+        int oi = i * numColumns, oj = j * numColumns;
+        for ( int k = c0; k < c1; k++ ) {
+            sxy += standardized[oi + k] * standardized[oj + k];
+        }
+        return sxy;
+    }
+
+    /**
+     * Bounded min-heap of partners, keyed on their score.
+     */
+    private static final class Heap {
+
+        private final double[] scores;
+        private final int[] indices;
+        private final double[] values;
+        private int size = 0;
+
+        private Heap( int capacity ) {
+            scores = new double[capacity];
+            indices = new int[capacity];
+            values = new double[capacity];
+        }
+
+        /**
+         * Add a partner if the heap is not full, or if it scores higher than the worst one, which it then replaces.
+         */
+        private void offer( double score, int index, double value ) {
+            if ( size < scores.length ) {
+                int m = size++;
+                // sift up
+                while ( m > 0 ) {
+                    int parent = ( m - 1 ) / 2;
+                    if ( scores[parent] <= score ) {
+                        break;
+                    }
+                    set( m, scores[parent], indices[parent], values[parent] );
+                    m = parent;
+                }
+                set( m, score, index, value );
+            } else if ( score > scores[0] ) {
+                siftDown( score, index, value );
+            }
+        }
+
+        /**
+         * Remove the worst partner.
+         */
+        private void poll() {
+            size--;
+            if ( size > 0 ) {
+                siftDown( scores[size], indices[size], values[size] );
+            }
+        }
+
+        private void siftDown( double score, int index, double value ) {
+            int m = 0;
+            while ( true ) {
+                int child = 2 * m + 1;
+                if ( child >= size ) {
+                    break;
+                }
+                if ( child + 1 < size && scores[child + 1] < scores[child] ) {
+                    child++;
+                }
+                if ( score <= scores[child] ) {
+                    break;
+                }
+                set( m, scores[child], indices[child], values[child] );
+                m = child;
+            }
+            set( m, score, index, value );
+        }
+
+        private void set( int m, double score, int index, double value ) {
+            scores[m] = score;
+            indices[m] = index;
+            values[m] = value;
+        }
+    }
+
+    private static void run( @Nullable ForkJoinPool pool, List<Callable<Void>> tasks ) {
+        if ( pool == null ) {
+            try {
+                for ( Callable<Void> task : tasks ) {
+                    task.call();
+                }
+            } catch ( RuntimeException e ) {
+                throw e;
+            } catch ( Exception e ) {
+                throw new RuntimeException( e );
+            }
+            return;
+        }
+        try {
+            for ( Future<Void> f : pool.invokeAll( tasks ) ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while computing correlations", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            } else if ( e.getCause() instanceof Error ) {
+                throw ( Error ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+}
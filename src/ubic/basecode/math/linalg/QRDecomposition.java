@@ -18,21 +18,38 @@ import cern.colt.list.IntArrayList;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
-import cern.jet.math.Functions;
+import dev.ludovic.netlib.lapack.LAPACK;
 import no.uib.cipr.matrix.DenseMatrix;
 import no.uib.cipr.matrix.Matrices;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.netlib.lapack.Dpotri;
+import org.jspecify.annotations.Nullable;
 import org.netlib.util.intW;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix1D;
 import ubic.basecode.dataStructure.matrix.MatrixUtil;
+import ubic.basecode.util.Configuration;
+
+import java.util.Arrays;
 
 /**
  * QR with pivoting. See http://www.netlib.org/lapack/lug/node42.html and http://www.netlib.org/lapack/lug/node27.html,
  * and Golub and VanLoan, section 5.5.6+. Designed to mimic the way R does this by default.
+ * <p>
+ * When possible, the decomposition is computed with LAPACK (dgeqrf), using a native implementation if one is installed
+ * and the pure Java one otherwise. LAPACK does not do the limited pivoting of R, so whenever a column would have been
+ * pivoted (or if there are fewer rows than columns), the decomposition is redone with the Java implementation. Either
+ * way, the rank, pivot order, compact QR and qraux are converted to the LINPACK form used by R, and only that form is
+ * kept, so effects and least squares solutions are computed the same way for both. The LAPACK path can be disabled by setting the {@code qr.lapack}
+ * configuration to false, see {@link Configuration}.
+ * <p>
+ * The Java implementation is a blocked version of dqrdc2 working on a contiguous column-major array: the reflectors
+ * are computed one panel of {@link #BLOCK_SIZE} columns at a time and applied to the remaining columns all at once in
+ * the compact WY form (see Schreiber and Van Loan, 1989). Pivoting decisions are made exactly as in dqrdc2, since the
+ * norms of the remaining columns are downdated in the same order. Effects and least squares solutions for several
+ * right-hand sides apply the reflectors in blocks as well.
  * 
  * @author paul
  */
@@ -40,6 +57,19 @@ public class QRDecomposition {
 
     private static Logger log = LoggerFactory.getLogger( QRDecomposition.class );
 
+    /**
+     * Margin applied to the tolerance when deciding if the LAPACK decomposition can be used. The Java implementation
+     * decides to pivot based on downdated norms which are only approximations of the diagonal of R, so we fall back on
+     * it well before the tolerance is reached.
+     */
+    private static final double LAPACK_TOLERANCE_MARGIN = 10.0;
+
+    /**
+     * Number of Householder reflectors that are accumulated before being applied to the remaining columns or to the
+     * right-hand sides.
+     */
+    static final int BLOCK_SIZE = 32;
+
     private DenseDoubleMatrix2D chol2inv;
 
     private int[] jpvt;
@@ -59,12 +89,6 @@ public class QRDecomposition {
      */
     private boolean pivoting = true;
 
-    /**
-     * Contains the compact QR: R in the upper triangle, Q is recoverable from the lower part. FIXME if we have to
-     * access this as a raw array the DoubleMatrix2D API is inefficient.
-     */
-    private DoubleMatrix2D QR;
-
     /**
      * Auxiliary information used to contsruct Q from the economy-sized QR.
      */
@@ -92,6 +116,16 @@ public class QRDecomposition {
 
     private DoubleMatrix2D effects;
 
+    /**
+     * Contains the compact QR, column-major: R in the upper triangle, Q is recoverable from the lower part.
+     */
+    private double[] compactQR;
+
+    /**
+     * If the decomposition was computed with LAPACK.
+     */
+    private boolean lapack = false;
+
     /**
      * @param A the matrix to decompose, pivoting will be used.
      */
@@ -106,11 +140,18 @@ public class QRDecomposition {
      * @param pivoting set to false to obtain standard QR behaviour.
      */
     public QRDecomposition( final DoubleMatrix2D A, boolean pivoting ) {
-        // Initialize.
-        this.QR = A.copy();
+        this( A, pivoting, !Boolean.FALSE.equals( Configuration.getBoolean( "qr.lapack" ) ) );
+    }
+
+    /**
+     * @param A the matrix to decompose
+     * @param pivoting set to false to obtain standard QR behaviour.
+     * @param useLapack attempt the decomposition with LAPACK, falling back on the Java implementation if it would
+     *        need pivoting; if false, the Java implementation is always used.
+     */
+    public QRDecomposition( final DoubleMatrix2D A, boolean pivoting, boolean useLapack ) {
         this.n = A.rows();
         this.p = A.columns();
-        this.Rdiag = A.like1D( p );
         this.pivoting = pivoting;
 
         // initialization
@@ -119,101 +160,11 @@ public class QRDecomposition {
             jpvt[i] = i;
         }
 
-        // initialization. We always compute qraux here.
-        DoubleMatrix1D originalNorms;
-        originalNorms = new DenseDoubleMatrix1D( p ); // "work" in linpack
-        qraux = new DenseDoubleMatrix1D( p );
-        for ( int i = 0; i < p; i++ ) {
-            DoubleMatrix1D col = QR.viewColumn( i );
-            double norm2 = 0;
-            for ( int r = 0; r < n; r++ ) {
-                norm2 = hypot( norm2, col.getQuick( r ) );
-            }
-            qraux.set( i, norm2 );
-            originalNorms.set( i, norm2 == 0.0 ? 1.0 : norm2 );
+        if ( useLapack && p > 0 && n >= p && decomposeWithLapack( A ) ) {
+            return;
         }
 
-        // precompute and cache some views to avoid regenerating them time and again
-        DoubleMatrix1D[] QRcolumns = new DoubleMatrix1D[p];
-        DoubleMatrix1D[] QRcolumnsPart = new DoubleMatrix1D[p];
-        for ( int v = 0; v < p; v++ ) {
-            QRcolumns[v] = QR.viewColumn( v );
-            QRcolumnsPart[v] = QR.viewColumn( v ).viewPart( v, n - v ); // upper triangle.
-        }
-
-        rank = p;
-
-        // Main loop.
-        for ( int v = 0; v < p; v++ ) {
-
-            /*
-             * Rotate columns until we find one with a non-negligible norm. This is the pivoting strategy used in
-             * dqrdc2, which puts small columns to the right. See R documentation for qr and
-             * https://svn.r-project.org/R/trunk/src/appl/dqrdc2.f
-             */
-            while ( pivoting && v < rank && qraux.get( v ) < originalNorms.get( v ) * tolerance ) {
-                log.debug( "Rotating " + v );
-                rotate( QR, originalNorms, v );
-            }
-
-            DoubleMatrix1D colv = QRcolumns[v];
-            double nrm = 0;
-            for ( int i = v; i < n; i++ ) {
-                nrm = hypot( nrm, colv.getQuick( i ) );
-            }
-
-            /*
-             * "Householder reflections can be used to calculate QR decompositions by reflecting first one column of a
-             * matrix onto a multiple of a standard basis vector, calculating the transformation matrix, multiplying it
-             * with the original matrix and then recursing down the (i, i) minors of that product."
-             */
-            if ( nrm != 0.0 ) {
-                // Form k-th Householder vector: scale and flip
-                if ( QR.getQuick( v, v ) < 0 ) nrm = -nrm; // dsign
-                QRcolumnsPart[v].assign( Functions.div( nrm ) ); // dscal
-
-                QR.setQuick( v, v, QR.getQuick( v, v ) + 1.0 ); // update diagonal
-
-                // Apply transformation to remaining columns.
-                for ( int j = v + 1; j < p; j++ ) {
-                    DoubleMatrix1D QRcolj = QR.viewColumn( j ).viewPart( v, n - v );
-                    double s = QRcolumnsPart[v].zDotProduct( QRcolj );
-
-                    s = -s / QR.getQuick( v, v );
-                    for ( int i = v; i < n; i++ ) {
-                        QR.setQuick( i, j, QR.getQuick( i, j ) + s * QR.getQuick( i, v ) );
-                    }
-
-                    if ( qraux.getQuick( j ) == 0 ) {
-                        continue;
-                    }
-
-                    /*
-                     * Update the norm of this column. Used even if we are not pivoting.
-                     */
-                    double tt = QR.getQuick( v, j ) / qraux.getQuick( j );
-                    double t = Math.max( 1.0 - Math.pow( tt, 2 ), 0.0 );
-                    if ( t < 1e-6 ) {
-                        DoubleMatrix1D col = QR.viewColumn( j );
-                        double nrmv = 0.0;
-                        for ( int r = v + 1; r < n; r++ ) {
-                            nrmv = hypot( nrmv, col.getQuick( r ) );
-                        }
-                        qraux.set( j, nrmv );
-                    } else {
-                        qraux.set( j, qraux.getQuick( j ) * Math.sqrt( t ) );
-                    }
-                }
-                if ( log.isDebugEnabled() ) log.debug( qraux.toString() );
-
-            }
-
-            // save transformation parts we are done with.
-            qraux.set( v, QR.getQuick( v, v ) );
-            QR.setQuick( v, v, -nrm );
-            Rdiag.setQuick( v, -nrm );
-        }
-        rank = Math.min( rank, n );
+        decompose( A );
     }
 
     /**
@@ -239,10 +190,20 @@ public class QRDecomposition {
      * @return vector of effects - these are the projections of y into Q column space
      */
     public DoubleMatrix1D effects( DoubleMatrix1D y ) {
+        DoubleMatrix1D yWithoutMissing = MatrixUtil.removeMissingOrInfinite( y );
+        if ( yWithoutMissing.size() == n ) {
+            double[] qty = yWithoutMissing.toArray();
+            for ( int v = 0; v < p; v++ ) {
+                if ( qraux.getQuick( v ) != 0.0 ) {
+                    applyReflector( compactQR, n, v, qraux.getQuick( v ), qty, 0 );
+                }
+            }
+            return new DenseDoubleMatrix1D( qty );
+        }
 
         double[] qty = new double[y.size()];
         double[] junk = new double[y.size()];
-        ubic.basecode.math.linalg.Dqrsl.dqrsl_j( QR.toArray(), QR.rows(), QR.columns(), qraux.toArray(), MatrixUtil.removeMissingOrInfinite( y ).toArray(),
+        ubic.basecode.math.linalg.Dqrsl.dqrsl_j( getQR().toArray(), n, p, qraux.toArray(), MatrixUtil.removeMissingOrInfinite( y ).toArray(),
                 junk, qty,
                 junk, junk, junk, 1000 );
         return new DenseDoubleMatrix1D( qty );
@@ -257,6 +218,12 @@ public class QRDecomposition {
      *         so values are "effects" each basis vector on the data
      */
     public DoubleMatrix2D effects( DoubleMatrix2D y ) {
+        if ( y.rows() == n ) {
+            double[] qty = blockedEffects( y );
+            if ( qty != null ) {
+                return toMatrix( qty, n, y.columns() );
+            }
+        }
         double[][] efa = new double[y.columns()][y.rows()];
         for ( int i = 0; i < y.columns(); i++ ) {
             efa[i] = effects( y.viewColumn( i ) ).toArray();
@@ -271,6 +238,36 @@ public class QRDecomposition {
         return new IntArrayList( jpvt );
     }
 
+    /**
+     * Diagonal of the hat matrix, i.e. the leverages of the rows of the decomposed matrix: the squared norms of the rows
+     * of the first <tt>rank</tt> columns of <tt>Q</tt>. Unlike {@link #getQ()}, this does not modify or cache anything,
+     * so it can be called concurrently.
+     *
+     * @return one value per row of the decomposed matrix
+     */
+    public double[] hatValues() {
+        double[] h = new double[n];
+        double[][] q = new double[rank][];
+        for ( int k = 0; k < rank; k++ ) {
+            q[k] = new double[n];
+            q[k][k] = 1.0;
+            for ( int v = p - 1; v >= 0; v-- ) {
+                if ( qraux.getQuick( v ) != 0.0 ) {
+                    applyReflector( compactQR, n, v, qraux.getQuick( v ), q[k], 0 );
+                }
+            }
+        }
+        // summed in the same order as the rows of getQ() are aggregated
+        for ( int i = 0; i < n; i++ ) {
+            double hi = 0.0;
+            for ( int k = rank - 1; k >= 0; k-- ) {
+                hi += q[k][i] * q[k][i];
+            }
+            h[i] = hi;
+        }
+        return h;
+    }
+
     /**
      * Generates and returns the (economy-sized - first <tt>p</tt> columns only) orthogonal factor <tt>Q</tt>.
      * 
@@ -281,35 +278,16 @@ public class QRDecomposition {
         // For efficienty we do this... but really we should avoid directly getting Q.
         if ( this.Qcached != null ) return Qcached;
 
-        DoubleMatrix2D Q = QR.like();
-
-        for ( int i = 0; i < Q.columns(); i++ ) {
-            Q.set( i, i, 1 );
-        }
-
+        double[] q = new double[n * p];
         for ( int jy = 0; jy < p; jy++ ) {
-
-            DoubleMatrix1D y = Q.viewColumn( jy );
-
-            for ( int jj = 1; jj <= p; jj++ ) {
-                int j = p - jj;
-
-                if ( qraux.get( j ) == 0.0 ) {
-                    continue;
+            q[jy + jy * n] = 1.0;
+            for ( int j = p - 1; j >= 0; j-- ) {
+                if ( qraux.getQuick( j ) != 0.0 ) {
+                    applyReflector( compactQR, n, j, qraux.getQuick( j ), q, jy * n );
                 }
-
-                double temp = QR.get( j, j );
-                QR.set( j, j, qraux.get( j ) );
-                DoubleMatrix1D QRcolv = QR.viewColumn( j ).viewPart( j, n - j );
-                DoubleMatrix1D Qcolj = y.viewPart( j, n - j );
-                double s = QRcolv.zDotProduct( Qcolj );
-                s = -s / QR.getQuick( j, j );
-
-                Qcolj.assign( QRcolv, Functions.plusMult( s ) );
-
-                QR.set( j, j, temp );
             }
         }
+        DoubleMatrix2D Q = toMatrix( q, n, p );
         this.Qcached = Q;
         return Q;
 
@@ -328,11 +306,11 @@ public class QRDecomposition {
      * @return <tt>R</tt>
      */
     public DoubleMatrix2D getR() {
-        DoubleMatrix2D R = QR.like( p, p );
+        DoubleMatrix2D R = new DenseDoubleMatrix2D( p, p );
         for ( int i = 0; i < p; i++ ) {
             for ( int j = 0; j < p; j++ ) {
                 if ( i < j )
-                    R.setQuick( i, j, QR.getQuick( i, j ) );
+                    R.setQuick( i, j, compactQR[i + j * n] );
                 else if ( i == j )
                     R.setQuick( i, j, Rdiag.getQuick( i ) );
                 else
@@ -362,6 +340,13 @@ public class QRDecomposition {
         return rank == p;
     }
 
+    /**
+     * @return true if the decomposition was computed with LAPACK, false if the Java implementation was used
+     */
+    public boolean isLapack() {
+        return lapack;
+    }
+
     /**
      * @return true if pivoting was used (just whether it was set; not whether any actual pivoting happened)
      */
@@ -389,6 +374,11 @@ public class QRDecomposition {
             throw new IllegalArgumentException( "Matrix is rank deficient; try using pivoting" );
         }
 
+        double[] qty = blockedEffects( y );
+        if ( qty != null ) {
+            return backSolve( qty, y.columns() );
+        }
+
         DoubleMatrix2D qTy = effects( y ); // FIXME we use this again later, but we recompute it. Try to cache it.
 
         // Solve R*X = Y => X = RinvY; backsubstitution
@@ -400,7 +390,7 @@ public class QRDecomposition {
             for ( int i = 0; i < k1; i++ ) {
                 // sum up to the parameter we've done.
                 for ( int j = 0; j < y.columns(); j++ ) {
-                    qTy.setQuick( i, j, qTy.getQuick( i, j ) - qTy.getQuick( k1, j ) * QR.getQuick( i, k1 ) );
+                    qTy.setQuick( i, j, qTy.getQuick( i, j ) - qTy.getQuick( k1, j ) * compactQR[i + k1 * n] );
                 }
             }
         }
@@ -476,10 +466,387 @@ public class QRDecomposition {
     /**
      * For testing.
      * 
-     * @return
+     * @return the compact QR, built on each call
      */
     protected DoubleMatrix2D getQR() {
-        return QR;
+        return toMatrix( compactQR, n, p );
+    }
+
+    /**
+     * Blocked dqrdc2.
+     */
+    private void decompose( DoubleMatrix2D A ) {
+        if ( n < p ) {
+            throw new IllegalArgumentException( "Cannot decompose a matrix with more columns than rows." );
+        }
+        double[] a = toColumnMajor( A );
+        double[] aux = new double[p]; // downdated norms, then the first element of each reflector
+        double[] originalNorms = new double[p]; // "work" in linpack
+        double[] rdiag = new double[p];
+        for ( int j = 0; j < p; j++ ) {
+            aux[j] = norm( a, j * n, ( j + 1 ) * n );
+            originalNorms[j] = aux[j] == 0.0 ? 1.0 : aux[j];
+        }
+
+        rank = p;
+
+        int panelStart = 0;
+        int panelEnd = Math.min( BLOCK_SIZE, p );
+        for ( int v = 0; v < p; v++ ) {
+            if ( v == panelEnd ) {
+                updateTrailingColumns( a, aux, panelStart, v, v );
+                panelStart = v;
+                panelEnd = Math.min( v + BLOCK_SIZE, p );
+            }
+
+            /*
+             * Rotate columns until we find one with a non-negligible norm. This is the pivoting strategy used in
+             * dqrdc2, which puts small columns to the right. See R documentation for qr and
+             * https://svn.r-project.org/R/trunk/src/appl/dqrdc2.f
+             */
+            if ( pivoting && v < rank && aux[v] < originalNorms[v] * tolerance ) {
+                // the columns beyond the panel are moved around, so they have to be brought up to date first
+                updateTrailingColumns( a, aux, panelStart, v, panelEnd );
+                panelStart = v;
+                panelEnd = Math.min( v + BLOCK_SIZE, p );
+                while ( pivoting && v < rank && aux[v] < originalNorms[v] * tolerance ) {
+                    log.debug( "Rotating " + v );
+                    rotate( a, aux, originalNorms, v );
+                }
+            }
+
+            int cv = v * n;
+            double nrm = norm( a, cv + v, cv + n );
+            if ( nrm != 0.0 ) {
+                // Form k-th Householder vector: scale and flip
+                if ( a[cv + v] < 0 ) nrm = -nrm; // dsign
+                double scale = 1.0 / nrm;
+                for ( int i = v; i < n; i++ ) {
+                    a[cv + i] *= scale; // dscal
+                }
+                a[cv + v] += 1.0;
+
+                // Apply transformation to the remaining columns of the panel; the others are done in a block.
+                for ( int j = v + 1; j < panelEnd; j++ ) {
+                    applyReflector( a, n, v, a[cv + v], a, j * n );
+                    downdateNorm( a, aux, v, j );
+                }
+            }
+
+            // save transformation parts we are done with.
+            aux[v] = a[cv + v];
+            a[cv + v] = -nrm;
+            rdiag[v] = -nrm;
+        }
+        rank = Math.min( rank, n );
+
+        this.compactQR = a;
+        this.qraux = new DenseDoubleMatrix1D( aux );
+        this.Rdiag = new DenseDoubleMatrix1D( rdiag );
+    }
+
+    /**
+     * Apply the reflectors from, ..., to - 1 to the columns from firstColumn onwards, and downdate their norms as if
+     * the reflectors had been applied one at a time.
+     */
+    private void updateTrailingColumns( double[] a, double[] aux, int from, int to, int firstColumn ) {
+        if ( from == to || firstColumn == p ) {
+            return;
+        }
+        double[] t = blockReflector( a, aux, from, to );
+        double[] w = new double[to - from];
+        for ( int j = firstColumn; j < p; j++ ) {
+            applyBlockReflector( a, aux, from, to, t, a, j * n, w );
+            for ( int v = from; v < to; v++ ) {
+                // reflectors leave the norm of the rows below them unchanged, so this is what dqrdc2 would see
+                if ( aux[v] != 0.0 ) {
+                    downdateNorm( a, aux, v, j );
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the norm of the part of column j below row v after the reflector v has been applied to it. Used even if
+     * we are not pivoting.
+     */
+    private void downdateNorm( double[] a, double[] aux, int v, int j ) {
+        if ( aux[j] == 0 ) {
+            return;
+        }
+        double tt = a[v + j * n] / aux[j];
+        double t = Math.max( 1.0 - Math.pow( tt, 2 ), 0.0 );
+        if ( t < 1e-6 ) {
+            aux[j] = norm( a, j * n + v + 1, ( j + 1 ) * n );
+        } else {
+            aux[j] = aux[j] * Math.sqrt( t );
+        }
+    }
+
+    /**
+     * Apply the reflector I - u * u' / u_0 stored in column v of the compact QR (with u_0 given separately, since
+     * the diagonal holds either u_0 or R) to the column of c starting at offset co.
+     */
+    private static void applyReflector( double[] a, int n, int v, double u0, double[] c, int co ) {
+        int cv = v * n;
+        double s = -reflectorDot( a, n, v, u0, c, co ) / u0;
+        c[co + v] += s * u0;
+        for ( int i = v + 1; i < n; i++ ) {
+            c[co + i] += s * a[cv + i];
+        }
+    }
+
+    /**
+     * Dot product of the reflector stored in column v with the column of c starting at offset co. The products are
+     * summed in groups of four, in the same order as Colt's zDotProduct, so that the decomposition is rounded exactly
+     * as it was before it worked on arrays; in rank-deficient designs that decides the sign of some columns of R.
+     */
+    private static double reflectorDot( double[] a, int n, int v, double u0, double[] c, int co ) {
+        int cv = v * n;
+        double sum = 0;
+        int i = v;
+        if ( n - v >= 4 ) {
+            sum += u0 * c[co + i] + a[cv + i + 1] * c[co + i + 1] + a[cv + i + 2] * c[co + i + 2]
+                    + a[cv + i + 3] * c[co + i + 3];
+            i += 4;
+            for ( int k = ( n - v ) / 4 - 1; --k >= 0; i += 4 ) {
+                sum += a[cv + i] * c[co + i] + a[cv + i + 1] * c[co + i + 1] + a[cv + i + 2] * c[co + i + 2]
+                        + a[cv + i + 3] * c[co + i + 3];
+            }
+        } else {
+            sum += u0 * c[co + i];
+            i++;
+        }
+        for ( ; i < n; i++ ) {
+            sum += a[cv + i] * c[co + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Form the triangular factor T of the compact WY representation H_from ... H_(to - 1) = I - V T V' of a block of
+     * reflectors, as in LAPACK dlarft. Reflectors with a zero qraux are the identity.
+     *
+     * @return T, upper triangular and column-major
+     */
+    private double[] blockReflector( double[] a, double[] aux, int from, int to ) {
+        int nb = to - from;
+        double[] t = new double[nb * nb];
+        double[] dots = new double[nb];
+        for ( int jj = 0; jj < nb; jj++ ) {
+            int j = from + jj;
+            if ( aux[j] == 0.0 ) {
+                continue;
+            }
+            double tau = 1.0 / aux[j];
+            t[jj + jj * nb] = tau;
+            for ( int ii = 0; ii < jj; ii++ ) {
+                int i = from + ii;
+                if ( aux[i] == 0.0 ) {
+                    dots[ii] = 0.0;
+                    continue;
+                }
+                double d = a[j + i * n] * aux[j];
+                for ( int r = j + 1; r < n; r++ ) {
+                    d += a[r + i * n] * a[r + j * n];
+                }
+                dots[ii] = d;
+            }
+            for ( int ii = 0; ii < jj; ii++ ) {
+                double s = 0.0;
+                for ( int kk = ii; kk < jj; kk++ ) {
+                    s += t[ii + kk * nb] * dots[kk];
+                }
+                t[ii + jj * nb] = -tau * s;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Apply (H_from ... H_(to - 1))' = I - V T' V' to the column of c starting at offset co.
+     *
+     * @param w workspace of size to - from
+     */
+    private void applyBlockReflector( double[] a, double[] aux, int from, int to, double[] t, double[] c, int co,
+            double[] w ) {
+        int nb = to - from;
+        for ( int ii = 0; ii < nb; ii++ ) {
+            int i = from + ii;
+            if ( aux[i] == 0.0 ) {
+                w[ii] = 0.0;
+                continue;
+            }
+            double s = aux[i] * c[co + i];
+            for ( int r = i + 1; r < n; r++ ) {
+                s += a[r + i * n] * c[co + r];
+            }
+            w[ii] = s;
+        }
+        for ( int jj = nb - 1; jj >= 0; jj-- ) {
+            double s = 0.0;
+            for ( int ii = 0; ii <= jj; ii++ ) {
+                s += t[ii + jj * nb] * w[ii];
+            }
+            w[jj] = s;
+        }
+        for ( int ii = 0; ii < nb; ii++ ) {
+            int i = from + ii;
+            double s = w[ii];
+            if ( s == 0.0 ) {
+                continue;
+            }
+            c[co + i] -= aux[i] * s;
+            for ( int r = i + 1; r < n; r++ ) {
+                c[co + r] -= a[r + i * n] * s;
+            }
+        }
+    }
+
+    /**
+     * Compute Q'y, applying the reflectors to all the columns of y one block at a time.
+     *
+     * @return Q'y in column-major order, or null if y has missing or infinite values
+     */
+    @Nullable
+    private double[] blockedEffects( DoubleMatrix2D y ) {
+        int k = y.columns();
+        double[] c = toColumnMajor( y );
+        for ( double val : c ) {
+            if ( !Double.isFinite( val ) ) {
+                return null;
+            }
+        }
+        // always blocked, so that each column gets the same result however the right-hand sides are batched
+        double[] aux = qraux.toArray();
+        double[] w = new double[BLOCK_SIZE];
+        for ( int from = 0; from < p; from += BLOCK_SIZE ) {
+            int to = Math.min( from + BLOCK_SIZE, p );
+            double[] t = blockReflector( compactQR, aux, from, to );
+            for ( int j = 0; j < k; j++ ) {
+                applyBlockReflector( compactQR, aux, from, to, t, c, j * n, w );
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Solve R * X = Q'y by back-substitution, leaving the coefficients that could not be estimated missing.
+     *
+     * @param qty Q'y in column-major order
+     * @param k number of columns of y
+     */
+    private DoubleMatrix2D backSolve( double[] qty, int k ) {
+        double[] rdiag = Rdiag.toArray();
+        for ( int j = 0; j < k; j++ ) {
+            int cj = j * n;
+            for ( int k1 = rank - 1; k1 >= 0; k1-- ) {
+                double x = qty[cj + k1] / rdiag[k1];
+                qty[cj + k1] = x;
+                int ck1 = k1 * n;
+                for ( int i = 0; i < k1; i++ ) {
+                    qty[cj + i] -= x * compactQR[ck1 + i];
+                }
+            }
+        }
+
+        // Pad back out to the full length p, and (if pivoted) in the right original order using jpvt
+        DoubleMatrix2D coeff = new DenseDoubleMatrix2D( p, k );
+        coeff.assign( Double.NaN );
+        for ( int i = 0; i < rank; i++ ) {
+            int piv = jpvt[i];
+            for ( int j = 0; j < k; j++ ) {
+                coeff.setQuick( piv, j, qty[i + j * n] );
+            }
+        }
+        return coeff;
+    }
+
+    /**
+     * Decompose A with dgeqrf and convert the result to the LINPACK form, unless some column would have been pivoted by
+     * dqrdc2.
+     *
+     * @return true if the decomposition was done, false if the Java implementation must be used instead
+     */
+    private boolean decomposeWithLapack( DoubleMatrix2D A ) {
+        double[] a = toColumnMajor( A );
+        double[] originalNorms = new double[p];
+        for ( int j = 0; j < p; j++ ) {
+            double norm2 = norm( a, j * n, ( j + 1 ) * n );
+            originalNorms[j] = norm2 == 0.0 ? 1.0 : norm2;
+        }
+
+        double[] tau = new double[p];
+        intW info = new intW( 0 );
+        double[] work = new double[1];
+        LAPACK lapack = LAPACK.getInstance();
+        lapack.dgeqrf( n, p, a, n, tau, work, -1, info );
+        work = new double[Math.max( 1, ( int ) work[0] )];
+        lapack.dgeqrf( n, p, a, n, tau, work, work.length, info );
+        if ( info.val != 0 ) {
+            log.warn( "dgeqrf failed with info=" + info.val + ", falling back on the Java implementation" );
+            return false;
+        }
+
+        // |R_vv| is the norm of column v after removing its projection on the previous columns, which is what dqrdc2
+        // compares to the original norm when deciding to pivot. This also catches non-finite values.
+        for ( int v = 0; v < p; v++ ) {
+            if ( !( Math.abs( a[v + v * n] ) >= originalNorms[v] * tolerance * LAPACK_TOLERANCE_MARGIN ) ) {
+                log.debug( "Column " + v + " is near-collinear, using the Java implementation" );
+                return false;
+            }
+        }
+
+        /*
+         * Both use the same Householder reflections, H = I - tau * v * v' with v_0 = 1, but LINPACK stores u = tau * v
+         * below the diagonal and tau in qraux. The only difference is when the column is already reduced: LAPACK then
+         * skips the reflection (tau = 0) whereas LINPACK reflects it onto -e_1, flipping the sign of the row of R.
+         */
+        double[] qr = new double[n * p];
+        double[] rdiag = new double[p];
+        double[] aux = new double[p];
+        boolean[] flipped = new boolean[p];
+        for ( int v = 0; v < p; v++ ) {
+            flipped[v] = tau[v] == 0.0;
+            for ( int i = 0; i < v; i++ ) {
+                qr[i + v * n] = flipped[i] ? -a[i + v * n] : a[i + v * n];
+            }
+            rdiag[v] = flipped[v] ? -a[v + v * n] : a[v + v * n];
+            qr[v + v * n] = rdiag[v];
+            aux[v] = flipped[v] ? 2.0 : tau[v];
+            for ( int i = v + 1; i < n; i++ ) {
+                qr[i + v * n] = tau[v] * a[i + v * n];
+            }
+        }
+
+        // the LAPACK form is not kept
+        this.compactQR = qr;
+        this.Rdiag = new DenseDoubleMatrix1D( rdiag );
+        this.qraux = new DenseDoubleMatrix1D( aux );
+        this.rank = p;
+        this.lapack = true;
+        return true;
+    }
+
+    private static double[] toColumnMajor( DoubleMatrix2D m ) {
+        int rows = m.rows();
+        double[] result = new double[rows * m.columns()];
+        for ( int j = 0; j < m.columns(); j++ ) {
+            for ( int i = 0; i < rows; i++ ) {
+                result[i + j * rows] = m.getQuick( i, j );
+            }
+        }
+        return result;
+    }
+
+    private static DoubleMatrix2D toMatrix( double[] columnMajor, int rows, int columns ) {
+        DoubleMatrix2D result = new DenseDoubleMatrix2D( rows, columns );
+        for ( int j = 0; j < columns; j++ ) {
+            for ( int i = 0; i < rows; i++ ) {
+                result.setQuick( i, j, columnMajor[i + j * rows] );
+            }
+        }
+        return result;
     }
 
     /**
@@ -521,32 +888,42 @@ public class QRDecomposition {
     }
 
     /**
-     * @param x
+     * Euclidean norm of a[from], ..., a[to - 1], without under/overflow.
+     */
+    private double norm( double[] a, int from, int to ) {
+        double nrm = 0;
+        for ( int i = from; i < to; i++ ) {
+            nrm = hypot( nrm, a[i] );
+        }
+        return nrm;
+    }
+
+    /**
+     * Move column v to the end, shifting the following ones to the left.
+     *
+     * @param a column-major matrix
+     * @param aux
      * @param work
      * @param v
      */
-    private void rotate( DoubleMatrix2D x, DoubleMatrix1D work, int v ) {
-        for ( int i = 0; i < n; i++ ) {
-            double t = x.get( i, v );
-            for ( int j = v; j < p - 1; j++ ) {
-                x.set( i, j, x.get( i, j + 1 ) );
-            }
-            x.set( i, p - 1, t );
-        }
+    private void rotate( double[] a, double[] aux, double[] work, int v ) {
+        double[] col = Arrays.copyOfRange( a, v * n, ( v + 1 ) * n );
+        System.arraycopy( a, ( v + 1 ) * n, a, v * n, ( p - 1 - v ) * n );
+        System.arraycopy( col, 0, a, ( p - 1 ) * n, n );
 
         // do the same rotation to our helpers
         int i = jpvt[v];
-        double t = qraux.get( v );
-        double w0 = work.get( v );
+        double t = aux[v];
+        double w0 = work[v];
 
         for ( int j = v; j < p - 1; j++ ) {
             jpvt[j] = jpvt[j + 1];
-            qraux.set( j, qraux.get( j + 1 ) );
-            work.set( j, work.get( j + 1 ) );
+            aux[j] = aux[j + 1];
+            work[j] = work[j + 1];
         }
         jpvt[p - 1] = i;
-        qraux.set( p - 1, t );
-        work.set( p - 1, w0 );
+        aux[p - 1] = t;
+        work[p - 1] = w0;
         rank = rank - 1;
     }
 
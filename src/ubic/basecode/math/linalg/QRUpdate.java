@@ -0,0 +1,181 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linalg;
+
+/**
+ * Updates the triangular factor R of a QR decomposition with Givens rotations when a row is added to, or removed from,
+ * the decomposed matrix X, instead of decomposing it again. The projections z = Q'y of responses on the columns of Q
+ * are updated with the same rotations, along with their residual sums of squares.
+ * <p>
+ * These are Java versions of the LINPACK routines DCHUD and DCHDD, which update R as the Cholesky factor of X'X: adding
+ * or removing a row costs O(p^2) for R and O(p) for each response, where p is the number of columns of X.
+ * <p>
+ * R is held as a p x p array (row-major, only the upper triangle is used) and is modified in place. The rotations
+ * returned by {@link #update(double[][], double[])} and {@link #downdate(double[][], double[])} are then applied to each
+ * response separately, possibly concurrently.
+ *
+ * @author poirigui
+ */
+public final class QRUpdate {
+
+    private QRUpdate() {
+    }
+
+    /**
+     * Update R for a row added to X (LINPACK DCHUD).
+     *
+     * @param r upper triangular factor, p x p, modified in place
+     * @param x the added row, in the order of the columns of R (i.e. pivoted, if applicable)
+     * @return the rotations, to be passed to {@link #updateEffects(double[], double[], int, double)}
+     */
+    public static double[] update( double[][] r, double[] x ) {
+        int p = r.length;
+        checkRow( p, x );
+        double[] c = new double[p];
+        double[] s = new double[p];
+        double[] rotvec = new double[4];
+        for ( int j = 0; j < p; j++ ) {
+            double xj = x[j];
+            // apply the previous rotations
+            for ( int i = 0; i < j; i++ ) {
+                double t = c[i] * r[i][j] + s[i] * xj;
+                xj = c[i] * xj - s[i] * r[i][j];
+                r[i][j] = t;
+            }
+            // compute the next rotation
+            rotvec[0] = r[j][j];
+            rotvec[1] = xj;
+            Blas.drotg_j( rotvec );
+            r[j][j] = rotvec[0];
+            c[j] = rotvec[2];
+            s[j] = rotvec[3];
+        }
+        return rotations( c, s );
+    }
+
+    /**
+     * Update the projection of a response for a row added to X.
+     *
+     * @param rotations as returned by {@link #update(double[][], double[])}
+     * @param z         projections Q'y of the response on the p columns of Q, modified in place
+     * @param offset    position of the first projection in z
+     * @param y         value of the response for the added row
+     * @return the component of y orthogonal to the columns of X; its square is to be added to the residual sum of
+     * squares of the response
+     */
+    public static double updateEffects( double[] rotations, double[] z, int offset, double y ) {
+        int p = rotations.length / 2;
+        double zeta = y;
+        for ( int i = 0; i < p; i++ ) {
+            double c = rotations[i], s = rotations[p + i];
+            double t = c * z[offset + i] + s * zeta;
+            zeta = c * zeta - s * z[offset + i];
+            z[offset + i] = t;
+        }
+        return zeta;
+    }
+
+    /**
+     * Update R for a row removed from X (LINPACK DCHDD).
+     *
+     * @param r upper triangular factor, p x p, modified in place only if the row can be removed
+     * @param x the removed row, in the order of the columns of R (i.e. pivoted, if applicable)
+     * @return the rotations, to be passed to {@link #downdateEffects(double[], double[], int, double)}
+     * @throws IllegalArgumentException if X would not have full rank without the row, or R is singular
+     */
+    public static double[] downdate( double[][] r, double[] x ) {
+        int p = r.length;
+        checkRow( p, x );
+
+        // solve R'a = x
+        double[] s = new double[p];
+        for ( int j = 0; j < p; j++ ) {
+            if ( r[j][j] == 0.0 ) {
+                throw new IllegalArgumentException( "R is singular" );
+            }
+            double t = x[j];
+            for ( int i = 0; i < j; i++ ) {
+                t -= r[i][j] * s[i];
+            }
+            s[j] = t / r[j][j];
+        }
+        double norm = Blas.dnrm2_j( p, s, 1 );
+        if ( !( norm < 1.0 ) ) {
+            throw new IllegalArgumentException( "The matrix would not have full rank without the row" );
+        }
+
+        // determine the transformations
+        double alpha = Math.sqrt( 1.0 - norm * norm );
+        double[] c = new double[p];
+        for ( int i = p - 1; i >= 0; i-- ) {
+            double scale = alpha + Math.abs( s[i] );
+            double a = alpha / scale;
+            double b = s[i] / scale;
+            norm = Math.sqrt( a * a + b * b );
+            c[i] = a / norm;
+            s[i] = b / norm;
+            alpha = scale * norm;
+        }
+
+        // apply the transformations to R
+        for ( int j = 0; j < p; j++ ) {
+            double xx = 0.0;
+            for ( int i = j; i >= 0; i-- ) {
+                double t = c[i] * xx + s[i] * r[i][j];
+                r[i][j] = c[i] * r[i][j] - s[i] * xx;
+                xx = t;
+            }
+        }
+        return rotations( c, s );
+    }
+
+    /**
+     * Update the projection of a response for a row removed from X.
+     *
+     * @param rotations as returned by {@link #downdate(double[][], double[])}
+     * @param z         projections Q'y of the response on the p columns of Q, modified in place
+     * @param offset    position of the first projection in z
+     * @param y         value of the response for the removed row
+     * @return the component of y that was orthogonal to the columns of X; its square is to be subtracted from the
+     * residual sum of squares of the response
+     */
+    public static double downdateEffects( double[] rotations, double[] z, int offset, double y ) {
+        int p = rotations.length / 2;
+        double zeta = y;
+        for ( int i = 0; i < p; i++ ) {
+            double c = rotations[i], s = rotations[p + i];
+            z[offset + i] = ( z[offset + i] - s * zeta ) / c;
+            zeta = c * zeta - s * z[offset + i];
+        }
+        return zeta;
+    }
+
+    private static void checkRow( int p, double[] x ) {
+        if ( x.length != p ) {
+            throw new IllegalArgumentException( "Row must have " + p + " values, got " + x.length );
+        }
+    }
+
+    /**
+     * @return cosines followed by sines
+     */
+    private static double[] rotations( double[] c, double[] s ) {
+        int p = c.length;
+        double[] result = new double[2 * p];
+        System.arraycopy( c, 0, result, 0, p );
+        System.arraycopy( s, 0, result, p, p );
+        return result;
+    }
+}
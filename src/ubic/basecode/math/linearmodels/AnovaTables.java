@@ -0,0 +1,65 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import java.util.Arrays;
+
+/**
+ * ANOVA tables of all the rows of a {@link LeastSquaresFit}, stored by column like {@link LinearModelSummaries}: for
+ * each statistic, there is one array per term, indexed by row. The last term is the residuals, for which the F
+ * statistics and p-values are missing.
+ *
+ * @author poirigui
+ */
+final class AnovaTables {
+
+    final double[][] ssq;
+    final double[][] dof;
+    final double[][] fStats;
+    final double[][] pValues;
+
+    /**
+     * @param numTerms number of terms, including the residuals
+     * @param numRows  number of rows of data
+     */
+    AnovaTables( int numTerms, int numRows ) {
+        this.ssq = new double[numTerms][numRows];
+        this.dof = new double[numTerms][numRows];
+        this.fStats = nans( numTerms, numRows );
+        this.pValues = nans( numTerms, numRows );
+    }
+
+    /**
+     * @return the number of terms, including the residuals
+     */
+    int numTerms() {
+        return ssq.length;
+    }
+
+    /**
+     * @return the index of the residuals
+     */
+    int residuals() {
+        return ssq.length - 1;
+    }
+
+    private static double[][] nans( int numTerms, int numRows ) {
+        double[][] result = new double[numTerms][numRows];
+        for ( double[] r : result ) {
+            Arrays.fill( r, Double.NaN );
+        }
+        return result;
+    }
+}
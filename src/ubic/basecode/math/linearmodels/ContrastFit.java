@@ -0,0 +1,285 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.list.IntArrayList;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.jspecify.annotations.Nullable;
+import ubic.basecode.math.PValueCalculator;
+import ubic.basecode.math.linalg.QRDecomposition;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Estimates of contrasts of the coefficients of a {@link LeastSquaresFit}, as in limma contrasts.fit(): new contrasts
+ * can be tested without re-parameterizing the design and refitting the data.
+ * <p>
+ * The contrast matrix has a row per coefficient of the fit and a column per contrast; each contrast is the
+ * corresponding linear combination of the coefficients. The unscaled standard deviation of a contrast <tt>c</tt> is
+ * <tt>sqrt(c' V c)</tt>, where <tt>V</tt> is the unscaled covariance of the coefficients (chol2inv of the R of the QR).
+ * It is computed once per distinct QR decomposition: once for the whole fit if it has neither missing values nor
+ * weights, otherwise once per pattern of values present, or per row for weighted fits. Unlike limma, which
+ * approximates the covariance when the QRs differ between rows, the values are exact for each row.
+ * <p>
+ * The estimates, standard deviations and t-statistics are matrices with a row per contrast and a column per data row,
+ * like the coefficients of the fit. Values are missing for the rows that could not be fitted and for the contrasts that
+ * involve a coefficient that could not be estimated for a row. If ebayes was run on the fit, the moderated
+ * t-statistics are computed as well.
+ *
+ * @author poirigui
+ */
+public class ContrastFit {
+
+    private static final PValueCalculator pValueCalculator = new PValueCalculator();
+
+    private final DoubleMatrix2D contrasts;
+    private final DoubleMatrix2D coefficients;
+    private final DoubleMatrix2D stdevUnscaled;
+    private final DoubleMatrix2D tStats;
+    private final DoubleMatrix2D pValues;
+    @Nullable
+    private final DoubleMatrix2D moderatedTStats;
+    @Nullable
+    private final DoubleMatrix2D moderatedPValues;
+
+    /**
+     * @param fit       the fit
+     * @param contrasts contrast matrix, with a row per coefficient of the fit and a column per contrast
+     * @throws IllegalArgumentException if the contrast matrix does not have a row per coefficient
+     */
+    public ContrastFit( final LeastSquaresFit fit, final DoubleMatrix2D contrasts ) {
+        final DoubleMatrix2D fitCoefficients = fit.getCoefficients();
+        final int numCoefficients = fitCoefficients.rows();
+        final int numRows = fitCoefficients.columns();
+        final int numContrasts = contrasts.columns();
+        if ( contrasts.rows() != numCoefficients ) {
+            throw new IllegalArgumentException( "The contrast matrix must have one row per coefficient, expected "
+                    + numCoefficients + " rows, got " + contrasts.rows() );
+        }
+        this.contrasts = contrasts.copy();
+        final double[][] c = this.contrasts.viewDice().toArray();
+
+        /*
+         * Unscaled standard deviations of the contrasts for each distinct QR. This is done serially since chol2inv is
+         * lazy.
+         */
+        final double[][] rowSd = new double[numRows][];
+        Map<QRDecomposition, double[]> sdByQR = new IdentityHashMap<>();
+        for ( int i = 0; i < numRows; i++ ) {
+            QRDecomposition qrd = fit.getQR( i );
+            if ( qrd == null ) {
+                continue;
+            }
+            double[] sd = sdByQR.get( qrd );
+            if ( sd == null ) {
+                sd = stdevUnscaled( qrd, fit.getKeptColumns( i ), c, numCoefficients );
+                sdByQR.put( qrd, sd );
+            }
+            rowSd[i] = sd;
+        }
+
+        final double[] vars = new double[numRows];
+        final double[] dofs = new double[numRows];
+        fit.residualVariances( vars, dofs, 0 );
+
+        this.coefficients = new DenseDoubleMatrix2D( numContrasts, numRows );
+        this.stdevUnscaled = new DenseDoubleMatrix2D( numContrasts, numRows );
+        RowChunks.forEachChunk( fit.getExecutor(), numRows, ( from, to ) -> {
+            for ( int i = from; i < to; i++ ) {
+                for ( int k = 0; k < numContrasts; k++ ) {
+                    if ( rowSd[i] == null ) {
+                        coefficients.setQuick( k, i, Double.NaN );
+                        stdevUnscaled.setQuick( k, i, Double.NaN );
+                        continue;
+                    }
+                    // coefficients that are not used are ignored, even if they were not estimated
+                    double estimate = 0.0;
+                    for ( int a = 0; a < numCoefficients; a++ ) {
+                        if ( c[k][a] != 0.0 ) {
+                            estimate += c[k][a] * fitCoefficients.getQuick( a, i );
+                        }
+                    }
+                    coefficients.setQuick( k, i, estimate );
+                    stdevUnscaled.setQuick( k, i, rowSd[i][k] );
+                }
+            }
+        } );
+
+        DoubleMatrix2D[] tp = tStatistics( fit, vars, dofs );
+        this.tStats = tp[0];
+        this.pValues = tp[1];
+
+        if ( fit.isHasBeenShrunken() ) {
+            // out$t <- coefficients / stdev.unscaled / sqrt(out$s2.post)
+            // df.total <- df.residual + out$df.prior
+            double[] varPost = fit.getVarPost().toArray();
+            double[] dfTotal = new double[numRows];
+            for ( int i = 0; i < numRows; i++ ) {
+                dfTotal[i] = dofs[i] + fit.getDfPrior();
+            }
+            DoubleMatrix2D[] moderated = tStatistics( fit, varPost, dfTotal );
+            this.moderatedTStats = moderated[0];
+            this.moderatedPValues = moderated[1];
+        } else {
+            this.moderatedTStats = null;
+            this.moderatedPValues = null;
+        }
+    }
+
+    /**
+     * @return the contrast matrix, with a row per coefficient of the fit and a column per contrast
+     */
+    public DoubleMatrix2D getContrasts() {
+        return contrasts;
+    }
+
+    /**
+     * @return the estimates of the contrasts, with a row per contrast and a column per data row
+     */
+    public DoubleMatrix2D getCoefficients() {
+        return coefficients;
+    }
+
+    /**
+     * @return the unscaled standard deviations of the contrasts (limma stdev.unscaled)
+     */
+    public DoubleMatrix2D getStdevUnscaled() {
+        return stdevUnscaled;
+    }
+
+    /**
+     * @return the t-statistics of the contrasts, using the residual variance of each row
+     */
+    public DoubleMatrix2D getTStats() {
+        return tStats;
+    }
+
+    /**
+     * @return the two-sided p-values of the t-statistics
+     */
+    public DoubleMatrix2D getPValues() {
+        return pValues;
+    }
+
+    /**
+     * @return whether ebayes was run on the fit, in which case moderated t-statistics are available
+     */
+    public boolean isShrunken() {
+        return moderatedTStats != null;
+    }
+
+    /**
+     * @return the moderated t-statistics of the contrasts, using the posterior variance of each row
+     * @throws IllegalStateException if ebayes was not run on the fit
+     */
+    public DoubleMatrix2D getModeratedTStats() {
+        if ( moderatedTStats == null ) {
+            throw new IllegalStateException( "ebayes must be run on the fit first" );
+        }
+        return moderatedTStats;
+    }
+
+    /**
+     * @return the two-sided p-values of the moderated t-statistics
+     * @throws IllegalStateException if ebayes was not run on the fit
+     */
+    public DoubleMatrix2D getModeratedPValues() {
+        if ( moderatedPValues == null ) {
+            throw new IllegalStateException( "ebayes must be run on the fit first" );
+        }
+        return moderatedPValues;
+    }
+
+    /**
+     * @param keptColumns coefficient matching each column of the QR, if columns were dropped from the design
+     * @param c           contrasts, one array of weights per contrast
+     * @return sqrt(c' V c) for each contrast, or NaN if it involves a coefficient that was not estimated
+     */
+    private static double[] stdevUnscaled( QRDecomposition qrd, int @Nullable [] keptColumns, double[][] c,
+            int numCoefficients ) {
+        // the unscaled covariance is for the estimated coefficients, in pivoted order; only its upper triangle is set
+        DoubleMatrix2D XtXi = qrd.chol2inv();
+        int rank = qrd.getRank();
+        IntArrayList pivot = qrd.getPivotOrder();
+        // coefficient of each pivoted column
+        int[] coefficient = new int[rank];
+        boolean[] estimated = new boolean[numCoefficients];
+        for ( int r = 0; r < rank; r++ ) {
+            coefficient[r] = keptColumns != null ? keptColumns[pivot.getQuick( r )] : pivot.getQuick( r );
+            estimated[coefficient[r]] = true;
+        }
+        double[] result = new double[c.length];
+        for ( int k = 0; k < c.length; k++ ) {
+            boolean estimable = true;
+            for ( int a = 0; a < numCoefficients; a++ ) {
+                if ( c[k][a] != 0.0 && !estimated[a] ) {
+                    estimable = false;
+                    break;
+                }
+            }
+            if ( !estimable ) {
+                result[k] = Double.NaN;
+                continue;
+            }
+            double v = 0.0;
+            for ( int r = 0; r < rank; r++ ) {
+                double cr = c[k][coefficient[r]];
+                if ( cr == 0.0 ) {
+                    continue;
+                }
+                for ( int s = 0; s < rank; s++ ) {
+                    v += cr * XtXi.getQuick( Math.min( r, s ), Math.max( r, s ) ) * c[k][coefficient[s]];
+                }
+            }
+            result[k] = Math.sqrt( v );
+        }
+        return result;
+    }
+
+    /**
+     * @param vars variance of each row
+     * @param dofs degrees of freedom of each row, NaN for rows that could not be fitted
+     * @return the t-statistics of the contrasts and their p-values
+     */
+    private DoubleMatrix2D[] tStatistics( LeastSquaresFit fit, final double[] vars, final double[] dofs ) {
+        final int numContrasts = coefficients.rows();
+        final int numRows = coefficients.columns();
+        final double[] sqrtInv = new double[numRows];
+        for ( int i = 0; i < numRows; i++ ) {
+            sqrtInv[i] = 1.0 / Math.sqrt( vars[i] );
+        }
+        final DoubleMatrix2D tstats = new DenseDoubleMatrix2D( numContrasts, numRows );
+        final DoubleMatrix2D pvalues = new DenseDoubleMatrix2D( numContrasts, numRows );
+        RowChunks.forEachChunk( fit.getExecutor(), numContrasts, ( from, to ) -> {
+            double[] t = new double[numRows];
+            for ( int k = from; k < to; k++ ) {
+                for ( int i = 0; i < numRows; i++ ) {
+                    t[i] = coefficients.getQuick( k, i ) / stdevUnscaled.getQuick( k, i ) * sqrtInv[i];
+                }
+                double[] p = pValueCalculator.tTestTwoSided( t, dofs );
+                for ( int i = 0; i < numRows; i++ ) {
+                    if ( Double.isNaN( t[i] ) ) {
+                        p[i] = Double.NaN;
+                    }
+                }
+                tstats.viewRow( k ).assign( t );
+                pvalues.viewRow( k ).assign( p );
+            }
+        } );
+        return new DoubleMatrix2D[] { tstats, pvalues };
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import ubic.basecode.math.Constants;
+import ubic.basecode.math.linalg.QRDecomposition;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Regression diagnostics for all the rows of a {@link LeastSquaresFit}, as in R influence.measures(): leverages (hat
+ * values), externally studentized residuals (rstudent), Cook's distances and DFFITS. Each matrix has the same layout as
+ * the residuals, with a row per data row and a column per sample.
+ * <p>
+ * The hat values are computed once per distinct QR decomposition: once for the whole fit if it has neither missing
+ * values nor weights, otherwise once per pattern of values present, or per row for weighted fits. The statistics are
+ * then computed in a single pass over the rows, in chunks using the executor of the fit, if any.
+ * <p>
+ * Weighted fits use the weighted residuals. Values are NaN where the data is missing, for rows that could not be fitted
+ * or with fewer than two residual degrees of freedom, and, except for the studentized residuals, for samples with a
+ * leverage of one.
+ *
+ * @author poirigui
+ */
+public class InfluenceMeasures {
+
+    private final DoubleMatrix2D hatValues;
+    private final DoubleMatrix2D studentizedResiduals;
+    private final DoubleMatrix2D cooksDistances;
+    private final DoubleMatrix2D dffits;
+
+    /**
+     * @param fit the fit to diagnose
+     */
+    public InfluenceMeasures( final LeastSquaresFit fit ) {
+        final DoubleMatrix2D data = fit.getData();
+        final int numRows = data.rows();
+        final int numSamples = data.columns();
+        this.hatValues = new DenseDoubleMatrix2D( numRows, numSamples );
+        this.studentizedResiduals = new DenseDoubleMatrix2D( numRows, numSamples );
+        this.cooksDistances = new DenseDoubleMatrix2D( numRows, numSamples );
+        this.dffits = new DenseDoubleMatrix2D( numRows, numSamples );
+
+        /*
+         * Leverages of each distinct QR; different QRs can be processed concurrently.
+         */
+        final QRDecomposition[] rowQRs = new QRDecomposition[numRows];
+        final Map<QRDecomposition, double[]> leverages = new IdentityHashMap<>();
+        final List<QRDecomposition> distinct = new ArrayList<>();
+        for ( int i = 0; i < numRows; i++ ) {
+            rowQRs[i] = fit.getQR( i );
+            if ( rowQRs[i] != null && !leverages.containsKey( rowQRs[i] ) ) {
+                leverages.put( rowQRs[i], null );
+                distinct.add( rowQRs[i] );
+            }
+        }
+        final double[][] distinctLeverages = new double[distinct.size()][];
+        RowChunks.forEachChunk( fit.getExecutor(), distinct.size(), ( from, to ) -> {
+            for ( int k = from; k < to; k++ ) {
+                double[] h = distinct.get( k ).hatValues();
+                for ( int j = 0; j < h.length; j++ ) {
+                    if ( 1.0 - h[j] < Constants.TINY ) {
+                        h[j] = 1.0;
+                    }
+                }
+                distinctLeverages[k] = h;
+            }
+        } );
+        for ( int k = 0; k < distinct.size(); k++ ) {
+            leverages.put( distinct.get( k ), distinctLeverages[k] );
+        }
+
+        final DoubleMatrix2D weights = fit.getWeights();
+        RowChunks.forEachChunk( fit.getExecutor(), numRows, ( from, to ) -> {
+            double[] e = new double[numSamples];
+            for ( int i = from; i < to; i++ ) {
+                QRDecomposition qrd = rowQRs[i];
+                int dof = fit.getResidualDof( i ) - 1; // MINUS for external studentizing!!
+                if ( qrd == null || dof < 1 ) {
+                    fillMissing( i );
+                    continue;
+                }
+                double[] h = leverages.get( qrd );
+                int rank = qrd.getRank();
+
+                DoubleMatrix1D residualRow = fit.residualRow( i );
+                for ( int j = 0; j < numSamples; j++ ) {
+                    e[j] = residualRow.getQuick( j );
+                    if ( weights != null ) {
+                        // use weighted residuals.
+                        e[j] *= Math.sqrt( weights.getQuick( i, j ) );
+                    }
+                }
+
+                // summed backwards, as Colt's aggregate does
+                double sum = 0.0;
+                for ( int j = numSamples; --j >= 0; ) {
+                    if ( !Double.isNaN( e[j] ) ) {
+                        sum += e[j] * e[j];
+                    }
+                }
+                double s2 = sum / ( dof + 1 );
+
+                // values present are in the same order as the rows of their QR
+                int k = 0;
+                for ( int j = 0; j < numSamples; j++ ) {
+                    if ( Double.isNaN( e[j] ) ) {
+                        hatValues.setQuick( i, j, Double.NaN );
+                        studentizedResiduals.setQuick( i, j, Double.NaN );
+                        cooksDistances.setQuick( i, j, Double.NaN );
+                        dffits.setQuick( i, j, Double.NaN );
+                        continue;
+                    }
+                    double hj = h[k++];
+
+                    // this is how we externalize...
+                    double sigma;
+                    if ( hj < 1.0 ) {
+                        sigma = Math.sqrt( ( sum - Math.pow( e[j], 2 ) / ( 1.0 - hj ) ) / dof );
+                    } else {
+                        sigma = Math.sqrt( sum / dof );
+                    }
+                    double studres = e[j] / ( sigma * Math.sqrt( 1.0 - hj ) );
+
+                    hatValues.setQuick( i, j, hj );
+                    studentizedResiduals.setQuick( i, j, studres );
+                    if ( hj < 1.0 ) {
+                        cooksDistances.setQuick( i, j,
+                                e[j] * e[j] * hj / ( rank * s2 * ( 1.0 - hj ) * ( 1.0 - hj ) ) );
+                        dffits.setQuick( i, j, studres * Math.sqrt( hj / ( 1.0 - hj ) ) );
+                    } else {
+                        cooksDistances.setQuick( i, j, Double.NaN );
+                        dffits.setQuick( i, j, Double.NaN );
+                    }
+                }
+            }
+        } );
+    }
+
+    /**
+     * @return the leverages of the samples, i.e. the diagonal of the hat matrix for each row
+     */
+    public DoubleMatrix2D getHatValues() {
+        return hatValues;
+    }
+
+    /**
+     * @return the externally studentized residuals (R rstudent)
+     */
+    public DoubleMatrix2D getStudentizedResiduals() {
+        return studentizedResiduals;
+    }
+
+    /**
+     * @return Cook's distances
+     */
+    public DoubleMatrix2D getCooksDistances() {
+        return cooksDistances;
+    }
+
+    /**
+     * @return DFFITS, the scaled changes in the fitted values when each sample is left out
+     */
+    public DoubleMatrix2D getDffits() {
+        return dffits;
+    }
+
+    private void fillMissing( int i ) {
+        hatValues.viewRow( i ).assign( Double.NaN );
+        studentizedResiduals.viewRow( i ).assign( Double.NaN );
+        cooksDistances.viewRow( i ).assign( Double.NaN );
+        dffits.viewRow( i ).assign( Double.NaN );
+    }
+}
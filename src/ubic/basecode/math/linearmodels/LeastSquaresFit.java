@@ -15,20 +15,18 @@
 package ubic.basecode.math.linearmodels;
 
 import cern.colt.bitvector.BitVector;
-import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
 import cern.jet.math.Functions;
-import cern.jet.stat.Descriptive;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
-import org.apache.commons.math3.distribution.FDistribution;
-import org.apache.commons.math3.distribution.TDistribution;
 import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
@@ -36,9 +34,14 @@ import ubic.basecode.dataStructure.matrix.DoubleMatrixFactory;
 import ubic.basecode.dataStructure.matrix.MatrixUtil;
 import ubic.basecode.dataStructure.matrix.ObjectMatrix;
 import ubic.basecode.math.Constants;
+import ubic.basecode.math.PValueCalculator;
 import ubic.basecode.math.linalg.QRDecomposition;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * For performing "bulk" linear model fits, but also offers simple methods for simple univariate and multivariate
@@ -46,6 +49,13 @@ import java.util.*;
  * <p>
  * Data with missing values is handled but is less memory efficient and somewhat slower. The main cost is that when
  * there are no missing values, a single QR decomposition can be performed.
+ * <p>
+ * If an executor is provided, the rows of the data are split into chunks that are fitted concurrently. The results
+ * (coefficients, residual degrees of freedom, QRs and summaries) are identical to those of the serial fit.
+ * <p>
+ * Fitted values and residuals are not kept by the fit: summaries compute them one row at a time, and the full matrices
+ * are only materialized if {@link #getFitted()}, {@link #getResiduals()} or {@link #getStudentizedResiduals()} are
+ * called.
  *
  * @author paul
  */
@@ -95,9 +105,10 @@ public class LeastSquaresFit {
     private double dfPrior = 0;
 
     /**
-     * Fitted values
+     * Fitted values; computed on demand, see {@link #getFitted()}
      */
-    private DoubleMatrix2D fitted;
+    @Nullable
+    private DoubleMatrix2D fitted = null;
 
     /**
      * True if model includes intercept
@@ -127,6 +138,29 @@ public class LeastSquaresFit {
      */
     private Map<Integer, QRDecomposition> qrsForWeighted = new HashMap<>();
 
+    /**
+     * For QRs of a design from which columns were dropped, the column of the full design matching each column of the
+     * QR. See {@link #getKeptColumns(int)}.
+     */
+    private Map<QRDecomposition, int[]> keptColumnsByQR = new IdentityHashMap<>();
+
+    /**
+     * Used to fit chunks of rows concurrently; if null, the fit is done serially.
+     */
+    @Nullable
+    private ExecutorService executor = null;
+
+    /**
+     * Decompositions of the design shared with other fits; if null, they are computed for this fit only.
+     */
+    @Nullable
+    private PreparedDesign preparedDesign = null;
+
+    /**
+     * Reuses the t and F distributions between rows, since they usually share the same degrees of freedom.
+     */
+    private final PValueCalculator pValueCalculator = new PValueCalculator();
+
     private int residualDof = -1;
 
     /**
@@ -135,8 +169,9 @@ public class LeastSquaresFit {
     private List<Integer> residualDofs = new ArrayList<>();
 
     /**
-     * Residuals of the fit
+     * Residuals of the fit; computed on demand, see {@link #getResiduals()}
      */
+    @Nullable
     private DoubleMatrix2D residuals = null;
 
     /**
@@ -181,17 +216,7 @@ public class LeastSquaresFit {
      * @param data
      */
     public LeastSquaresFit(DesignMatrix designMatrix, DoubleMatrix<String, String> data) {
-        this.designMatrix = designMatrix;
-        this.A = designMatrix.getDoubleMatrix();
-        this.assign = designMatrix.getAssign();
-        this.terms = designMatrix.getTerms();
-
-        this.rowNames = data.getRowNames();
-        this.b = new DenseDoubleMatrix2D(data.asArray());
-        boolean hasInterceptTerm = this.terms.contains( LinearModelSummary.INTERCEPT_COEFFICIENT_NAME);
-        this.hasIntercept = designMatrix.hasIntercept();
-        assert hasInterceptTerm == this.hasIntercept : diagnosis(null);
-        fit();
+        this(designMatrix, data, null, null);
     }
 
     /**
@@ -203,18 +228,59 @@ public class LeastSquaresFit {
      */
     public LeastSquaresFit(DesignMatrix designMatrix, DoubleMatrix<String, String> data,
                            final DoubleMatrix2D weights) {
-        this.designMatrix = designMatrix;
-        DoubleMatrix2D X = designMatrix.getDoubleMatrix();
-        this.assign = designMatrix.getAssign();
-        this.terms = designMatrix.getTerms();
-        this.A = X;
-        this.rowNames = data.getRowNames();
-        this.b = new DenseDoubleMatrix2D(data.asArray());
-        boolean hasInterceptTerm = this.terms.contains( LinearModelSummary.INTERCEPT_COEFFICIENT_NAME);
-        this.hasIntercept = designMatrix.hasIntercept();
-        assert hasInterceptTerm == this.hasIntercept : diagnosis(null);
-        this.weights = weights;
-        fit();
+        this(designMatrix, data, weights, null);
+    }
+
+    /**
+     * Least squares fit between two matrices, optionally weighted and optionally fitting chunks of rows in parallel.
+     *
+     * @param designMatrix
+     * @param data         copied, so that modifying it afterwards does not affect the residuals and summaries, which
+     *                     are computed lazily; a {@link ubic.basecode.dataStructure.matrix.DenseFloatMatrix} is copied
+     *                     as floats, the computations being done in double precision anyway.
+     * @param weights      to be used in modifying the influence of the observations in data. If null, will be ignored.
+     * @param executor     used to fit chunks of rows concurrently; if null, the fit is done serially. The results are
+     *                     the same either way.
+     */
+    public LeastSquaresFit(DesignMatrix designMatrix, DoubleMatrix<String, String> data,
+                           @Nullable final DoubleMatrix2D weights, @Nullable ExecutorService executor) {
+        this(designMatrix, null, MatrixUtil.toDoubleMatrix2D(data), data.getRowNames(), weights, executor);
+    }
+
+    /**
+     * Least squares fit reusing the decompositions of a design shared with other fits.
+     *
+     * @param design
+     * @param data
+     */
+    public LeastSquaresFit(PreparedDesign design, DoubleMatrix<String, String> data) {
+        this(design, data, null);
+    }
+
+    /**
+     * Least squares fit reusing the decompositions of a design shared with other fits, optionally fitting chunks of
+     * rows in parallel.
+     *
+     * @param design
+     * @param data
+     * @param executor used to fit chunks of rows concurrently; if null, the fit is done serially.
+     */
+    public LeastSquaresFit(PreparedDesign design, DoubleMatrix<String, String> data,
+                           @Nullable ExecutorService executor) {
+        this(design.getDesignMatrix(), design, MatrixUtil.toDoubleMatrix2D(data), data.getRowNames(), null,
+                executor);
+    }
+
+    /**
+     * Least squares fit reusing the decompositions of a design shared with other fits; for instance, to fit many
+     * permutations of the same data.
+     *
+     * @param design
+     * @param b        the data
+     * @param executor used to fit chunks of rows concurrently; if null, the fit is done serially.
+     */
+    public LeastSquaresFit(PreparedDesign design, DoubleMatrix2D b, @Nullable ExecutorService executor) {
+        this(design.getDesignMatrix(), design, b, null, null, executor);
     }
 
     /**
@@ -225,18 +291,41 @@ public class LeastSquaresFit {
      * @param weights      to be used in modifying the influence of the observations in vectorB.
      */
     public LeastSquaresFit(DesignMatrix designMatrix, DoubleMatrix2D b, final DoubleMatrix2D weights) {
+        this(designMatrix, b, weights, null);
+    }
 
+    /**
+     * Least squares fit between two matrices, optionally weighted and optionally fitting chunks of rows in parallel.
+     *
+     * @param designMatrix
+     * @param b            the data
+     * @param weights      to be used in modifying the influence of the observations in b. If null, will be ignored.
+     * @param executor     used to fit chunks of rows concurrently; if null, the fit is done serially. The results are
+     *                     the same either way.
+     */
+    public LeastSquaresFit(DesignMatrix designMatrix, DoubleMatrix2D b, @Nullable final DoubleMatrix2D weights,
+                           @Nullable ExecutorService executor) {
+        this(designMatrix, null, b, null, weights, executor);
+    }
+
+    private LeastSquaresFit(DesignMatrix designMatrix, @Nullable PreparedDesign preparedDesign, DoubleMatrix2D b,
+                            @Nullable List<String> rowNames, @Nullable final DoubleMatrix2D weights,
+                            @Nullable ExecutorService executor) {
+        assert preparedDesign == null || weights == null;
         this.designMatrix = designMatrix;
         DoubleMatrix2D X = designMatrix.getDoubleMatrix();
         this.assign = designMatrix.getAssign();
         this.terms = designMatrix.getTerms();
         this.A = X;
+        this.rowNames = rowNames;
         this.b = b;
         boolean hasInterceptTerm = this.terms.contains( LinearModelSummary.INTERCEPT_COEFFICIENT_NAME);
         this.hasIntercept = designMatrix.hasIntercept();
         assert hasInterceptTerm == this.hasIntercept : diagnosis(null);
 
         this.weights = weights;
+        this.executor = executor;
+        this.preparedDesign = preparedDesign;
 
         fit();
 
@@ -310,6 +399,20 @@ public class LeastSquaresFit {
      * @param weights to be used in modifying the influence of the observations in b. If null, will be ignored.
      */
     public LeastSquaresFit(DoubleMatrix2D A, DoubleMatrix2D b, final DoubleMatrix2D weights) {
+        this(A, b, weights, null);
+    }
+
+    /**
+     * Least squares fit between two matrices, optionally weighted and optionally fitting chunks of rows in parallel.
+     *
+     * @param A        Design
+     * @param b        Data
+     * @param weights  to be used in modifying the influence of the observations in b. If null, will be ignored.
+     * @param executor used to fit chunks of rows concurrently; if null, the fit is done serially. The results are the
+     *                 same either way.
+     */
+    public LeastSquaresFit(DoubleMatrix2D A, DoubleMatrix2D b, @Nullable final DoubleMatrix2D weights,
+                           @Nullable ExecutorService executor) {
         assert A != null;
         assert b != null;
         assert A.rows() == b.columns();
@@ -319,6 +422,7 @@ public class LeastSquaresFit {
         this.A = A;
         this.b = b;
         this.weights = weights;
+        this.executor = executor;
 
         fit();
 
@@ -375,7 +479,7 @@ public class LeastSquaresFit {
         this.assign = designMatrix.getAssign();
         this.terms = designMatrix.getTerms();
 
-        this.b = new DenseDoubleMatrix2D(b.asArray());
+        this.b = MatrixUtil.toDoubleMatrix2D(b);
         this.rowNames = b.getRowNames();
         fit();
     }
@@ -398,7 +502,7 @@ public class LeastSquaresFit {
         this.assign = designMatrix.getAssign();
         this.terms = designMatrix.getTerms();
         this.A = X;
-        this.b = new DenseDoubleMatrix2D(data.asArray());
+        this.b = MatrixUtil.toDoubleMatrix2D(data);
         fit();
     }
 
@@ -416,7 +520,18 @@ public class LeastSquaresFit {
         return dfPrior;
     }
 
+    /**
+     * The fitted values, with missing values where the data is missing. The matrix is computed on the first call.
+     *
+     * @return
+     */
     public DoubleMatrix2D getFitted() {
+        if (fitted == null) {
+            fitted = new Algebra().transpose(MatrixUtil.multWithMissing(A, coefficients));
+            if (this.hasMissing) {
+                MatrixUtil.maskMissing(b, fitted);
+            }
+        }
         return fitted;
     }
 
@@ -428,90 +543,147 @@ public class LeastSquaresFit {
         return residualDofs;
     }
 
+    /**
+     * The residuals, with missing values where the data is missing. The matrix is computed on the first call.
+     *
+     * @return
+     */
     public DoubleMatrix2D getResiduals() {
+        if (residuals == null) {
+            residuals = b.copy().assign(getFitted(), Functions.minus);
+        }
         return residuals;
     }
 
     /**
-     * @return externally studentized residuals (assumes we have only one QR)
+     * Rows with missing values are studentized using the QR for their pattern of values present, and weighted rows
+     * with their own QR; the residuals are NaN where the data is missing.
+     *
+     * @return externally studentized residuals
+     * @see InfluenceMeasures
      */
     public DoubleMatrix2D getStudentizedResiduals() {
-        int dof = this.residualDof - 1; // MINUS for external studentizing!!
-
-        assert dof > 0;
-
-        if (this.hasMissing) {
-            throw new UnsupportedOperationException("Studentizing not supported with missing values");
-        }
-
-        DoubleMatrix2D result = this.residuals.like();
-
-        /*
-         * Diagnonal of the hat matrix at i (hi) is the squared norm of the ith row of Q
-         */
-        DoubleMatrix2D q = this.getQR(0).getQ();
-
-        DoubleMatrix1D hatdiag = new DenseDoubleMatrix1D(residuals.columns());
-        for (int j = 0; j < residuals.columns(); j++) {
-            double hj = q.viewRow(j).aggregate(Functions.plus, Functions.square);
-            if (1.0 - hj < Constants.TINY) {
-                hj = 1.0;
-            }
-            hatdiag.set(j, hj);
-        }
+        return new InfluenceMeasures(this).getStudentizedResiduals();
+    }
 
-        /*
-         * Measure sum of squares of residuals / residualDof
-         */
-        for (int i = 0; i < residuals.rows(); i++) {
+    public DoubleMatrix1D getVarPost() {
+        return varPost;
+    }
 
-            // these are 'internally studentized'
-            // double sdhat = Math.sqrt( residuals.viewRow( i ).aggregate( Functions.plus, Functions.square ) / dof );
+    public double getVarPrior() {
+        return varPrior;
+    }
 
-            DoubleMatrix1D residualRow = residuals.viewRow(i);
+    public DoubleMatrix2D getWeights() {
+        return weights;
+    }
 
-            if (this.weights != null) {
-                // use weighted residuals.
-                DoubleMatrix1D w = weights.viewRow(i).copy().assign(Functions.sqrt);
-                residualRow = residualRow.copy().assign(w, Functions.mult);
-            }
+    /**
+     * @return the QR decomposition of the design, if it was computed for all the rows at once (i.e. without weights or
+     * missing values), otherwise null
+     */
+    @Nullable
+    QRDecomposition getQR() {
+        return qr;
+    }
 
-            double sum = residualRow.aggregate(Functions.plus, Functions.square);
+    @Nullable
+    ExecutorService getExecutor() {
+        return executor;
+    }
 
-            for (int j = 0; j < residualRow.size(); j++) {
+    /**
+     * @return the design matrix, with a row per sample (column of the data)
+     */
+    DoubleMatrix2D getDesign() {
+        return A;
+    }
 
-                double hj = hatdiag.get(j);
+    /**
+     * @return the data, with a row per fitted row and a column per sample
+     */
+    DoubleMatrix2D getData() {
+        return b;
+    }
 
-                // this is how we externalize...
-                double sigma;
+    /**
+     * @param i index of the data row
+     * @return residual degrees of freedom of the row
+     */
+    int getResidualDof(int i) {
+        return this.residualDofs.isEmpty() ? this.residualDof : this.residualDofs.get(i);
+    }
 
-                if (hj < 1.0) {
-                    sigma = Math.sqrt((sum - Math.pow(residualRow.get(j), 2) / (1.0 - hj)) / dof);
-                } else {
-                    sigma = Math.sqrt(sum / dof);
+    /**
+     * Compute the residual variance (sigma^2, with sigma as in the summaries) and the residual degrees of freedom of
+     * each row, without summarizing them. Both are NaN for rows that could not be fitted. Chunks of rows are processed
+     * with the executor of this fit, if any.
+     *
+     * @param vars   receives the variances
+     * @param dofs   receives the degrees of freedom
+     * @param offset position of the first row in vars and dofs
+     */
+    void residualVariances(final double[] vars, final double[] dofs, final int offset) {
+        RowChunks.forEachChunk(executor, this.coefficients.columns(), (from, to) -> {
+            for (int i = from; i < to; i++) {
+                QRDecomposition qrd = this.getQR(i);
+                int rdf = getResidualDof(i);
+                if (qrd == null || rdf == 0
+                        || MatrixUtil.removeMissingOrInfinite(coefficients.viewColumn(i)).size() == 0) {
+                    vars[offset + i] = Double.NaN;
+                    dofs[offset + i] = Double.NaN;
+                    continue;
                 }
-
-                double res = residualRow.getQuick(j);
-                double studres = res / (sigma * Math.sqrt(1.0 - hj));
-
-                if (log.isDebugEnabled()) log.debug("sigma=" + sigma + " hj=" + hj + " stres=" + studres);
-
-                result.set(i, j, studres);
+                DoubleMatrix1D sqrtweights = null;
+                if (this.weights != null) {
+                    sqrtweights = MatrixUtil.removeMissingOrInfinite(fittedRow(i), this.weights.viewRow(i).copy())
+                            .assign(Functions.sqrt);
+                }
+                double sigma = sigma(rowEffects(i, qrd, sqrtweights), qrd.getRank());
+                vars[offset + i] = sigma * sigma;
+                dofs[offset + i] = rdf;
             }
-        }
-        return result;
-    }
-
-    public DoubleMatrix1D getVarPost() {
-        return varPost;
+        });
     }
 
-    public double getVarPrior() {
-        return varPrior;
+    /**
+     * Unscaled standard deviations of the coefficients of a row, as in its summary.
+     *
+     * @param i     index of the data row
+     * @param cache standard deviations of the estimated coefficients, by QR; rows sharing a QR share them
+     * @return one value per coefficient, NaN for those that were not estimated, or null if the row could not be
+     * summarized
+     */
+    @Nullable
+    double[] stdevUnscaled(int i, Map<QRDecomposition, DoubleMatrix1D> cache) {
+        QRDecomposition qrd = this.getQR(i);
+        if (qrd == null || getResidualDof(i) == 0) {
+            return null;
+        }
+        DoubleMatrix1D sdUnscaled = stdevUnscaled(qrd, cache);
+        DoubleMatrix1D allCoef = coefficients.viewColumn(i);
+        double[] result = new double[allCoef.size()];
+        int j = 0;
+        for (int ti = 0; ti < allCoef.size(); ti++) {
+            if (Double.isNaN(allCoef.getQuick(ti))) {
+                result[ti] = Double.NaN;
+            } else {
+                result[ti] = sdUnscaled.getQuick(j++);
+            }
+        }
+        return j == 0 ? null : result;
     }
 
-    public DoubleMatrix2D getWeights() {
-        return weights;
+    /**
+     * @return the standard deviations of the coefficients estimated with a QR, which must not be modified
+     */
+    private static DoubleMatrix1D stdevUnscaled(QRDecomposition qrd, Map<QRDecomposition, DoubleMatrix1D> cache) {
+        DoubleMatrix1D sdUnscaled = cache.get(qrd);
+        if (sdUnscaled == null) {
+            sdUnscaled = MatrixUtil.diagonal(qrd.chol2inv()).assign(Functions.sqrt);
+            cache.put(qrd, sdUnscaled);
+        }
+        return sdUnscaled;
     }
 
     public boolean isHasBeenShrunken() {
@@ -545,8 +717,9 @@ public class LeastSquaresFit {
         StopWatch timer = new StopWatch();
         timer.start();
         log.info("Summarizing");
+        Map<QRDecomposition, DoubleMatrix1D> sdCache = new IdentityHashMap<>();
         for (int i = 0; i < this.coefficients.columns(); i++) {
-            LinearModelSummaryImpl lms = summarize(i);
+            LinearModelSummaryImpl lms = summarize(i, null, sdCache);
             lms.setAnova(anovas != null ? anovas.get(i) : null);
             lmsresults.add(lms);
             if (timer.getTime() > 10000 && i > 0 && i % 10000 == 0) {
@@ -583,6 +756,45 @@ public class LeastSquaresFit {
         return result;
     }
 
+    /**
+     * Summarize all the rows into columns of statistics, without creating a {@link LinearModelSummary} for each row.
+     * The statistics are the same as those of {@link #summarize(boolean)}.
+     *
+     * @param anova if true, ANOVA will be computed
+     * @return
+     */
+    public LinearModelSummaries summarizeColumns(boolean anova) {
+        List<String> coefficientNames = new ArrayList<>(A.columns());
+        for (int ti = 0; ti < A.columns(); ti++) {
+            coefficientNames.add(coefficientName(ti));
+        }
+
+        AnovaTables tables = anova ? anovaTables() : null;
+        List<String> anovaTerms = tables != null ? terms.subList(0, tables.residuals()) : null;
+
+        LinearModelSummaries result = new LinearModelSummaries(this, this.rowNames, this.coefficients.columns(),
+                terms != null ? terms : Collections.emptyList(), coefficientNames, anovaTerms, this.hasBeenShrunken,
+                this.dfPrior, this.varPrior != null ? this.varPrior : Double.NaN);
+
+        Map<QRDecomposition, DoubleMatrix1D> sdCache = new IdentityHashMap<>();
+        for (int i = 0; i < this.coefficients.columns(); i++) {
+            summarize(i, result, sdCache);
+        }
+
+        if (tables != null) {
+            int residCol = tables.residuals();
+            for (int i = 0; i < this.coefficients.columns(); i++) {
+                for (int j = 0; j < residCol; j++) {
+                    result.setAnovaTerm(j, i, tables.fStats[j][i], tables.pValues[j][i], tables.dof[j][i],
+                            tables.ssq[j][i]);
+                }
+                result.setAnovaResiduals(i, tables.dof[residCol][i] + this.dfPrior, tables.ssq[residCol][i]);
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Compute ANOVA based on the model fit (Type I SSQ, sequential)
      * <p>
@@ -593,150 +805,205 @@ public class LeastSquaresFit {
      * @return
      */
     protected List<GenericAnovaResult> anova() {
+        return summarizeAnova(anovaTables());
+    }
+
+    /**
+     * Compute the ANOVA tables for all the rows, see {@link #anova()}.
+     * <p>
+     * The effects of the rows that share a QR are computed together, as Q'Y: this is all the rows if there are neither
+     * missing values nor weights, otherwise the rows with the same pattern of values present (weighted rows each have
+     * their own QR). The sums of squares are then accumulated per term and the statistics computed one row at a time.
+     * Groups and rows are processed in chunks with the executor, if any.
+     *
+     * @return sums of squares, degrees of freedom, F statistics and p-values, with one term for each factor plus one for
+     * the residuals.
+     */
+    AnovaTables anovaTables() {
+        final int numRows = b.rows();
+        final int numFactors = new TreeSet<>(assign).size();
+        final AnovaTables tables = new AnovaTables(numFactors + 1, numRows);
+
+        /* these are the squares of t(Qfty), the effects associated with the parameters only! */
+        final double[][] effects = squaredEffects();
+
+        final AtomicInteger timesWarned = new AtomicInteger();
+        RowChunks.forEachChunk(executor, numRows, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                anovaRow(i, effects[i], tables, timesWarned);
+            }
+        });
+        return tables;
+    }
 
-        DoubleMatrix1D ones = new DenseDoubleMatrix1D(residuals.columns());
-        ones.assign(1.0);
+    /**
+     * @return for each row, the squares of the effects associated with the parameters, or null if the row was not
+     * fitted. With missing values or weights, values beyond the rank are missing.
+     */
+    private double[][] squaredEffects() {
+        final int numRows = b.rows();
+        final int p = A.columns();
+        final double[][] effects = new double[numRows][];
+
+        if (!this.hasMissing && this.weights == null) {
+            assert this.qr != null;
+            DoubleMatrix2D qty = qr.effects(this.b.viewDice().copy());
+            int m = Math.min(p, qty.rows());
+            for (int i = 0; i < numRows; i++) {
+                effects[i] = new double[m];
+                for (int j = 0; j < m; j++) {
+                    double e = qty.getQuick(j, i);
+                    effects[i][j] = e * e;
+                }
+            }
+            return effects;
+        }
 
         /*
-         * For ebayes, instead of this value (divided by rdof), we'll use the moderated sigma^2
+         * Group the rows by QR; rows without a QR were not fitted.
          */
-        DoubleMatrix1D residualSumsOfSquares;
-
-        if (this.weights == null) {
-            residualSumsOfSquares = MatrixUtil.multWithMissing(residuals.copy().assign(Functions.square),
-                    ones);
-        } else {
-            residualSumsOfSquares = MatrixUtil.multWithMissing(
-                    residuals.copy().assign(this.weights.copy().assign(Functions.sqrt), Functions.mult).assign(Functions.square),
-                    ones);
+        Map<QRDecomposition, IntArrayList> groups = new IdentityHashMap<>();
+        final List<QRDecomposition> groupQRs = new ArrayList<>();
+        for (int i = 0; i < numRows; i++) {
+            QRDecomposition qrd = this.getQR(i);
+            if (qrd == null) {
+                continue;
+            }
+            IntArrayList rows = groups.get(qrd);
+            if (rows == null) {
+                rows = new IntArrayList();
+                groups.put(qrd, rows);
+                groupQRs.add(qrd);
+            }
+            rows.add(i);
+        }
+        final List<IntArrayList> groupRows = new ArrayList<>(groupQRs.size());
+        for (QRDecomposition qrd : groupQRs) {
+            groupRows.add(groups.get(qrd));
         }
 
-        DoubleMatrix2D effects = null;
-        if (this.hasMissing || this.weights != null) {
-            effects = new DenseDoubleMatrix2D(this.b.rows(), this.A.columns());
-            effects.assign(Double.NaN);
-            for (int i = 0; i < this.b.rows(); i++) {
-                QRDecomposition qrd = this.getQR(i);
-                if (qrd == null) {
-                    // means we did not get a fit
-                    for (int j = 0; j < effects.columns(); j++) {
-                        effects.set(i, j, Double.NaN);
-                    }
-                    continue;
-                }
+        RowChunks.forEachChunk(executor, groupQRs.size(), (from, to) -> {
+            for (int g = from; g < to; g++) {
+                QRDecomposition qrd = groupQRs.get(g);
+                IntArrayList rows = groupRows.get(g);
 
                 /*
-                 * Compute Qty for the specific y, dealing with missing values.
+                 * Compute Qty for the specific ys, dealing with missing values: the values present of each row, which
+                 * are the same samples for all the rows of the group.
                  */
-                DoubleMatrix1D brow = b.viewRow(i);
-                DoubleMatrix1D browWithoutMissing = MatrixUtil.removeMissingOrInfinite(brow);
-
-                DoubleMatrix1D tqty;
-                if (weights != null) {
-                    DoubleMatrix1D w = MatrixUtil.removeMissingOrInfinite(brow, this.weights.viewRow(i).copy().assign(Functions.sqrt));
-                    assert w.size() == browWithoutMissing.size();
-                    DoubleMatrix1D bw = browWithoutMissing.copy().assign(w, Functions.mult);
-                    tqty = qrd.effects(bw);
-                } else {
-                    tqty = qrd.effects(browWithoutMissing);
+                DoubleMatrix2D y = null;
+                for (int c = 0; c < rows.size(); c++) {
+                    int i = rows.getQuick(c);
+                    DoubleMatrix1D brow = b.viewRow(i);
+                    DoubleMatrix1D yc = MatrixUtil.removeMissingOrInfinite(brow);
+                    if (weights != null) {
+                        DoubleMatrix1D w = MatrixUtil.removeMissingOrInfinite(brow, this.weights.viewRow(i).copy().assign(Functions.sqrt));
+                        assert w.size() == yc.size();
+                        yc = yc.copy().assign(w, Functions.mult);
+                    }
+                    if (y == null) {
+                        y = new DenseDoubleMatrix2D(yc.size(), rows.size());
+                    }
+                    y.viewColumn(c).assign(yc);
                 }
-
-                // view just part we need; put values back so missingness is restored.
-                for (int j = 0; j < qrd.getRank(); j++) {
-                    effects.set(i, j, tqty.get(j));
+                assert y != null;
+
+                DoubleMatrix2D qty = qrd.effects(y);
+                int rank = qrd.getRank();
+                for (int c = 0; c < rows.size(); c++) {
+                    // put values back so missingness is restored.
+                    double[] e = new double[p];
+                    Arrays.fill(e, Double.NaN);
+                    for (int j = 0; j < rank; j++) {
+                        double v = qty.getQuick(j, c);
+                        e[j] = v * v;
+                    }
+                    effects[rows.getQuick(c)] = e;
                 }
             }
+        });
+        return effects;
+    }
 
-        } else {
-            assert this.qr != null;
-            effects = qr.effects(this.b.viewDice().copy()).viewDice();
-        }
-
-        /* this is t(Qfty), the effects associated with the parameters only! We already have the residuals. */
-        effects.assign(Functions.square); // because we're going to compute sums of squares.
+    /**
+     * Add up the sums of squares for the columns within each factor, and compute the F statistics and p-values for a
+     * row.
+     *
+     * @param effects squared effects of the row, or null if it was not fitted
+     */
+    private void anovaRow(int i, @Nullable double[] effects, AnovaTables tables, AtomicInteger timesWarned) {
+        int residuals = tables.residuals();
 
         /*
-         * Add up the ssr for the columns within each factor.
+         * For ebayes, instead of this value (divided by rdof), we'll use the moderated sigma^2
          */
-        Set<Integer> facs = new TreeSet<>();
-        facs.addAll(assign);
+        double rss = residualSumOfSquares(i);
+        int rdof = getResidualDof(i);
 
-        DoubleMatrix2D ssq = new DenseDoubleMatrix2D(effects.rows(), facs.size() + 1);
-        DoubleMatrix2D dof = new DenseDoubleMatrix2D(effects.rows(), facs.size() + 1);
-        dof.assign(0.0);
-        ssq.assign(0.0);
-        List<Integer> assignToUse = assign; // if has missing values, this will get swapped.
-
-        for (int i = 0; i < ssq.rows(); i++) {
-
-            ssq.set(i, facs.size(), residualSumsOfSquares.get(i));
-            int rdof;
-            if (this.residualDofs.isEmpty()) {
-                rdof = this.residualDof;
-            } else {
-                rdof = this.residualDofs.get(i);
+        /*
+         * Store residual DOF in the last column.
+         */
+        tables.ssq[residuals][i] = rss;
+        tables.dof[residuals][i] = rdof;
+
+        // when missing values are present, this is row-specific.
+        List<Integer> assignToUse = assigns.isEmpty() ? assign : assigns.get(i);
+        for (int j = 0; j < assignToUse.size(); j++) {
+            double valueToAdd = effects != null && j < effects.length ? effects[j] : Double.NaN;
+            int col = assignToUse.get(j);
+            if (col > 0 && !this.hasIntercept) {
+                col = col - 1;
             }
+
             /*
-             * Store residual DOF in the last column.
+             * Accumulate the sums for the different parameters associated with the same factor. When the data is
+             * "constant" you can end up with a tiny but non-zero coefficient,
+             * but it's bogus. See bug 3177. Ignore missing values.
              */
-            dof.set(i, facs.size(), rdof);
-
-            if (!assigns.isEmpty()) {
-                // when missing values are present we end up here.
-                assignToUse = assigns.get(i);
+            if (!Double.isNaN(valueToAdd) && valueToAdd > Constants.SMALL) {
+                tables.ssq[col][i] += valueToAdd;
+                tables.dof[col][i] += 1;
             }
+        }
 
-            // these have been squared.
-            DoubleMatrix1D effectsForRow = effects.viewRow(i);
+        double denominator;
+        if (this.hasBeenShrunken) {
+            denominator = this.varPost.getQuick(i);
+        } else if (this.residualDofs.isEmpty()) {
+            // when there's just one value... (same rounding as Functions.div, which multiplies by the inverse)
+            denominator = rss * (1.0 / residualDof);
+        } else {
+            denominator = rss / rdof;
+        }
 
-            if (assignToUse.size() != effectsForRow.size()) {
-                /*
-                 * Effects will have NaNs, just so you know.
-                 */
-                log.debug("Check me: effects has missing values");
+        // don't fill in f & p values for the residual...
+        for (int j = 0; j < residuals; j++) {
+            double ndof = tables.dof[j][i];
+            if (ndof <= 0 || rdof <= 0) {
+                continue;
             }
 
-            for (int j = 0; j < assignToUse.size(); j++) {
+            double f = tables.ssq[j][i] / ndof; // this is the numerator.
 
-                double valueToAdd = effectsForRow.get(j);
-                int col = assignToUse.get(j);
-                if (col > 0 && !this.hasIntercept) {
-                    col = col - 1;
-                }
-
-                /*
-                 * Accumulate the sums for the different parameters associated with the same factor. When the data is
-                 * "constant" you can end up with a tiny but non-zero coefficient,
-                 * but it's bogus. See bug 3177. Ignore missing values.
-                 */
-                if (!Double.isNaN(valueToAdd) && valueToAdd > Constants.SMALL) {
-                    ssq.set(i, col, ssq.get(i, col) + valueToAdd);
-                    dof.set(i, col, dof.get(i, col) + 1);
-                }
+            /*
+             * Taking ratios of two very small values is not meaningful; happens if the data are ~constant.
+             */
+            if (f < Constants.SMALLISH && denominator < Constants.SMALLISH) {
+                continue;
             }
-        }
 
-        DoubleMatrix1D denominator;
-        if (this.hasBeenShrunken) {
-            denominator = this.varPost.copy();
-        } else {
-            if (this.residualDofs.isEmpty()) {
-                // when there's just one value...
-                denominator = residualSumsOfSquares.copy().assign(Functions.div(residualDof));
-            } else {
-                denominator = new DenseDoubleMatrix1D(residualSumsOfSquares.size());
-                for (int i = 0; i < residualSumsOfSquares.size(); i++) {
-                    denominator.set(i, residualSumsOfSquares.get(i) / residualDofs.get(i));
+            f = f / denominator;
+            tables.fStats[j][i] = f;
+            try {
+                tables.pValues[j][i] = pValueCalculator.fTest(f, ndof, rdof + this.dfPrior);
+            } catch (NotStrictlyPositiveException e) {
+                if (timesWarned.getAndIncrement() < 10) {
+                    log.warn("Pvalue could not be computed for F=" + f + "; denominator was="
+                            + denominator + "; Error: " + e.getMessage()
+                            + " (limited warnings of this type will be given)");
                 }
             }
         }
-
-        // Fstats and pvalues will go here. Just initializing.
-        DoubleMatrix2D fStats = ssq.copy().assign(dof, Functions.div); // this is the numerator.
-        DoubleMatrix2D pvalues = fStats.like();
-        computeStats(dof, fStats, denominator, pvalues);
-
-        return summarizeAnova(ssq, dof, fStats, pvalues);
     }
 
     /**
@@ -765,6 +1032,20 @@ public class LeastSquaresFit {
      * @return
      */
     LinearModelSummaryImpl summarize(int i) {
+        LinearModelSummaryImpl lms = summarize(i, null, new IdentityHashMap<>());
+        assert lms != null;
+        return lms;
+    }
+
+    /**
+     * @param i       index of the fit to summarize
+     * @param columns if not null, the statistics are stored in the given columns instead of creating a summary
+     * @param sdCache standard deviations of the estimated coefficients, by QR; see {@link #stdevUnscaled(int, Map)}
+     * @return the summary, or null if columns were given
+     */
+    @Nullable
+    private LinearModelSummaryImpl summarize(int i, @Nullable LinearModelSummaries columns,
+                                             Map<QRDecomposition, DoubleMatrix1D> sdCache) {
 
         String key = null;
         if (this.rowNames != null) {
@@ -777,7 +1058,7 @@ public class LeastSquaresFit {
 
         if (qrd == null) {
             log.debug("QR was null for item " + i);
-            return new LinearModelSummaryImpl(key);
+            return columns == null ? new LinearModelSummaryImpl(key) : null;
         }
 
         int rdf;
@@ -789,35 +1070,29 @@ public class LeastSquaresFit {
         assert !Double.isNaN(rdf);
 
         if (rdf == 0) {
-            return new LinearModelSummaryImpl(key);
-        }
-
-        DoubleMatrix1D resid = MatrixUtil.removeMissingOrInfinite(this.residuals.viewRow(i));
-        DoubleMatrix1D f = MatrixUtil.removeMissingOrInfinite(fitted.viewRow(i));
-
-        DoubleMatrix1D rweights = null;
-        DoubleMatrix1D sqrtweights = null;
-        if (this.weights != null) {
-            rweights = MatrixUtil.removeMissingOrInfinite(fitted.viewRow(i), this.weights.viewRow(i).copy());
-            sqrtweights = rweights.copy().assign(Functions.sqrt);
-        } else {
-            rweights = new DenseDoubleMatrix1D(f.size()).assign(1.0);
-            sqrtweights = rweights.copy();
+            return columns == null ? new LinearModelSummaryImpl(key) : null;
         }
 
         DoubleMatrix1D allCoef = coefficients.viewColumn(i); // has NA for unestimated parameters.
-        DoubleMatrix1D estCoef = MatrixUtil.removeMissingOrInfinite(allCoef); // estimated parameters.
+        double[] estCoef = new double[MatrixUtil.sizeWithoutMissingValues(allCoef)]; // estimated parameters.
 
-        if (estCoef.size() == 0) {
+        if (estCoef.length == 0) {
             log.warn("No coefficients estimated for row " + i + this.diagnosis(qrd));
             log.info("Data for this row:\n" + this.b.viewRow(i));
-            return new LinearModelSummaryImpl(key);
+            return columns == null ? new LinearModelSummaryImpl(key) : null;
+        }
+        for (int ti = 0, j = 0; ti < allCoef.size(); ti++) {
+            double c = allCoef.getQuick(ti);
+            if (!Double.isNaN(c) && !Double.isInfinite(c)) {
+                estCoef[j++] = c;
+            }
         }
 
         int rank = qrd.getRank();
-        int n = qrd.getQ().rows();
-        assert rdf == n - rank : "Rank was not correct, expected " + rdf + " but got Q rows=" + n + ", #Coef=" + rank
-                + diagnosis(qrd);
+        int n = rdf + rank;
+
+        DoubleMatrix1D fittedRow = fittedRow(i);
+        DoubleMatrix1D rowWeights = this.weights != null ? this.weights.viewRow(i) : null;
 
         //        if (is.null(w)) {
         //            mss <- if (attr(z$terms, "intercept"))
@@ -831,84 +1106,94 @@ public class LeastSquaresFit {
         //            rss <- sum(w * r^2)
         //            r <- sqrt(w) * r
         //        }
-        double mss;
-
-        if (weights != null) {
-
-            if (hasIntercept) {
-                //  m <- sum(w * f /sum(w))
-                double m = f.copy().assign(Functions.div(rweights.zSum())).assign(rweights, Functions.mult).zSum();
-
-                mss = f.copy().assign(Functions.minus(m)).assign(Functions.square).assign(rweights, Functions.mult).zSum();
-            } else {
-                mss = f.copy().assign(Functions.square).assign(rweights, Functions.mult).zSum();
+        double m = 0.0;
+        if (hasIntercept) {
+            double sumw = 0.0;
+            double sumwf = 0.0;
+            for (int j = 0; j < fittedRow.size(); j++) {
+                double f = fittedRow.getQuick(j);
+                if (Double.isNaN(f) || Double.isInfinite(f)) {
+                    continue;
+                }
+                double w = rowWeights != null ? rowWeights.getQuick(j) : 1.0;
+                sumw += w;
+                sumwf += w * f;
             }
+            m = sumwf / sumw;
+        }
 
-            assert resid.size() == rweights.size();
-        } else {
-            if (hasIntercept) {
-                mss = f.copy().assign(Functions.minus(Descriptive.mean(new DoubleArrayList(f.toArray()))))
-                        .assign(Functions.square).zSum();
-            } else {
-                mss = f.copy().assign(Functions.square).zSum();
+        // residuals are only kept if a summary is created
+        double[] resid = columns == null ? new double[n] : null;
+        int numResid = 0;
+        double mss = 0.0;
+        double rss = 0.0;
+        for (int j = 0; j < fittedRow.size(); j++) {
+            double f = fittedRow.getQuick(j);
+            if (Double.isNaN(f) || Double.isInfinite(f)) {
+                continue;
+            }
+            double w = rowWeights != null ? rowWeights.getQuick(j) : 1.0;
+            mss += w * (f - m) * (f - m);
+            double r = residuals != null ? residuals.getQuick(i, j) : b.getQuick(i, j) - f;
+            if (Double.isNaN(r) || Double.isInfinite(r)) {
+                continue;
+            }
+            rss += w * r * r;
+            if (resid != null) {
+                resid[numResid++] = rowWeights != null ? Math.sqrt(w) * r : r;
             }
         }
-
-        double rss = resid.copy().assign(Functions.square).assign(rweights, Functions.mult).zSum();
-        if (weights != null) resid = resid.copy().assign(sqrtweights, Functions.mult);
+        if (resid != null && numResid < resid.length) {
+            resid = Arrays.copyOf(resid, numResid);
+        }
 
         double resvar = rss / rdf; // sqrt of this is sigma.
 
         // matrix to hold the summary information.
-        DoubleMatrix<String, String> summaryTable = DoubleMatrixFactory.dense(allCoef.size(), 4);
-        summaryTable.assign(Double.NaN);
-        summaryTable
-                .setColumnNames(Arrays.asList(new String[]{"Estimate", "Std. Error", "t value", "Pr(>|t|)"}));
-
-        // XtXi is (X'X)^-1; in R limma this is fit$cov.coefficients: "unscaled covariance matrix of the estimable coefficients"
-
-        DoubleMatrix2D XtXi = qrd.chol2inv();
-
-        // the diagonal has the (unscaled) variances s; NEGATIVE VALUES can occur when not of full rank...
-        DoubleMatrix1D sdUnscaled = MatrixUtil.diagonal(XtXi).assign(Functions.sqrt);
+        DoubleMatrix<String, String> summaryTable = null;
+        if (columns == null) {
+            summaryTable = DoubleMatrixFactory.dense(allCoef.size(), 4);
+            summaryTable.assign(Double.NaN);
+            summaryTable
+                    .setColumnNames(Arrays.asList(new String[]{"Estimate", "Std. Error", "t value", "Pr(>|t|)"}));
+        }
 
-        // in contrast the stdev.unscaled uses the gene-specific QR
+        // sqrt of the diagonal of (X'X)^-1; in R limma (X'X)^-1 is fit$cov.coefficients: "unscaled covariance matrix of
+        // the estimable coefficients". Rows sharing a QR share it.
         // //  stdev.unscaled[i,est] <- sqrt(diag(chol2inv(out$qr$qr,size=out$rank)))
+        DoubleMatrix1D sdUnscaled = stdevUnscaled(qrd, sdCache);
 
-        this.stdevUnscaled.put(i, sdUnscaled);
-
-        DoubleMatrix1D sdScaled = MatrixUtil
-                .removeMissingOrInfinite(MatrixUtil.diagonal(XtXi).assign(Functions.mult(resvar))
-                        .assign(Functions.sqrt)); // wasteful...
+        if (columns == null) {
+            this.stdevUnscaled.put(i, sdUnscaled);
+        }
 
         // AKA Qty
 
-        DoubleMatrix1D effects = qrd.effects(MatrixUtil.removeMissingOrInfinite(this.b.viewRow(i).copy()).assign(sqrtweights, Functions.mult));
+        DoubleMatrix1D sqrtweights = null;
+        if (this.weights != null) {
+            sqrtweights = MatrixUtil.removeMissingOrInfinite(fittedRow, rowWeights.copy()).assign(Functions.sqrt);
+        }
+        DoubleMatrix1D effects = rowEffects(i, qrd, sqrtweights);
 
         // sigma is the estimated sd of the parameters. In limma, fit$sigma <- sqrt(mean(fit$effects[-(1:fit$rank)]^2)
         // in lm.series, it's same: sigma[i] <- sqrt(mean(out$effects[-(1:out$rank)]^2))
         // first p elements are associated with the coefficients; same as residuals (QQty) / resid dof.
-        //        double sigma = Math
-        //                .sqrt( resid.copy().assign( Functions.square ).aggregate( Functions.plus, Functions.identity )
-        //                        / ( resid.size() - rank ) );
 
         // Based on effects
-        double sigma = Math.sqrt(
-                effects.copy().viewPart(rank, effects.size() - rank).aggregate(Functions.plus, Functions.square) / (effects.size() - rank));
+        double sigma = sigma(effects, rank);
 
         /*
          * Finally ready to compute t-stats and finish up.
          */
 
-        DoubleMatrix1D tstats;
-        TDistribution tdist;
+        double scale;
+        double tdf;
         if (this.hasBeenShrunken) {
             /*
              * moderated t-statistic
              * out$t <- coefficients / stdev.unscaled / sqrt(out$s2.post)
              */
-            tstats = estCoef.copy().assign(sdUnscaled, Functions.div).assign(
-                    Functions.div(Math.sqrt(this.varPost.get(i))));
+            scale = Math.sqrt(this.varPost.get(i));
 
             /*
              * df.total <- df.residual + out$df.prior
@@ -921,41 +1206,40 @@ public class LeastSquaresFit {
             double dfTotal = rdf + this.dfPrior;
 
             assert !Double.isNaN(dfTotal);
-            tdist = new TDistribution(dfTotal);
+            tdf = dfTotal;
         } else {
             /*
-             * Or we could get these from
              * tstat.ord <- coefficients/ stdev.unscaled/ sigma
-             * And not have to store the sdScaled.
              */
-            tstats = estCoef.copy().assign(sdScaled, Functions.div);
-            tdist = new TDistribution(rdf);
+            scale = Math.sqrt(resvar);
+            tdf = rdf;
         }
+        double[] tstats = new double[estCoef.length];
+        for (int j = 0; j < estCoef.length; j++) {
+            tstats[j] = estCoef[j] / sdUnscaled.getQuick(j) * (1.0 / scale);
+        }
+        double[] tpvals = pValueCalculator.tTestTwoSided(tstats, tdf);
 
         int j = 0;
         for (int ti = 0; ti < allCoef.size(); ti++) {
             double c = allCoef.get(ti);
-            assert this.designMatrix != null;
-            List<String> colNames = this.designMatrix.getMatrix().getColNames();
 
-            String dmcolname;
-            if (colNames == null) {
-                dmcolname = "Column_" + ti;
-            } else {
-                dmcolname = colNames.get(ti);
+            if (summaryTable != null) {
+                summaryTable.addRowName(coefficientName(ti));
             }
-
-            summaryTable.addRowName(dmcolname);
             if (Double.isNaN(c)) {
                 continue;
             }
 
-            summaryTable.set(ti, 0, estCoef.get(j));
-            summaryTable.set(ti, 1, sdUnscaled.get(j));
-            summaryTable.set(ti, 2, tstats.get(j));
-
-            double pval = 2.0 * (1.0 - tdist.cumulativeProbability(Math.abs(tstats.get(j))));
-            summaryTable.set(ti, 3, pval);
+            double pval = tpvals[j];
+            if (summaryTable != null) {
+                summaryTable.set(ti, 0, estCoef[j]);
+                summaryTable.set(ti, 1, sdUnscaled.get(j));
+                summaryTable.set(ti, 2, tstats[j]);
+                summaryTable.set(ti, 3, pval);
+            } else {
+                columns.setCoefficient(ti, i, estCoef[j], sdUnscaled.get(j), tstats[j], pval);
+            }
 
             j++;
 
@@ -984,9 +1268,14 @@ public class LeastSquaresFit {
             adjRsquared = 0.0;
         }
 
+        if (columns != null) {
+            columns.setFit(i, sigma, rsquared, adjRsquared, fstatistic, numdf, dendf);
+            return null;
+        }
+
         // NOTE that not all the information stored in the summary is likely to be important/used,
         // while other information is probably still needed.
-        LinearModelSummaryImpl lms = new LinearModelSummaryImpl( key, allCoef.toArray(), resid.toArray(), terms,
+        LinearModelSummaryImpl lms = new LinearModelSummaryImpl( key, allCoef.toArray(), resid, terms,
             summaryTable, effects.toArray(), sdUnscaled.toArray(), rsquared, adjRsquared, fstatistic, numdf, dendf,
             null, sigma, this.hasBeenShrunken, this.dfPrior );
 
@@ -1116,71 +1405,6 @@ public class LeastSquaresFit {
         return returnValue;
     }
 
-    /**
-     * ANOVA f statistics etc.
-     *
-     * @param dof         raw degrees of freedom
-     * @param fStats      results will be stored here
-     * @param denominator residual sums of squares / rdof
-     * @param pvalues     results will be stored here
-     */
-    private void computeStats(DoubleMatrix2D dof, DoubleMatrix2D fStats, DoubleMatrix1D denominator,
-                              DoubleMatrix2D pvalues) {
-        pvalues.assign(Double.NaN);
-        int timesWarned = 0;
-        for (int i = 0; i < fStats.rows(); i++) {
-
-            int rdof;
-            if (this.residualDofs.isEmpty()) {
-                rdof = residualDof;
-            } else {
-                rdof = this.residualDofs.get(i);
-            }
-
-            for (int j = 0; j < fStats.columns(); j++) {
-
-                double ndof = dof.get(i, j);
-
-                if (ndof <= 0 || rdof <= 0) {
-                    pvalues.set(i, j, Double.NaN);
-                    fStats.set(i, j, Double.NaN);
-                    continue;
-                }
-
-                if (j == fStats.columns() - 1) {
-                    // don't fill in f & p values for the residual...
-                    pvalues.set(i, j, Double.NaN);
-                    fStats.set(i, j, Double.NaN);
-                    continue;
-                }
-
-                /*
-                 * Taking ratios of two very small values is not meaningful; happens if the data are ~constant.
-                 */
-                if (fStats.get(i, j) < Constants.SMALLISH && denominator.get(i) < Constants.SMALLISH) {
-                    pvalues.set(i, j, Double.NaN);
-                    fStats.set(i, j, Double.NaN);
-                    continue;
-                }
-
-                fStats.set(i, j, fStats.get(i, j) / denominator.get(i));
-                try {
-                    FDistribution pf = new FDistribution(ndof, rdof + this.dfPrior);
-                    pvalues.set(i, j, 1.0 - pf.cumulativeProbability(fStats.get(i, j)));
-                } catch (NotStrictlyPositiveException e) {
-                    if (timesWarned < 10) {
-                        log.warn("Pvalue could not be computed for F=" + fStats.get(i, j) + "; denominator was="
-                                + denominator.get(i) + "; Error: " + e.getMessage()
-                                + " (limited warnings of this type will be given)");
-                        timesWarned++;
-                    }
-                    pvalues.set(i, j, Double.NaN);
-                }
-
-            }
-        }
-    }
-
     /**
      * @param qrd
      * @return
@@ -1212,15 +1436,6 @@ public class LeastSquaresFit {
         wlsf();
     }
 
-    /**
-     * @param valuesPresent - only if we have unweighted regression
-     * @return appropriate cached QR, or null
-     */
-    private QRDecomposition getQR(BitVector valuesPresent) {
-        assert this.weights == null;
-        return qrs.get(valuesPresent);
-    }
-
     /**
      * Get the QR decomposition to use for data row given. If it has not yet been computed/cached return null.
      *
@@ -1231,7 +1446,7 @@ public class LeastSquaresFit {
      * missing
      * values. If there are weights, a row-specific QR is returned.
      */
-    private QRDecomposition getQR(Integer row) {
+    QRDecomposition getQR(Integer row) {
         if (!this.hasMissing && this.weights == null) {
             return this.qr;
         }
@@ -1246,6 +1461,17 @@ public class LeastSquaresFit {
 
     }
 
+    /**
+     * @param row
+     * @return the column of the design matching each column of the QR of the row (i.e. the coefficient matching each
+     * entry of its pivot order), or null if no column was dropped for that row.
+     */
+    @Nullable
+    int[] getKeptColumns(int row) {
+        QRDecomposition qrd = this.getQR(row);
+        return qrd == null ? null : keptColumnsByQR.get(qrd);
+    }
+
     /**
      * Internal function that does the hard work in unweighted case.
      */
@@ -1257,27 +1483,30 @@ public class LeastSquaresFit {
         Algebra solver = new Algebra();
 
         if (this.hasMissing) {
+            // don't bother if there are too few samples.
+            final RowFit[] rowFits = b.columns() < 3 ? new RowFit[b.rows()] : fitRowsByMissingPattern();
+
             double[][] rawResult = new double[b.rows()][];
             for (int i = 0; i < b.rows(); i++) {
-
-                DoubleMatrix1D row = b.viewRow(i);
-                if (row.size() < 3) { // don't bother.
-                    rawResult[i] = new double[A.columns()];
-                    continue;
-                }
-                DoubleMatrix1D withoutMissing = lsfWmissing(i, row, A);
-                if (withoutMissing == null) {
+                if (rowFits[i] == null) {
                     rawResult[i] = new double[A.columns()];
                 } else {
-                    rawResult[i] = withoutMissing.toArray();
+                    rawResult[i] = recordRowFit(i, rowFits[i]).toArray();
                 }
             }
             this.coefficients = new DenseDoubleMatrix2D(rawResult).viewDice();
 
         } else {
 
-            this.qr = new QRDecomposition(A);
-            this.coefficients = qr.solve(solver.transpose(b));
+            final QRDecomposition globalQr = preparedDesign != null ? preparedDesign.getQR() : new QRDecomposition(A);
+            this.qr = globalQr;
+            final DoubleMatrix2D coeffs = new DenseDoubleMatrix2D(A.columns(), b.rows());
+            // each column of b' is solved independently, so chunks of rows can be solved separately.
+            RowChunks.forEachChunk(executor, b.rows(), (from, to) -> {
+                DoubleMatrix2D chunk = globalQr.solve(solver.transpose(b.viewPart(from, 0, to - from, b.columns())));
+                coeffs.viewPart(0, from, coeffs.rows(), to - from).assign(chunk);
+            });
+            this.coefficients = coeffs;
             this.residualDof = b.columns() - qr.getRank();
             if (residualDof <= 0) {
                 throw new IllegalArgumentException(
@@ -1290,186 +1519,265 @@ public class LeastSquaresFit {
 
         assert this.coefficients.rows() == A.columns();
 
-        // It is somewhat wasteful to hold on to this.
-        this.fitted = solver.transpose(MatrixUtil.multWithMissing(A, coefficients));
+    }
 
-        if (this.hasMissing) {
-            MatrixUtil.maskMissing(b, fitted);
+    /**
+     * Perform OLS on all the rows of the data when there might be missing values (unweighted case).
+     * <p>
+     * Rows are grouped by their pattern of values present: in expression data, thousands of rows typically share a
+     * handful of distinct patterns. For each pattern, the design is subset and decomposed once, and all the rows of the
+     * group are solved at once as a multi-right-hand-side problem. Since each right-hand side is solved independently,
+     * the results are the same as fitting the rows one at a time.
+     *
+     * @return the fit for each row, to be recorded with {@link #recordRowFit(int, RowFit)}
+     */
+    private RowFit[] fitRowsByMissingPattern() {
+        assert this.weights == null;
+
+        /*
+         * Group the rows by pattern, and lay them out so that rows of the same group are contiguous.
+         */
+        Map<BitVector, IntArrayList> groups = new LinkedHashMap<>();
+        for (int i = 0; i < b.rows(); i++) {
+            groups.computeIfAbsent(valuesPresent(b.viewRow(i)), k -> new IntArrayList()).add(i);
         }
+        final BitVector[] patterns = groups.keySet().toArray(new BitVector[0]);
+        final int[] order = new int[b.rows()];
+        final int[] groupOf = new int[b.rows()];
+        int k = 0;
+        int g = 0;
+        for (IntArrayList rows : groups.values()) {
+            for (int j = 0; j < rows.size(); j++) {
+                order[k] = rows.getQuick(j);
+                groupOf[k] = g;
+                k++;
+            }
+            g++;
+        }
+        if (log.isDebugEnabled()) log.debug(patterns.length + " distinct patterns of missing values");
+
+        final RowFit[] rowFits = new RowFit[b.rows()];
+        final Map<BitVector, QRDecomposition> qrCache = new ConcurrentHashMap<>();
+        RowChunks.forEachChunk(executor, order.length, (from, to) -> {
+            int start = from;
+            while (start < to) {
+                int end = start + 1;
+                while (end < to && groupOf[end] == groupOf[start]) {
+                    end++;
+                }
+                int[] rows = Arrays.copyOfRange(order, start, end);
+                RowFit[] fits = fitPattern(patterns[groupOf[start]], A, b.viewSelection(rows, null).viewDice(),
+                        qrCache);
+                for (int j = 0; j < rows.length; j++) {
+                    rowFits[rows[j]] = fits[j];
+                }
+                start = end;
+            }
+        });
+        return rowFits;
+    }
 
-        this.residuals = b.copy().assign(fitted, Functions.minus);
+    /**
+     * @param y a data row
+     * @return the pattern of values present (not missing or infinite) in the row
+     */
+    private static BitVector valuesPresent(DoubleMatrix1D y) {
+        BitVector bv = new BitVector(y.size());
+        for (int i = 0; i < y.size(); i++) {
+            double yi = y.getQuick(i);
+            if (!Double.isNaN(yi) && !Double.isInfinite(yi)) {
+                bv.set(i);
+            }
+        }
+        return bv;
     }
 
     /**
-     * Perform OLS when there might be missing values, for a single vector of data y. If y doesn't have any missing
-     * values this works normally.
+     * Perform OLS when there might be missing values, for data vectors that share the same pattern of values present.
+     * If there are no missing values this works normally.
      * <p>
-     * Has side effect of filling in this.qrs and this.residualDofs, so run this "in order".
+     * This has no side effects other than populating the qrCache, so it can be run concurrently for different rows;
+     * the results must then be recorded with {@link #recordRowFit(int, RowFit)}, "in order".
      *
-     * @param row
-     * @param y   the data to fit. For weighted ls, you must supply y*w
-     * @param des the design matrix. For weighted ls, you must supply des*w.
-     * @return the coefficients (a.k.a. x)
+     * @param valuesPresent pattern of values present, shared by all the columns of y
+     * @param des           the design matrix. For weighted ls, you must supply des*w.
+     * @param y             the data to fit, one vector per column. For weighted ls, you must supply y*w.
+     * @param qrCache       QRs shared between rows with the same pattern of missing values; ignored (can be null) for
+     *                      weighted ls.
+     * @return the fit for each column of y
      */
-    private DoubleMatrix1D lsfWmissing(Integer row, DoubleMatrix1D y, DoubleMatrix2D des) {
-        Algebra solver = new Algebra();
-        // This can potentially be improved by getting the indices of non-missing values and using that to make slices.
-
-        List<Double> ywithoutMissingList = new ArrayList<>(y.size());
-        int size = y.size();
+    private RowFit[] fitPattern(BitVector valuesPresent, final DoubleMatrix2D des, DoubleMatrix2D y,
+                                @Nullable Map<BitVector, QRDecomposition> qrCache) {
+        int size = valuesPresent.size();
         boolean hasAssign = !this.assign.isEmpty();
-        int countNonMissing = 0;
-        for (int i = 0; i < size; i++) {
-            double v = y.getQuick(i);
-            if (!Double.isNaN(v) && !Double.isInfinite(v)) {
-                countNonMissing++;
-            }
-        }
+        int countNonMissing = valuesPresent.cardinality();
+        RowFit[] result = new RowFit[y.columns()];
 
         if (countNonMissing < 3) {
             /*
              * return nothing.
              */
-            DoubleMatrix1D re = new DenseDoubleMatrix1D(des.columns());
-            re.assign(Double.NaN);
             log.debug("Not enough non-missing values");
-            this.addQR(row, null, null);
-            this.residualDofs.add(countNonMissing - des.columns());
-            if (hasAssign) this.assigns.add(new ArrayList<Integer>());
-            return re;
+            for (int j = 0; j < result.length; j++) {
+                result[j] = RowFit.failed(des.columns(), countNonMissing - des.columns(), hasAssign);
+            }
+            return result;
         }
 
-        double[][] rawDesignWithoutMissing = new double[countNonMissing][];
+        int[] present = new int[countNonMissing];
         int index = 0;
-        boolean missing = false;
-
-        BitVector bv = new BitVector(size);
         for (int i = 0; i < size; i++) {
-            double yi = y.getQuick(i);
-            if (Double.isNaN(yi) || Double.isInfinite(yi)) {
-                missing = true;
-                continue;
+            if (valuesPresent.getQuick(i)) {
+                present[index++] = i;
             }
-            ywithoutMissingList.add(yi);
-            bv.set(i);
-            rawDesignWithoutMissing[index++] = des.viewRow(i).toArray();
         }
-        double[] yWithoutMissing = ArrayUtils.toPrimitive(ywithoutMissingList.toArray(new Double[]{}));
-        DenseDoubleMatrix2D yWithoutMissingAsMatrix = new DenseDoubleMatrix2D(new double[][]{yWithoutMissing});
+        boolean missing = countNonMissing < size;
 
-        DoubleMatrix2D designWithoutMissing = new DenseDoubleMatrix2D(rawDesignWithoutMissing);
+        DoubleMatrix2D yWithoutMissing = y.viewSelection(present, null).copy();
+        DoubleMatrix2D designWithoutMissing = des.viewSelection(present, null).copy();
 
-        boolean fail = false;
         List<Integer> droppedColumns = new ArrayList<>();
-        designWithoutMissing = this.cleanDesign(designWithoutMissing, yWithoutMissingAsMatrix.size(), droppedColumns);
+        designWithoutMissing = this.cleanDesign(designWithoutMissing, countNonMissing, droppedColumns);
 
         if (designWithoutMissing.columns() == 0 || designWithoutMissing.columns() > designWithoutMissing.rows()) {
-            fail = true;
-        }
-
-        if (fail) {
-            DoubleMatrix1D re = new DenseDoubleMatrix1D(des.columns());
-            re.assign(Double.NaN);
-            this.addQR(row, null, null);
-            this.residualDofs.add(countNonMissing - des.columns());
-            if (hasAssign) this.assigns.add(new ArrayList<Integer>());
-            return re;
+            for (int j = 0; j < result.length; j++) {
+                result[j] = RowFit.failed(des.columns(), countNonMissing - des.columns(), hasAssign);
+            }
+            return result;
         }
 
-        QRDecomposition rqr = null;
+        QRDecomposition rqr;
         if (this.weights != null) {
             rqr = new QRDecomposition(designWithoutMissing);
-            addQR(row, null, rqr);
         } else if (missing) {
-            rqr = this.getQR(bv);
-            if (rqr == null) {
-                rqr = new QRDecomposition(designWithoutMissing);
-                addQR(row, bv, rqr);
-            }
+            final DoubleMatrix2D cleanedDesign = designWithoutMissing;
+            rqr = patternQR(valuesPresent, qrCache, () -> new QRDecomposition(cleanedDesign));
         } else {
             // in the case of weighted least squares, the Design matrix has different weights
             // for every row observation, so recompute qr everytime.
             if (this.qr == null) {
-                rqr = new QRDecomposition(des);
+                rqr = patternQR(valuesPresent, qrCache, () -> new QRDecomposition(des));
             } else {
                 // presumably not weighted.Why would this be set already, though? Is this ever reached?
                 rqr = this.qr;
             }
         }
 
-        this.addQR(row, bv, rqr);
-
         int pivots = rqr.getRank();
 
-        int rdof = yWithoutMissingAsMatrix.size() - pivots;
-        this.residualDofs.add(rdof);
+        int rdof = countNonMissing - pivots;
 
-        DoubleMatrix2D coefs = rqr.solve(solver.transpose(yWithoutMissingAsMatrix));
+        DoubleMatrix2D coefs = rqr.solve(yWithoutMissing);
 
         /*
          * Put NaNs in for missing coefficients that were dropped from our estimation.
          */
+        List<Integer> assignForRows = this.assign;
         if (designWithoutMissing.columns() < des.columns()) {
-            DoubleMatrix1D col = coefs.viewColumn(0);
-            DoubleMatrix1D result = new DenseDoubleMatrix1D(des.columns());
-            result.assign(Double.NaN);
-            int k = 0;
-            List<Integer> assignForRow = new ArrayList<>();
+            assignForRows = new ArrayList<>();
             for (int i = 0; i < des.columns(); i++) {
-                if (droppedColumns.contains(i)) {
-                    // leave it as NaN.
-                    continue;
+                if (!droppedColumns.contains(i) && hasAssign) {
+                    assignForRows.add(this.assign.get(i));
                 }
+            }
+        }
 
-                if (hasAssign) assignForRow.add(this.assign.get(i));
-                assert k < col.size();
-                result.set(i, col.get(k));
-                k++;
+        int[] keptColumns = null;
+        if (designWithoutMissing.columns() < des.columns()) {
+            keptColumns = new int[designWithoutMissing.columns()];
+            for (int i = 0, c = 0; i < des.columns(); i++) {
+                if (!droppedColumns.contains(i)) {
+                    keptColumns[c++] = i;
+                }
             }
-            if (hasAssign) assigns.add(assignForRow);
-            return result;
         }
-        if (hasAssign) assigns.add(this.assign);
-        return coefs.viewColumn(0);
 
+        for (int j = 0; j < result.length; j++) {
+            DoubleMatrix1D col = coefs.viewColumn(j);
+            if (designWithoutMissing.columns() < des.columns()) {
+                DoubleMatrix1D expanded = new DenseDoubleMatrix1D(des.columns());
+                expanded.assign(Double.NaN);
+                int c = 0;
+                for (int i = 0; i < des.columns(); i++) {
+                    if (droppedColumns.contains(i)) {
+                        // leave it as NaN.
+                        continue;
+                    }
+                    assert c < col.size();
+                    expanded.set(i, col.get(c));
+                    c++;
+                }
+                col = expanded;
+            }
+            result[j] = new RowFit(col, rdof, hasAssign ? assignForRows : null, valuesPresent, rqr, keptColumns);
+        }
+        return result;
     }
 
     /**
-     * @param ssq
-     * @param dof
-     * @param fStats
-     * @param pvalues
+     * @param valuesPresent pattern of values present
+     * @param qrCache       QRs shared between the rows of this fit; not used if the design is prepared, since the QRs
+     *                      are then shared with other fits
+     * @param qr            computes the QR for the pattern if it is not cached
      * @return
      */
-    private List<GenericAnovaResult> summarizeAnova(DoubleMatrix2D ssq, DoubleMatrix2D dof, DoubleMatrix2D fStats,
-                                                    DoubleMatrix2D pvalues) {
+    private QRDecomposition patternQR(BitVector valuesPresent, @Nullable Map<BitVector, QRDecomposition> qrCache,
+                                      Supplier<QRDecomposition> qr) {
+        if (preparedDesign != null) {
+            return preparedDesign.getQR(valuesPresent, qr);
+        }
+        assert qrCache != null;
+        return qrCache.computeIfAbsent(valuesPresent, k -> qr.get());
+    }
 
-        assert ssq != null;
-        assert dof != null;
-        assert fStats != null;
-        assert pvalues != null;
+    /**
+     * Record the fit of a row obtained with {@link #fitPattern(BitVector, DoubleMatrix2D, DoubleMatrix2D, Map)}. Has side
+     * effect of filling in this.qrs, this.residualDofs and this.assigns, so run this "in order".
+     *
+     * @param row index of the row in the data matrix
+     * @param rowFit
+     * @return the coefficients (a.k.a. x)
+     */
+    private DoubleMatrix1D recordRowFit(int row, RowFit rowFit) {
+        if (this.weights != null) {
+            this.addQR(row, null, rowFit.qr);
+        }
+        this.addQR(row, rowFit.valuesPresent, rowFit.qr);
+        if (rowFit.qr != null && rowFit.keptColumns != null) {
+            this.keptColumnsByQR.put(rowFit.qr, rowFit.keptColumns);
+        }
+        this.residualDofs.add(rowFit.residualDof);
+        if (rowFit.assign != null) this.assigns.add(rowFit.assign);
+        return rowFit.coefficients;
+    }
+
+    /**
+     * @param tables
+     * @return
+     */
+    private List<GenericAnovaResult> summarizeAnova(AnovaTables tables) {
 
         List<GenericAnovaResult> results = new ArrayList<>();
-        for (int i = 0; i < fStats.rows(); i++) {
+        int residCol = tables.residuals();
+        for (int i = 0; i < this.b.rows(); i++) {
             Collection<AnovaEffect> efs = new ArrayList<>();
 
             /*
-             * Don't put in ftest results for the residual thus the -1.
+             * Don't put in ftest results for the residual.
              */
-            for (int j = 0; j < fStats.columns() - 1; j++) {
+            for (int j = 0; j < residCol; j++) {
                 String effectName = terms.get(j);
                 assert effectName != null;
-                AnovaEffect ae = new AnovaEffect(effectName, pvalues.get(i, j), fStats.get(i, j), dof.get(
-                    i, j ), ssq.get( i, j ), effectName.contains( ":" ), false );
+                AnovaEffect ae = new AnovaEffect(effectName, tables.pValues[j][i], tables.fStats[j][i], tables.dof[j][i],
+                        tables.ssq[j][i], effectName.contains( ":" ), false );
                 efs.add(ae);
             }
 
             /*
              * Add residual
              */
-            int residCol = fStats.columns() - 1;
-            AnovaEffect ae = new AnovaEffect( "Residual", Double.NaN, Double.NaN, dof.get( i, residCol ) + this.dfPrior, ssq.get( i,
-                residCol ), false, true );
+            AnovaEffect ae = new AnovaEffect( "Residual", Double.NaN, Double.NaN, tables.dof[residCol][i] + this.dfPrior,
+                tables.ssq[residCol][i], false, true );
             efs.add(ae);
 
             GenericAnovaResultImpl ao = new GenericAnovaResultImpl( this.rowNames != null ? this.rowNames.get( i ) : String.valueOf( i ), efs );
@@ -1488,12 +1796,6 @@ public class LeastSquaresFit {
         checkForMissingValues();
         Algebra solver = new Algebra();
 
-        /*
-         * weight A and b: wts <- sqrt(w) A * wts, row * wts
-         */
-        List<DoubleMatrix2D> AwList = new ArrayList<>(b.rows());
-        List<DoubleMatrix1D> bList = new ArrayList<>(b.rows());
-
         /*
          * Implemented like R::stats::lm.wfit : z <- .Call(C_Cdqrls, x * wts, y * wts, tol, FALSE), but we're doing each
          * y (gene) separately rather than in bulk since weights are different for each y.
@@ -1501,50 +1803,51 @@ public class LeastSquaresFit {
          *
          * Limma uses this approach in lm.series.
          */
-        for (int i = 0; i < b.rows(); i++) {
-            DoubleMatrix1D wts = this.weights.viewRow(i).copy().assign(Functions.sqrt);
-            DoubleMatrix1D bw = b.viewRow(i).copy().assign(wts, Functions.mult);
-            DoubleMatrix2D Aw = A.copy();
-            for (int j = 0; j < Aw.columns(); j++) {
-                Aw.viewColumn(j).assign(wts, Functions.mult);
-            }
-            AwList.add(Aw);
-            bList.add(bw);
-        }
-
-        double[][] rawResult = new double[b.rows()][];
+        final double[][] rawResult = new double[b.rows()][];
 
         if (this.hasMissing) {
             /*
              * Have to drop missing values from the design matrix, so invoke special code.
              */
-            for (int i = 0; i < b.rows(); i++) {
-                DoubleMatrix1D bw = bList.get(i);
-                DoubleMatrix2D Aw = AwList.get(i);
-                DoubleMatrix1D withoutMissing = lsfWmissing(i, bw, Aw);
-                if (withoutMissing == null) {
-                    rawResult[i] = new double[A.columns()];
-                } else {
-                    rawResult[i] = withoutMissing.toArray();
+            final RowFit[] rowFits = new RowFit[b.rows()];
+            RowChunks.forEachChunk(executor, b.rows(), (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    DoubleMatrix1D wts = this.weights.viewRow(i).copy().assign(Functions.sqrt);
+                    DoubleMatrix1D bw = weightData(i, wts);
+                    DoubleMatrix2D bw2D = new DenseDoubleMatrix2D(bw.size(), 1);
+                    bw2D.viewColumn(0).assign(bw);
+                    rowFits[i] = fitPattern(valuesPresent(bw), weightDesign(wts), bw2D, null)[0];
                 }
+            });
+            for (int i = 0; i < b.rows(); i++) {
+                rawResult[i] = recordRowFit(i, rowFits[i]).toArray();
             }
 
         } else {
 
             // do QR for each row because A is scaled by different row weights
             // see lm.series() in limma; calls lm.wfit.
+            final QRDecomposition[] wqrs = new QRDecomposition[b.rows()];
+            RowChunks.forEachChunk(executor, b.rows(), (from, to) -> {
+                Algebra rowSolver = new Algebra();
+                for (int i = from; i < to; i++) {
+                    DoubleMatrix1D wts = this.weights.viewRow(i).copy().assign(Functions.sqrt);
+                    DoubleMatrix1D bw = weightData(i, wts);
+                    DoubleMatrix2D bw2D = new DenseDoubleMatrix2D(1, bw.size());
+                    bw2D.viewRow(0).assign(bw);
+                    QRDecomposition wqr = new QRDecomposition(weightDesign(wts));
+                    wqrs[i] = wqr;
+                    rawResult[i] = wqr.solve(rowSolver.transpose(bw2D)).viewColumn(0).toArray();
+                }
+            });
+
             for (int i = 0; i < b.rows(); i++) {
-                DoubleMatrix1D bw = bList.get(i);
-                DoubleMatrix2D Aw = AwList.get(i);
-                DoubleMatrix2D bw2D = new DenseDoubleMatrix2D(1, bw.size());
-                bw2D.viewRow(0).assign(bw);
-                QRDecomposition wqr = new QRDecomposition(Aw);
+                QRDecomposition wqr = wqrs[i];
 
                 // We keep all the QRs for later use.
                 this.addQR(i, null, wqr);
 
-                rawResult[i] = wqr.solve(solver.transpose(bw2D)).viewColumn(0).toArray();
-                this.residualDof = bw.size() - wqr.getRank();
+                this.residualDof = b.columns() - wqr.getRank();
                 assert this.residualDof >= 0;
                 if (residualDof == 0) {
                     throw new IllegalArgumentException("No residual degrees of freedom to fit the model"
@@ -1558,14 +1861,171 @@ public class LeastSquaresFit {
         assert this.assign.isEmpty() || this.assign.size() == this.coefficients.rows() : assign.size()
                 + " != # coefficients " + this.coefficients.rows();
         assert this.coefficients.rows() == A.columns();
+    }
 
-        this.fitted = solver.transpose(MatrixUtil.multWithMissing(A, coefficients));
+    /**
+     * @param ti index of the coefficient (column of the design)
+     * @return the name used for the coefficient in the summaries
+     */
+    String coefficientName(int ti) {
+        assert this.designMatrix != null;
+        List<String> colNames = this.designMatrix.getMatrix().getColNames();
+        if (colNames == null) {
+            return "Column_" + ti;
+        }
+        return colNames.get(ti);
+    }
 
+    /**
+     * Fitted values for one row of the data, computed the same way as {@link #getFitted()}.
+     *
+     * @param i index of the data row
+     * @return fitted values, with missing values where the data is missing
+     */
+    private DoubleMatrix1D fittedRow(int i) {
+        if (fitted != null) {
+            return fitted.viewRow(i);
+        }
+        DoubleMatrix1D f = MatrixUtil.multWithMissing(A, coefficients.viewColumn(i));
         if (this.hasMissing) {
-            MatrixUtil.maskMissing(b, fitted);
+            for (int j = 0; j < f.size(); j++) {
+                if (Double.isNaN(b.getQuick(i, j))) {
+                    f.setQuick(j, Double.NaN);
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * @param i index of the data row
+     * @return residuals for the row, with missing values where the data is missing
+     */
+    DoubleMatrix1D residualRow(int i) {
+        return residualRow(i, fittedRow(i));
+    }
+
+    /**
+     * @param i         index of the data row
+     * @param fittedRow fitted values for the row
+     * @return residuals for the row
+     */
+    private DoubleMatrix1D residualRow(int i, DoubleMatrix1D fittedRow) {
+        if (residuals != null) {
+            return residuals.viewRow(i);
+        }
+        return b.viewRow(i).copy().assign(fittedRow, Functions.minus);
+    }
+
+    /**
+     * @param i           index of the data row
+     * @param qrd         QR used to fit the row
+     * @param sqrtweights square roots of the weights of the values present in the row, or null if unweighted
+     * @return the effects (Qty) of the row, without its missing values
+     */
+    private DoubleMatrix1D rowEffects(int i, QRDecomposition qrd, @Nullable DoubleMatrix1D sqrtweights) {
+        DoubleMatrix1D y = MatrixUtil.removeMissingOrInfinite(this.b.viewRow(i).copy());
+        if (sqrtweights != null) {
+            y.assign(sqrtweights, Functions.mult);
+        }
+        return qrd.effects(y);
+    }
+
+    /**
+     * @return sigma, based on the effects beyond the rank
+     */
+    private static double sigma(DoubleMatrix1D effects, int rank) {
+        double ss = 0.0;
+        for (int j = rank; j < effects.size(); j++) {
+            ss += effects.getQuick(j) * effects.getQuick(j);
+        }
+        return Math.sqrt(ss / (effects.size() - rank));
+    }
+
+    /**
+     * @param i index of the data row
+     * @return sum of the squared (weighted, if applicable) residuals for the row, ignoring missing values
+     */
+    double residualSumOfSquares(int i) {
+        DoubleMatrix1D r = residualRow(i, fittedRow(i)).copy();
+        if (this.weights != null) {
+            r.assign(this.weights.viewRow(i).copy().assign(Functions.sqrt), Functions.mult);
+        }
+        double rss = 0.0;
+        for (int j = 0; j < r.size(); j++) {
+            double v = r.getQuick(j);
+            if (Double.isNaN(v)) {
+                continue;
+            }
+            rss += v * v;
         }
+        return rss;
+    }
 
-        this.residuals = b.copy().assign(fitted, Functions.minus);
+    /**
+     * @param row index of the data row
+     * @param wts square roots of the weights for the row
+     * @return the data row, weighted: y * wts
+     */
+    private DoubleMatrix1D weightData(int row, DoubleMatrix1D wts) {
+        return b.viewRow(row).copy().assign(wts, Functions.mult);
+    }
+
+    /**
+     * @param wts square roots of the weights for a data row
+     * @return the design, weighted: A * wts
+     */
+    private DoubleMatrix2D weightDesign(DoubleMatrix1D wts) {
+        DoubleMatrix2D Aw = A.copy();
+        for (int j = 0; j < Aw.columns(); j++) {
+            Aw.viewColumn(j).assign(wts, Functions.mult);
+        }
+        return Aw;
+    }
+
+    /**
+     * Fit of a single data row, computed by {@link #fitPattern(BitVector, DoubleMatrix2D, DoubleMatrix2D, Map)}.
+     */
+    private static class RowFit {
+
+        /**
+         * Produce the result for a row that could not be fit.
+         */
+        private static RowFit failed(int numCoefficients, int residualDof, boolean hasAssign) {
+            DoubleMatrix1D re = new DenseDoubleMatrix1D(numCoefficients);
+            re.assign(Double.NaN);
+            return new RowFit(re, residualDof, hasAssign ? new ArrayList<Integer>() : null, null, null, null);
+        }
+
+        private final DoubleMatrix1D coefficients;
+        private final int residualDof;
+        /**
+         * Row-specific assign, or null if the model has no assign.
+         */
+        @Nullable
+        private final List<Integer> assign;
+        /**
+         * Pattern of values present, or null if the row could not be fit.
+         */
+        @Nullable
+        private final BitVector valuesPresent;
+        @Nullable
+        private final QRDecomposition qr;
+        /**
+         * Column of the design matching each column of the QR, or null if no column was dropped.
+         */
+        @Nullable
+        private final int[] keptColumns;
+
+        private RowFit(DoubleMatrix1D coefficients, int residualDof, @Nullable List<Integer> assign,
+                       @Nullable BitVector valuesPresent, @Nullable QRDecomposition qr, @Nullable int[] keptColumns) {
+            this.coefficients = coefficients;
+            this.residualDof = residualDof;
+            this.assign = assign;
+            this.valuesPresent = valuesPresent;
+            this.qr = qr;
+            this.keptColumns = keptColumns;
+        }
     }
 
 }
@@ -0,0 +1,275 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Empirical p-values for the statistics of linear models fitted to all the rows of a dataset, obtained by permutation.
+ * <p>
+ * Permuting the sample labels of the design is the same as permuting the samples of the data against the original
+ * design, so the decompositions of the {@link PreparedDesign} are reused by all the permutations (along with those of
+ * the patterns of missing values encountered). Alternatively, the residuals of the fit can be permuted (ter Braak):
+ * fitting the permuted residuals gives the null distribution of the statistics around the estimates.
+ * <p>
+ * Only the requested statistic is computed for each permutation, and only the number of times it reaches the observed
+ * value is kept for each row, so memory does not grow with the number of permutations. The p-values are
+ * <tt>(b + 1) / (m + 1)</tt>, where <tt>b</tt> is that number and <tt>m</tt> the number of permutations for which the
+ * statistic could be computed. t-statistics are compared in absolute value.
+ * <p>
+ * Permutations are split among the threads of the executor, if any. Each permutation is generated from its own seed,
+ * drawn in order from the seed of the run, so the results are the same however the permutations are distributed.
+ *
+ * @author poirigui
+ */
+public class LinearModelPermutations {
+
+    public enum Statistic {
+        /**
+         * t-statistics of the coefficients.
+         */
+        T,
+        /**
+         * Moderated t-statistics of the coefficients; ebayes is run on each permutation.
+         */
+        MODERATED_T,
+        /**
+         * F statistics of the ANOVA terms.
+         */
+        F,
+        /**
+         * Moderated F statistics of the ANOVA terms; ebayes is run on each permutation.
+         */
+        MODERATED_F
+    }
+
+    public enum Strategy {
+        /**
+         * Permute the samples.
+         */
+        SAMPLES,
+        /**
+         * Permute the residuals of the fit of the data.
+         */
+        RESIDUALS
+    }
+
+    /**
+     * Results of a permutation test. Matrices have a row per coefficient or ANOVA term and a column per data row.
+     */
+    public static class Result {
+
+        private final List<String> names;
+        private final DoubleMatrix2D observed;
+        private final DoubleMatrix2D pValues;
+        private final int numPermutations;
+
+        private Result( List<String> names, DoubleMatrix2D observed, DoubleMatrix2D pValues, int numPermutations ) {
+            this.names = names;
+            this.observed = observed;
+            this.pValues = pValues;
+            this.numPermutations = numPermutations;
+        }
+
+        /**
+         * @return names of the coefficients or ANOVA terms
+         */
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * @return statistics of the data
+         */
+        public DoubleMatrix2D getObserved() {
+            return observed;
+        }
+
+        /**
+         * @return empirical p-values; missing where the statistic of the data is missing
+         */
+        public DoubleMatrix2D getPValues() {
+            return pValues;
+        }
+
+        public int getNumPermutations() {
+            return numPermutations;
+        }
+    }
+
+    private final PreparedDesign design;
+    private final DoubleMatrix2D data;
+    private final Statistic statistic;
+    private final Strategy strategy;
+
+    /**
+     * @param design    the design, shared by all the permutations
+     * @param data      the data, with a row per fit and a column per sample
+     * @param statistic statistic to compute
+     * @param strategy  what to permute
+     */
+    public LinearModelPermutations( PreparedDesign design, DoubleMatrix2D data, Statistic statistic,
+            Strategy strategy ) {
+        if ( data.columns() != design.getDesignMatrix().getDoubleMatrix().rows() ) {
+            throw new IllegalArgumentException( "The data must have one column per sample of the design" );
+        }
+        this.design = design;
+        this.data = data;
+        this.statistic = statistic;
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param numPermutations number of permutations
+     * @param seed            seed from which the permutations are generated
+     * @param executor        used to run permutations concurrently; if null, they are run serially.
+     */
+    public Result run( final int numPermutations, long seed, @Nullable ExecutorService executor ) {
+        if ( numPermutations <= 0 ) {
+            throw new IllegalArgumentException( "The number of permutations must be positive" );
+        }
+        LeastSquaresFit fit = new LeastSquaresFit( design, data, executor );
+        final DoubleMatrix2D observed = statistics( fit );
+        final DoubleMatrix2D source = strategy == Strategy.RESIDUALS ? fit.getResiduals() : data;
+        final int numStats = observed.rows();
+        final int numRows = observed.columns();
+        final boolean twoSided = statistic == Statistic.T || statistic == Statistic.MODERATED_T;
+
+        final long[] seeds = seeds( seed, numPermutations );
+        final int[][] reached = new int[numStats][numRows];
+        final int[][] computed = new int[numStats][numRows];
+        RowChunks.forEachChunk( executor, numPermutations, ( from, to ) -> {
+            int[][] chunkReached = new int[numStats][numRows];
+            int[][] chunkComputed = new int[numStats][numRows];
+            for ( int k = from; k < to; k++ ) {
+                int[] permutation = permutation( source.columns(), seeds[k] );
+                DoubleMatrix2D permuted = source.viewSelection( null, permutation ).copy();
+                DoubleMatrix2D stats = statistics( new LeastSquaresFit( design, permuted, null ) );
+                for ( int s = 0; s < numStats; s++ ) {
+                    for ( int i = 0; i < numRows; i++ ) {
+                        double stat = stats.getQuick( s, i );
+                        if ( Double.isNaN( stat ) ) {
+                            continue;
+                        }
+                        chunkComputed[s][i]++;
+                        double obs = observed.getQuick( s, i );
+                        if ( twoSided ? Math.abs( stat ) >= Math.abs( obs ) : stat >= obs ) {
+                            chunkReached[s][i]++;
+                        }
+                    }
+                }
+            }
+            synchronized ( reached ) {
+                for ( int s = 0; s < numStats; s++ ) {
+                    for ( int i = 0; i < numRows; i++ ) {
+                        reached[s][i] += chunkReached[s][i];
+                        computed[s][i] += chunkComputed[s][i];
+                    }
+                }
+            }
+        } );
+
+        DoubleMatrix2D pValues = new DenseDoubleMatrix2D( numStats, numRows );
+        for ( int s = 0; s < numStats; s++ ) {
+            for ( int i = 0; i < numRows; i++ ) {
+                if ( Double.isNaN( observed.getQuick( s, i ) ) ) {
+                    pValues.setQuick( s, i, Double.NaN );
+                } else {
+                    pValues.setQuick( s, i, ( reached[s][i] + 1.0 ) / ( computed[s][i] + 1.0 ) );
+                }
+            }
+        }
+        return new Result( names( fit, numStats ), observed, pValues, numPermutations );
+    }
+
+    /**
+     * @return the requested statistic for all the rows of the fit
+     */
+    private DoubleMatrix2D statistics( LeastSquaresFit fit ) {
+        if ( statistic == Statistic.MODERATED_T || statistic == Statistic.MODERATED_F ) {
+            ModeratedTstat.ebayes( fit );
+        }
+        switch ( statistic ) {
+            case T:
+                int p = fit.getCoefficients().rows();
+                DoubleMatrix2D identity = new DenseDoubleMatrix2D( p, p );
+                for ( int c = 0; c < p; c++ ) {
+                    identity.setQuick( c, c, 1.0 );
+                }
+                return new ContrastFit( fit, identity ).getTStats();
+            case MODERATED_T:
+                return ModeratedTstat.moderatedTStatistics( fit )[0];
+            case F:
+            case MODERATED_F:
+                // F statistics are moderated if ebayes was run
+                AnovaTables tables = fit.anovaTables();
+                return new DenseDoubleMatrix2D( tables.fStats ).viewPart( 0, 0, tables.residuals(),
+                        fit.getCoefficients().columns() );
+            default:
+                throw new IllegalStateException( "Unsupported statistic " + statistic );
+        }
+    }
+
+    private List<String> names( LeastSquaresFit fit, int numStats ) {
+        List<String> names;
+        if ( statistic == Statistic.F || statistic == Statistic.MODERATED_F ) {
+            names = new ArrayList<>( design.getDesignMatrix().getTerms().subList( 0, numStats ) );
+        } else {
+            names = new ArrayList<>( numStats );
+            for ( int c = 0; c < numStats; c++ ) {
+                names.add( fit.coefficientName( c ) );
+            }
+        }
+        return Collections.unmodifiableList( names );
+    }
+
+    /**
+     * @return one seed per permutation
+     */
+    static long[] seeds( long seed, int numPermutations ) {
+        Random random = new Random( seed );
+        long[] seeds = new long[numPermutations];
+        for ( int k = 0; k < numPermutations; k++ ) {
+            seeds[k] = random.nextLong();
+        }
+        return seeds;
+    }
+
+    /**
+     * @return a random permutation of the n first integers (Fisher-Yates)
+     */
+    static int[] permutation( int n, long seed ) {
+        Random random = new Random( seed );
+        int[] permutation = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            permutation[i] = i;
+        }
+        for ( int i = n - 1; i > 0; i-- ) {
+            int j = random.nextInt( i + 1 );
+            int tmp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = tmp;
+        }
+        return permutation;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import org.jspecify.annotations.Nullable;
+import ubic.basecode.math.PValueCalculator;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summaries of all the rows of a {@link LeastSquaresFit}, stored by column: there is one array, indexed by row, for
+ * each statistic of each coefficient, ANOVA term and of the overall fit. This avoids creating a
+ * {@link LinearModelSummary} (with its own arrays, maps and ANOVA table) for every row.
+ * <p>
+ * Rows that could not be fitted have missing values. Returned arrays are not copied and must not be modified.
+ * <p>
+ * Row-level {@link LinearModelSummary} views can still be obtained with {@link #getSummary(int)}; they are computed from
+ * the fit when requested.
+ *
+ * @author poirigui
+ * @see LeastSquaresFit#summarizeColumns(boolean)
+ */
+public class LinearModelSummaries {
+
+    private final LeastSquaresFit fit;
+
+    @Nullable
+    private final List<String> keys;
+    private final int numRows;
+
+    private final List<String> terms;
+    private final List<String> coefficientNames;
+    private final double[][] estimates;
+    private final double[][] stdErrs;
+    private final double[][] tStats;
+    private final double[][] pValues;
+
+    private final double[] sigma;
+    private final double[] rSquared;
+    private final double[] adjRSquared;
+    private final double[] fStat;
+    private final double[] numeratorDof;
+    private final double[] residualsDof;
+    @Nullable
+    private double[] overallPValues = null;
+
+    /**
+     * Null if the ANOVA was not computed.
+     */
+    @Nullable
+    private final List<String> anovaTerms;
+    @Nullable
+    private final double[][] anovaFStats;
+    @Nullable
+    private final double[][] anovaPValues;
+    @Nullable
+    private final double[][] anovaDof;
+    @Nullable
+    private final double[][] anovaSsq;
+    @Nullable
+    private final double[] anovaResidualsDof;
+    @Nullable
+    private final double[] anovaResidualsSsq;
+
+    private final boolean shrunken;
+    private final double priorDof;
+    private final double priorVariance;
+
+    /**
+     * @param terms      names of the terms (factors) of the model
+     * @param anovaTerms names of the ANOVA terms, excluding the residuals, or null if the ANOVA is not computed
+     */
+    LinearModelSummaries( LeastSquaresFit fit, @Nullable List<String> keys, int numRows, List<String> terms,
+            List<String> coefficientNames, @Nullable List<String> anovaTerms, boolean shrunken, double priorDof,
+            double priorVariance ) {
+        this.fit = fit;
+        this.keys = keys;
+        this.numRows = numRows;
+        this.terms = Collections.unmodifiableList( new ArrayList<>( terms ) );
+        this.coefficientNames = Collections.unmodifiableList( new ArrayList<>( coefficientNames ) );
+        this.estimates = nans( coefficientNames.size(), numRows );
+        this.stdErrs = nans( coefficientNames.size(), numRows );
+        this.tStats = nans( coefficientNames.size(), numRows );
+        this.pValues = nans( coefficientNames.size(), numRows );
+        this.sigma = nans( numRows );
+        this.rSquared = nans( numRows );
+        this.adjRSquared = nans( numRows );
+        this.fStat = nans( numRows );
+        this.numeratorDof = nans( numRows );
+        this.residualsDof = nans( numRows );
+        if ( anovaTerms != null ) {
+            this.anovaTerms = Collections.unmodifiableList( new ArrayList<>( anovaTerms ) );
+            this.anovaFStats = nans( anovaTerms.size(), numRows );
+            this.anovaPValues = nans( anovaTerms.size(), numRows );
+            this.anovaDof = nans( anovaTerms.size(), numRows );
+            this.anovaSsq = nans( anovaTerms.size(), numRows );
+            this.anovaResidualsDof = nans( numRows );
+            this.anovaResidualsSsq = nans( numRows );
+        } else {
+            this.anovaTerms = null;
+            this.anovaFStats = null;
+            this.anovaPValues = null;
+            this.anovaDof = null;
+            this.anovaSsq = null;
+            this.anovaResidualsDof = null;
+            this.anovaResidualsSsq = null;
+        }
+        this.shrunken = shrunken;
+        this.priorDof = priorDof;
+        this.priorVariance = priorVariance;
+    }
+
+    public int size() {
+        return numRows;
+    }
+
+    /**
+     * @return the keys of the rows (e.g. probe identifiers), or null if the data had no row names.
+     */
+    @Nullable
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the names of the terms (factors) of the model
+     */
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    public List<String> getCoefficientNames() {
+        return coefficientNames;
+    }
+
+    /**
+     * @return estimates of the given coefficient for all the rows; missing where the coefficient was not estimable.
+     */
+    public double[] getEstimates( String coefficientName ) {
+        return estimates[coefficientIndex( coefficientName )];
+    }
+
+    /**
+     * @return the values of the "Std. Error" column of the coefficient tables of the summaries for the given
+     *         coefficient.
+     */
+    public double[] getStdErrs( String coefficientName ) {
+        return stdErrs[coefficientIndex( coefficientName )];
+    }
+
+    /**
+     * @return t statistics (moderated, if ebayes was applied) for the given coefficient.
+     */
+    public double[] getTStats( String coefficientName ) {
+        return tStats[coefficientIndex( coefficientName )];
+    }
+
+    public double[] getPValues( String coefficientName ) {
+        return pValues[coefficientIndex( coefficientName )];
+    }
+
+    public double[] getSigma() {
+        return sigma;
+    }
+
+    public double[] getRSquared() {
+        return rSquared;
+    }
+
+    public double[] getAdjRSquared() {
+        return adjRSquared;
+    }
+
+    /**
+     * @return F statistics for the overall model fits
+     */
+    public double[] getFStats() {
+        return fStat;
+    }
+
+    public double[] getNumeratorDof() {
+        return numeratorDof;
+    }
+
+    public double[] getResidualsDof() {
+        return residualsDof;
+    }
+
+    /**
+     * @return p-values for the overall model fits, computed on the first call.
+     */
+    public double[] getOverallPValues() {
+        if ( overallPValues == null ) {
+            overallPValues = new PValueCalculator().fTest( fStat, numeratorDof, residualsDof );
+        }
+        return overallPValues;
+    }
+
+    public boolean hasAnova() {
+        return anovaTerms != null;
+    }
+
+    /**
+     * @return the names of the ANOVA terms, excluding the residuals.
+     * @throws IllegalStateException if the ANOVA was not computed
+     */
+    public List<String> getAnovaTerms() {
+        checkAnova();
+        return anovaTerms;
+    }
+
+    public double[] getAnovaFStats( String term ) {
+        checkAnova();
+        return anovaFStats[anovaTermIndex( term )];
+    }
+
+    public double[] getAnovaPValues( String term ) {
+        checkAnova();
+        return anovaPValues[anovaTermIndex( term )];
+    }
+
+    public double[] getAnovaDof( String term ) {
+        checkAnova();
+        return anovaDof[anovaTermIndex( term )];
+    }
+
+    public double[] getAnovaSsq( String term ) {
+        checkAnova();
+        return anovaSsq[anovaTermIndex( term )];
+    }
+
+    /**
+     * @return residual degrees of freedom of the ANOVA tables, including the prior degrees of freedom if ebayes was
+     *         applied.
+     */
+    public double[] getAnovaResidualsDof() {
+        checkAnova();
+        return anovaResidualsDof;
+    }
+
+    public double[] getAnovaResidualsSsq() {
+        checkAnova();
+        return anovaResidualsSsq;
+    }
+
+    public boolean isShrunken() {
+        return shrunken;
+    }
+
+    public double getPriorDof() {
+        return priorDof;
+    }
+
+    /**
+     * @return the prior variance estimated by ebayes, if it was applied.
+     */
+    public double getPriorVariance() {
+        return priorVariance;
+    }
+
+    /**
+     * Obtain the summary of a single row. It is computed from the fit (with the ANOVA filled in from these columns,
+     * if available), so it reflects the state of the fit at the time of the call.
+     *
+     * @param row index of the row
+     * @return
+     */
+    public LinearModelSummary getSummary( int row ) {
+        LinearModelSummaryImpl lms = fit.summarize( row );
+        if ( hasAnova() ) {
+            lms.setAnova( getAnova( row ) );
+        }
+        return lms;
+    }
+
+    /**
+     * @return a lazy view of the summaries of all the rows; each element is computed when accessed, see
+     *         {@link #getSummary(int)}.
+     */
+    public List<LinearModelSummary> asList() {
+        return new AbstractList<LinearModelSummary>() {
+            @Override
+            public LinearModelSummary get( int index ) {
+                return getSummary( index );
+            }
+
+            @Override
+            public int size() {
+                return numRows;
+            }
+        };
+    }
+
+    /**
+     * @param row index of the row
+     * @return the ANOVA table of the given row, in the same form as {@link LeastSquaresFit#summarize(boolean)}
+     */
+    public GenericAnovaResult getAnova( int row ) {
+        checkAnova();
+        Collection<AnovaEffect> efs = new ArrayList<>( anovaTerms.size() + 1 );
+        for ( int j = 0; j < anovaTerms.size(); j++ ) {
+            String effectName = anovaTerms.get( j );
+            efs.add( new AnovaEffect( effectName, anovaPValues[j][row], anovaFStats[j][row], anovaDof[j][row],
+                    anovaSsq[j][row], effectName.contains( ":" ), false ) );
+        }
+        efs.add( new AnovaEffect( "Residual", Double.NaN, Double.NaN, anovaResidualsDof[row], anovaResidualsSsq[row],
+                false, true ) );
+        return new GenericAnovaResultImpl( keys != null ? keys.get( row ) : String.valueOf( row ), efs );
+    }
+
+    void setCoefficient( int coefficient, int row, double estimate, double stdErr, double tStat, double pValue ) {
+        estimates[coefficient][row] = estimate;
+        stdErrs[coefficient][row] = stdErr;
+        tStats[coefficient][row] = tStat;
+        pValues[coefficient][row] = pValue;
+    }
+
+    void setFit( int row, double sigma, double rSquared, double adjRSquared, double fStat, double numeratorDof,
+            double residualsDof ) {
+        this.sigma[row] = sigma;
+        this.rSquared[row] = rSquared;
+        this.adjRSquared[row] = adjRSquared;
+        this.fStat[row] = fStat;
+        this.numeratorDof[row] = numeratorDof;
+        this.residualsDof[row] = residualsDof;
+    }
+
+    void setAnovaTerm( int term, int row, double fStat, double pValue, double dof, double ssq ) {
+        anovaFStats[term][row] = fStat;
+        anovaPValues[term][row] = pValue;
+        anovaDof[term][row] = dof;
+        anovaSsq[term][row] = ssq;
+    }
+
+    void setAnovaResiduals( int row, double dof, double ssq ) {
+        anovaResidualsDof[row] = dof;
+        anovaResidualsSsq[row] = ssq;
+    }
+
+    private int coefficientIndex( String coefficientName ) {
+        int i = coefficientNames.indexOf( coefficientName );
+        if ( i < 0 ) {
+            throw new IllegalArgumentException( "Unknown coefficient " + coefficientName + "." );
+        }
+        return i;
+    }
+
+    private int anovaTermIndex( String term ) {
+        int i = anovaTerms.indexOf( term );
+        if ( i < 0 ) {
+            throw new IllegalArgumentException( "Unknown term " + term + "." );
+        }
+        return i;
+    }
+
+    private void checkAnova() {
+        if ( anovaTerms == null ) {
+            throw new IllegalStateException( "ANOVA was not computed." );
+        }
+    }
+
+    private static double[] nans( int n ) {
+        double[] a = new double[n];
+        Arrays.fill( a, Double.NaN );
+        return a;
+    }
+
+    private static double[][] nans( int m, int n ) {
+        double[][] a = new double[m][];
+        for ( int i = 0; i < m; i++ ) {
+            a[i] = nans( n );
+        }
+        return a;
+    }
+}
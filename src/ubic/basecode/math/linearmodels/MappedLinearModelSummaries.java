@@ -0,0 +1,494 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import org.jspecify.annotations.Nullable;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrixFactory;
+import ubic.basecode.math.PValueCalculator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact binary storage of {@link LinearModelSummaries}, for caching the results of a fit.
+ * <p>
+ * The file starts with a header holding the dimensions, the ebayes priors and the names of the rows, terms,
+ * coefficients and ANOVA terms, followed by the statistics stored by column (one array of doubles per statistic, indexed
+ * by row), in the same layout as {@link LinearModelSummaries}. Opening a file only reads the header; the columns are
+ * memory-mapped and read when requested, and row-level summaries are built on demand. Residuals and effects are not
+ * stored, so the summaries have none.
+ * <p>
+ * Files are limited to 2 GB, and instances are safe for concurrent use.
+ *
+ * @author poirigui
+ * @see LeastSquaresFit#summarizeColumns(boolean)
+ */
+public class MappedLinearModelSummaries {
+
+    /**
+     * "LMSB", for linear model summaries, binary.
+     */
+    private static final int MAGIC = 0x4C4D5342;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_SHRUNKEN = 1;
+    private static final int FLAG_KEYS = 2;
+    private static final int FLAG_ANOVA = 4;
+
+    /**
+     * Number of columns for the overall fit: sigma, R^2, adjusted R^2, F, numerator and residual dof.
+     */
+    private static final int NUM_FIT_COLUMNS = 6;
+
+    private static final List<String> COEFFICIENT_TABLE_COLUMNS = Collections
+            .unmodifiableList( Arrays.asList( "Estimate", "Std. Error", "t value", "Pr(>|t|)" ) );
+
+    /**
+     * Write the given summaries to a file, replacing it if it exists.
+     *
+     * @param summaries summaries to write
+     * @param path      destination
+     * @throws IOException if the file cannot be written
+     */
+    public static void write( LinearModelSummaries summaries, Path path ) throws IOException {
+        try ( OutputStream os = Files.newOutputStream( path ) ) {
+            write( summaries, os );
+        }
+    }
+
+    /**
+     * Write the given summaries to a stream, which is not closed.
+     */
+    public static void write( LinearModelSummaries summaries, OutputStream os ) throws IOException {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( os ) );
+        List<String> keys = summaries.getKeys();
+        int flags = ( summaries.isShrunken() ? FLAG_SHRUNKEN : 0 ) | ( keys != null ? FLAG_KEYS : 0 )
+                | ( summaries.hasAnova() ? FLAG_ANOVA : 0 );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( flags );
+        out.writeInt( summaries.size() );
+        out.writeDouble( summaries.getPriorDof() );
+        out.writeDouble( summaries.getPriorVariance() );
+        if ( keys != null ) {
+            writeStrings( out, keys );
+        }
+        writeStrings( out, summaries.getTerms() );
+        writeStrings( out, summaries.getCoefficientNames() );
+        if ( summaries.hasAnova() ) {
+            writeStrings( out, summaries.getAnovaTerms() );
+        }
+
+        // pad the header so that the columns are aligned
+        for ( int i = out.size(); i % Double.BYTES != 0; i++ ) {
+            out.writeByte( 0 );
+        }
+
+        for ( String c : summaries.getCoefficientNames() ) {
+            writeColumn( out, summaries.getEstimates( c ) );
+        }
+        for ( String c : summaries.getCoefficientNames() ) {
+            writeColumn( out, summaries.getStdErrs( c ) );
+        }
+        for ( String c : summaries.getCoefficientNames() ) {
+            writeColumn( out, summaries.getTStats( c ) );
+        }
+        for ( String c : summaries.getCoefficientNames() ) {
+            writeColumn( out, summaries.getPValues( c ) );
+        }
+        writeColumn( out, summaries.getSigma() );
+        writeColumn( out, summaries.getRSquared() );
+        writeColumn( out, summaries.getAdjRSquared() );
+        writeColumn( out, summaries.getFStats() );
+        writeColumn( out, summaries.getNumeratorDof() );
+        writeColumn( out, summaries.getResidualsDof() );
+        if ( summaries.hasAnova() ) {
+            for ( String t : summaries.getAnovaTerms() ) {
+                writeColumn( out, summaries.getAnovaFStats( t ) );
+            }
+            for ( String t : summaries.getAnovaTerms() ) {
+                writeColumn( out, summaries.getAnovaPValues( t ) );
+            }
+            for ( String t : summaries.getAnovaTerms() ) {
+                writeColumn( out, summaries.getAnovaDof( t ) );
+            }
+            for ( String t : summaries.getAnovaTerms() ) {
+                writeColumn( out, summaries.getAnovaSsq( t ) );
+            }
+            writeColumn( out, summaries.getAnovaResidualsDof() );
+            writeColumn( out, summaries.getAnovaResidualsSsq() );
+        }
+        out.flush();
+    }
+
+    /**
+     * Open summaries previously written with {@link #write(LinearModelSummaries, Path)}.
+     *
+     * @param path file to open
+     * @throws IOException if the file cannot be read, or is not in the expected format
+     */
+    public static MappedLinearModelSummaries open( Path path ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            if ( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException( path + " is too large to be mapped." );
+            }
+            // the mapping remains valid after the channel is closed
+            return new MappedLinearModelSummaries( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ),
+                    path );
+        }
+    }
+
+    private final boolean shrunken;
+    private final int numRows;
+    private final double priorDof;
+    private final double priorVariance;
+    @Nullable
+    private final List<String> keys;
+    private final List<String> terms;
+    private final List<String> coefficientNames;
+    @Nullable
+    private final List<String> anovaTerms;
+
+    /**
+     * Columns, as described in {@link #write(LinearModelSummaries, OutputStream)}.
+     */
+    private final DoubleBuffer columns;
+
+    private MappedLinearModelSummaries( ByteBuffer buffer, Path path ) throws IOException {
+        try {
+            if ( buffer.getInt() != MAGIC ) {
+                throw new IOException( path + " does not contain linear model summaries." );
+            }
+            int version = buffer.getInt();
+            if ( version != VERSION ) {
+                throw new IOException( "Unsupported version " + version + " of linear model summaries in " + path + "." );
+            }
+            int flags = buffer.getInt();
+            this.shrunken = ( flags & FLAG_SHRUNKEN ) != 0;
+            this.numRows = buffer.getInt();
+            this.priorDof = buffer.getDouble();
+            this.priorVariance = buffer.getDouble();
+            this.keys = ( flags & FLAG_KEYS ) != 0 ? readStrings( buffer ) : null;
+            this.terms = readStrings( buffer );
+            this.coefficientNames = readStrings( buffer );
+            this.anovaTerms = ( flags & FLAG_ANOVA ) != 0 ? readStrings( buffer ) : null;
+            while ( buffer.position() % Double.BYTES != 0 ) {
+                buffer.get();
+            }
+            this.columns = buffer.slice().asDoubleBuffer();
+        } catch ( RuntimeException e ) {
+            throw new IOException( path + " is truncated or corrupted.", e );
+        }
+        int numColumns = 4 * coefficientNames.size() + NUM_FIT_COLUMNS
+                + ( anovaTerms != null ? 4 * anovaTerms.size() + 2 : 0 );
+        if ( columns.capacity() != ( long ) numColumns * numRows ) {
+            throw new IOException( path + " is truncated or corrupted." );
+        }
+    }
+
+    public int size() {
+        return numRows;
+    }
+
+    /**
+     * @return the keys of the rows, or null if the data had no row names.
+     */
+    @Nullable
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    public List<String> getCoefficientNames() {
+        return coefficientNames;
+    }
+
+    public double getEstimate( String coefficientName, int row ) {
+        return get( coefficientIndex( coefficientName ), row );
+    }
+
+    public double[] getEstimates( String coefficientName ) {
+        return column( coefficientIndex( coefficientName ) );
+    }
+
+    public double[] getStdErrs( String coefficientName ) {
+        return column( coefficientNames.size() + coefficientIndex( coefficientName ) );
+    }
+
+    public double[] getTStats( String coefficientName ) {
+        return column( 2 * coefficientNames.size() + coefficientIndex( coefficientName ) );
+    }
+
+    public double getPValue( String coefficientName, int row ) {
+        return get( 3 * coefficientNames.size() + coefficientIndex( coefficientName ), row );
+    }
+
+    public double[] getPValues( String coefficientName ) {
+        return column( 3 * coefficientNames.size() + coefficientIndex( coefficientName ) );
+    }
+
+    public double[] getSigma() {
+        return column( fitColumn() );
+    }
+
+    public double[] getRSquared() {
+        return column( fitColumn() + 1 );
+    }
+
+    public double[] getAdjRSquared() {
+        return column( fitColumn() + 2 );
+    }
+
+    public double[] getFStats() {
+        return column( fitColumn() + 3 );
+    }
+
+    public double[] getNumeratorDof() {
+        return column( fitColumn() + 4 );
+    }
+
+    public double[] getResidualsDof() {
+        return column( fitColumn() + 5 );
+    }
+
+    public boolean hasAnova() {
+        return anovaTerms != null;
+    }
+
+    /**
+     * @throws IllegalStateException if the ANOVA was not computed
+     */
+    public List<String> getAnovaTerms() {
+        checkAnova();
+        return anovaTerms;
+    }
+
+    public double[] getAnovaFStats( String term ) {
+        return column( anovaColumn() + anovaTermIndex( term ) );
+    }
+
+    public double[] getAnovaPValues( String term ) {
+        return column( anovaColumn() + anovaTerms.size() + anovaTermIndex( term ) );
+    }
+
+    public double[] getAnovaDof( String term ) {
+        return column( anovaColumn() + 2 * anovaTerms.size() + anovaTermIndex( term ) );
+    }
+
+    public double[] getAnovaSsq( String term ) {
+        return column( anovaColumn() + 3 * anovaTerms.size() + anovaTermIndex( term ) );
+    }
+
+    public double[] getAnovaResidualsDof() {
+        return column( anovaColumn() + 4 * anovaTerms.size() );
+    }
+
+    public double[] getAnovaResidualsSsq() {
+        return column( anovaColumn() + 4 * anovaTerms.size() + 1 );
+    }
+
+    public boolean isShrunken() {
+        return shrunken;
+    }
+
+    public double getPriorDof() {
+        return priorDof;
+    }
+
+    public double getPriorVariance() {
+        return priorVariance;
+    }
+
+    /**
+     * Obtain the summary of a single row, reading only its values. It has no residuals nor effects.
+     *
+     * @param row index of the row
+     */
+    public LinearModelSummary getSummary( int row ) {
+        String key = keys != null ? keys.get( row ) : null;
+        int p = coefficientNames.size();
+        double[] coefficients = new double[p];
+        DoubleMatrix<String, String> summaryTable = DoubleMatrixFactory.dense( p, 4 );
+        summaryTable.setRowNames( coefficientNames );
+        summaryTable.setColumnNames( COEFFICIENT_TABLE_COLUMNS );
+        List<Double> sdUnscaled = new ArrayList<>( p );
+        boolean fitted = false;
+        for ( int c = 0; c < p; c++ ) {
+            coefficients[c] = get( c, row );
+            for ( int s = 0; s < 4; s++ ) {
+                summaryTable.set( c, s, get( s * p + c, row ) );
+            }
+            if ( !Double.isNaN( coefficients[c] ) ) {
+                // as in the fit, the standard deviations are only kept for the estimated coefficients
+                sdUnscaled.add( get( p + c, row ) );
+                fitted = true;
+            }
+        }
+        if ( !fitted ) {
+            return new LinearModelSummaryImpl( key );
+        }
+        int fit = fitColumn();
+        return new LinearModelSummaryImpl( key, coefficients, new double[0], terms, summaryTable, new double[0],
+                sdUnscaled.stream().mapToDouble( Double::doubleValue ).toArray(), get( fit + 1, row ),
+                get( fit + 2, row ), get( fit + 3, row ), get( fit + 4, row ), get( fit + 5, row ),
+                hasAnova() ? getAnova( row ) : null, get( fit, row ), shrunken, priorDof );
+    }
+
+    /**
+     * @return a lazy view of the summaries of all the rows, see {@link #getSummary(int)}.
+     */
+    public List<LinearModelSummary> asList() {
+        return new AbstractList<LinearModelSummary>() {
+            @Override
+            public LinearModelSummary get( int index ) {
+                return getSummary( index );
+            }
+
+            @Override
+            public int size() {
+                return numRows;
+            }
+        };
+    }
+
+    /**
+     * @param row index of the row
+     * @return the ANOVA table of the given row
+     * @throws IllegalStateException if the ANOVA was not computed
+     */
+    public GenericAnovaResult getAnova( int row ) {
+        checkAnova();
+        int t = anovaTerms.size();
+        int first = anovaColumn();
+        Collection<AnovaEffect> efs = new ArrayList<>( t + 1 );
+        for ( int j = 0; j < t; j++ ) {
+            String effectName = anovaTerms.get( j );
+            efs.add( new AnovaEffect( effectName, get( first + t + j, row ), get( first + j, row ),
+                    get( first + 2 * t + j, row ), get( first + 3 * t + j, row ), effectName.contains( ":" ), false ) );
+        }
+        efs.add( new AnovaEffect( "Residual", Double.NaN, Double.NaN, get( first + 4 * t, row ),
+                get( first + 4 * t + 1, row ), false, true ) );
+        // the key of an ANOVA result cannot be null
+        return new GenericAnovaResultImpl( keys != null ? keys.get( row ) : String.valueOf( row ), efs );
+    }
+
+    /**
+     * @return p-values for the overall model fits
+     */
+    public double[] getOverallPValues() {
+        return new PValueCalculator().fTest( getFStats(), getNumeratorDof(), getResidualsDof() );
+    }
+
+    private double get( int column, int row ) {
+        return columns.get( column * numRows + row );
+    }
+
+    private double[] column( int column ) {
+        double[] result = new double[numRows];
+        // absolute bulk reads are not available before Java 13, so use a duplicate to keep this thread-safe
+        DoubleBuffer view = columns.duplicate();
+        view.position( column * numRows );
+        view.get( result );
+        return result;
+    }
+
+    private int fitColumn() {
+        return 4 * coefficientNames.size();
+    }
+
+    private int anovaColumn() {
+        return fitColumn() + NUM_FIT_COLUMNS;
+    }
+
+    private int coefficientIndex( String coefficientName ) {
+        int i = coefficientNames.indexOf( coefficientName );
+        if ( i < 0 ) {
+            throw new IllegalArgumentException( "Unknown coefficient " + coefficientName + "." );
+        }
+        return i;
+    }
+
+    private int anovaTermIndex( String term ) {
+        checkAnova();
+        int i = anovaTerms.indexOf( term );
+        if ( i < 0 ) {
+            throw new IllegalArgumentException( "Unknown term " + term + "." );
+        }
+        return i;
+    }
+
+    private void checkAnova() {
+        if ( anovaTerms == null ) {
+            throw new IllegalStateException( "ANOVA was not computed." );
+        }
+    }
+
+    /**
+     * Null strings, such as the keys of rows without one, are written with a length of -1.
+     */
+    private static void writeStrings( DataOutputStream out, List<String> strings ) throws IOException {
+        out.writeInt( strings.size() );
+        for ( String s : strings ) {
+            if ( s == null ) {
+                out.writeInt( -1 );
+                continue;
+            }
+            byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+    }
+
+    private static List<String> readStrings( ByteBuffer buffer ) {
+        int n = buffer.getInt();
+        List<String> result = new ArrayList<>( n );
+        for ( int i = 0; i < n; i++ ) {
+            int length = buffer.getInt();
+            if ( length == -1 ) {
+                result.add( null );
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get( bytes );
+            result.add( new String( bytes, StandardCharsets.UTF_8 ) );
+        }
+        return Collections.unmodifiableList( result );
+    }
+
+    private static void writeColumn( DataOutputStream out, double[] column ) throws IOException {
+        for ( double v : column ) {
+            out.writeDouble( v );
+        }
+    }
+}
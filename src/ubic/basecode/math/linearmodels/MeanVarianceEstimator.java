@@ -18,21 +18,23 @@ import static cern.jet.math.Functions.chain;
 import static cern.jet.math.Functions.div;
 import static cern.jet.math.Functions.log2;
 import static cern.jet.math.Functions.minus;
-import static cern.jet.math.Functions.mult;
 import static cern.jet.math.Functions.plus;
 import static cern.jet.math.Functions.sqrt;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-import cern.colt.function.IntIntDoubleFunction;
 import cern.colt.list.DoubleArrayList;
 import cern.colt.list.IntArrayList;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
-import cern.colt.matrix.linalg.Algebra;
+import cern.jet.stat.Descriptive;
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.jspecify.annotations.Nullable;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.MatrixUtil;
 import ubic.basecode.math.DescriptiveWithMissing;
 import ubic.basecode.math.MatrixRowStats;
 import ubic.basecode.math.Smooth;
@@ -43,6 +45,10 @@ import ubic.basecode.math.linalg.QRDecomposition;
  * Charity Law and Gordon Smyth. See Law et al.
  * {@see http://genomebiology.biomedcentral.com/articles/10.1186/gb-2014-15-2-r29}
  * <p>
+ * The data are fitted once, and the weights are then computed row by row from the coefficients of that fit, so that
+ * besides the data and the weights, no matrix of the size of the data is held. The rows can be processed in parallel
+ * by passing an executor.
+ * <p>
  * Running voom() on data matrices with NaNs is not currently supported.
  *
  * @author ptan
@@ -54,6 +60,12 @@ public class MeanVarianceEstimator {
      */
     private final DoubleMatrix2D E;
 
+    /**
+     * Used to process chunks of rows concurrently, or null.
+     */
+    @Nullable
+    private final ExecutorService executor;
+
     /**
      * Size of each library (column).
      */
@@ -84,11 +96,21 @@ public class MeanVarianceEstimator {
      */
     public MeanVarianceEstimator(DesignMatrix designMatrix, DoubleMatrix<String, String> data,
                                  DoubleMatrix1D librarySize) {
+        this(designMatrix, data, librarySize, null);
+    }
 
-        DoubleMatrix2D b = new DenseDoubleMatrix2D(data.asArray());
-        this.librarySize = librarySize;
-        this.E = b;
-        voom(designMatrix.getDoubleMatrix());
+    /**
+     * Executes voom() to calculate weights, optionally processing chunks of rows in parallel.
+     *
+     * @param designMatrix
+     * @param data         expected to be log2cpm, and already filtered
+     * @param librarySize  library size (matrix column sum)
+     * @param executor     used to process chunks of rows concurrently; if null, everything is done serially. The
+     *                     results are the same either way.
+     */
+    public MeanVarianceEstimator(DesignMatrix designMatrix, DoubleMatrix<String, String> data,
+                                 DoubleMatrix1D librarySize, @Nullable ExecutorService executor) {
+        this(designMatrix, MatrixUtil.toDoubleMatrix2D(data), librarySize, executor);
     }
 
     /**
@@ -99,9 +121,23 @@ public class MeanVarianceEstimator {
      * @param librarySize  library size (matrix column sum)
      */
     public MeanVarianceEstimator(DesignMatrix designMatrix, DoubleMatrix2D data, DoubleMatrix1D librarySize) {
+        this(designMatrix, data, librarySize, null);
+    }
 
+    /**
+     * Executes voom() to calculate weights, optionally processing chunks of rows in parallel.
+     *
+     * @param designMatrix
+     * @param data         a normalized count matrix
+     * @param librarySize  library size (matrix column sum)
+     * @param executor     used to process chunks of rows concurrently; if null, everything is done serially. The
+     *                     results are the same either way.
+     */
+    public MeanVarianceEstimator(DesignMatrix designMatrix, DoubleMatrix2D data, DoubleMatrix1D librarySize,
+                                 @Nullable ExecutorService executor) {
         this.librarySize = librarySize;
         this.E = data;
+        this.executor = executor;
         voom(designMatrix.getDoubleMatrix());
     }
 
@@ -115,6 +151,7 @@ public class MeanVarianceEstimator {
      */
     public MeanVarianceEstimator(DoubleMatrix2D data) {
         this.E = data;
+        this.executor = null;
         mv();
         this.loess = Smooth.loessFit(this.meanVariance);
     }
@@ -157,24 +194,30 @@ public class MeanVarianceEstimator {
 
     /**
      * Compute row-wise mean (x) and variance (y) on the given data. Nothing is regressed out and no loess is computed.
+     * Missing values are ignored, as in {@link DescriptiveWithMissing#mean(DoubleArrayList)} and
+     * {@link DescriptiveWithMissing#variance(DoubleArrayList)}.
      */
     private void mv() {
         assert this.E != null;
 
         // mean-variance
-        DoubleMatrix1D Amean = new DenseDoubleMatrix1D(E.rows());
-        DoubleMatrix1D variance = Amean.like();
-        for (int i = 0; i < Amean.size(); i++) {
-            DoubleArrayList row = new DoubleArrayList(E.viewRow(i).toArray());
-            double rowMean = DescriptiveWithMissing.mean(row);
-            double rowVar = DescriptiveWithMissing.variance(row);
-            Amean.set(i, rowMean);
-            variance.set(i, rowVar);
-
-        }
         this.meanVariance = new DenseDoubleMatrix2D(E.rows(), 2);
-        this.meanVariance.viewColumn(0).assign(Amean);
-        this.meanVariance.viewColumn(1).assign(variance);
+        for (int i = 0; i < E.rows(); i++) {
+            int n = 0;
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (int j = 0; j < E.columns(); j++) {
+                double v = E.getQuick(i, j);
+                if (Double.isNaN(v)) {
+                    continue;
+                }
+                n++;
+                sum += v;
+                sumOfSquares += v * v;
+            }
+            this.meanVariance.setQuick(i, 0, sum / n);
+            this.meanVariance.setQuick(i, 1, Descriptive.variance(n, sum, sumOfSquares));
+        }
     }
 
     /**
@@ -189,17 +232,13 @@ public class MeanVarianceEstimator {
         assert this.E != null;
         assert this.librarySize != null;
 
-        Algebra solver = new Algebra();
-
         DoubleMatrix2D A = designMatrix;
-        weights = new DenseDoubleMatrix2D(E.rows(), E.columns());
 
         // perform a linear fit to obtain the mean-variance relationship
         // fit3<-lm(t(yCpm) ~ as.matrix(design.matrix[,2]))
         // or gFit <- lmFit(yCpm, design=design.matrix)
         // as per voom, "Fit linear model to log2-counts-per-million"
-        LeastSquaresFit lsf = new LeastSquaresFit(A, E);
-
+        LeastSquaresFit lsf = new LeastSquaresFit(A, E, null, executor);
 
         // calculate fit$Amean by doing rowSums(CPM) (see limma.getEAWP())
         DoubleMatrix1D Amean = MatrixRowStats.means(E);
@@ -222,99 +261,74 @@ public class MeanVarianceEstimator {
         this.meanVariance = voomXY;
         this.loess = fit;
 
-        // quarterroot fitted counts
-        DoubleMatrix2D fittedValues = null;
-        QRDecomposition qr = new QRDecomposition(A);
-        DoubleMatrix2D coeff = lsf.getCoefficients();
-
+        // quarterroot fitted counts, using the same QR as the fit
+        QRDecomposition qr = lsf.getQR();
+        if (qr == null) {
+            qr = new QRDecomposition(A);
+        }
+        final int[] j;
         if (qr.getRank() < A.columns()) {
             // j <- fit$pivot[1:fit$rank]
             // fitted.values <- fit$coef[,j,drop=F] %*% t(fit$design[,j,drop=F]);
-            IntArrayList pivot = qr.getPivotOrder();
-
-            IntArrayList subindices = (IntArrayList) pivot.partFromTo(0, qr.getRank() - 1);
-            int[] coeffAllCols = new int[coeff.columns()];
-            int[] desAllRows = new int[A.rows()];
-            for (int i = 0; i < coeffAllCols.length; i++) {
-                coeffAllCols[i] = i;
-            }
-            for (int i = 0; i < desAllRows.length; i++) {
-                desAllRows[i] = i;
-            }
-            DoubleMatrix2D coeffSlice = coeff.viewSelection(subindices.elements(), coeffAllCols);
-            DoubleMatrix2D ASlice = A.viewSelection(desAllRows, subindices.elements());
-            fittedValues = solver.mult(coeffSlice.viewDice(), ASlice.viewDice());
+            j = ((IntArrayList) qr.getPivotOrder().partFromTo(0, qr.getRank() - 1)).elements();
         } else {
             // fitted.values <- fit$coef %*% t(fit$design)
-            fittedValues = solver.mult(coeff.viewDice(), A.viewDice());
-        }
-
-        // back-compute the values we want
-        // fitted.cpm <- 2^fitted.values
-        // fitted.count <- 1e-6 * t(t(fitted.cpm)*(lib.size+1))
-        // fitted.logcount <- log2(fitted.count)
-        DoubleMatrix2D fittedCpm = fittedValues.copy().forEachNonZero(new IntIntDoubleFunction() {
-            @Override
-            public double apply(int row, int column, double third) {
-                return Math.pow(2, third);
+            j = new int[A.columns()];
+            for (int k = 0; k < j.length; k++) {
+                j[k] = k;
             }
-        });
-        DoubleMatrix2D fittedCount = fittedCpm.copy();
-        DoubleMatrix1D libSizePlusOne = librarySize.assign(plus(1));
-        for (int i = 0; i < fittedCount.rows(); i++) {
-            fittedCount.viewRow(i).assign(libSizePlusOne, mult);
-            fittedCount.viewRow(i).assign(mult(Math.pow(10, -6)));
         }
-        DoubleMatrix2D fittedLogCount = fittedCount.copy().assign(log2);
-
-        // to here we are *very* close to limma::voom
+        final double[][] design = A.viewSelection(null, j).toArray();
+        final DoubleMatrix2D coeff = lsf.getCoefficients();
+        final double[] libSizePlusOne = librarySize.copy().assign(plus(1)).toArray();
 
         // interpolate points using the loess curve
         // f <- approxfun(l, rule=2)
-        // 2D to 1D FIXME this unrolling seems kind of unnecessary
-        double[] xInterpolate = new double[fittedLogCount.rows() * fittedLogCount.columns()];
-        int idx = 0;
-        for (int col = 0; col < fittedLogCount.columns(); col++) {
-            for (int row = 0; row < fittedLogCount.rows(); row++) {
-                xInterpolate[idx] = fittedLogCount.get(row, col);
-                idx++;
-            }
-        }
-        // apply trend to individual observations
-        // w <- 1/f(fitted.logcount)^4
         assert fit != null;
-        double[] yInterpolate = Smooth.interpolate(fit.viewColumn(0).toArray(),
-                fit.viewColumn(1).toArray(), xInterpolate);
-
-        // 1D to 2D
-        idx = 0;
-        for (int col = 0; col < weights.columns(); col++) {
-            for (int row = 0; row < weights.rows(); row++) {
-                weights.set(row, col, (1.0 / Math.pow(yInterpolate[idx], 4)));
-                idx++;
+        final UnivariateFunction f = Smooth.approxfun(fit.viewColumn(0).toArray(), fit.viewColumn(1).toArray());
+
+        final DoubleMatrix2D w = new DenseDoubleMatrix2D(E.rows(), E.columns());
+        RowChunks.forEachChunk(executor, E.rows(), (from, to) -> {
+            double[] coefficients = new double[j.length];
+            for (int row = from; row < to; row++) {
+                for (int k = 0; k < j.length; k++) {
+                    coefficients[k] = coeff.getQuick(j[k], row);
+                }
+                for (int col = 0; col < design.length; col++) {
+                    double fittedValue = 0;
+                    for (int k = 0; k < j.length; k++) {
+                        fittedValue += coefficients[k] * design[col][k];
+                    }
+                    // back-compute the values we want
+                    // fitted.cpm <- 2^fitted.values
+                    // fitted.count <- 1e-6 * t(t(fitted.cpm)*(lib.size+1))
+                    // fitted.logcount <- log2(fitted.count)
+                    double fittedCount = Math.pow(2, fittedValue) * libSizePlusOne[col] * Math.pow(10, -6);
+                    double fittedLogCount = log2.apply(fittedCount);
+
+                    // to here we are *very* close to limma::voom
+
+                    // apply trend to individual observations
+                    // w <- 1/f(fitted.logcount)^4
+                    w.setQuick(row, col, 1.0 / Math.pow(f.value(fittedLogCount), 4));
+                }
             }
-        }
-
+        });
+        this.weights = w;
     }
 
-    protected DoubleMatrix1D quarterRootVariance(LeastSquaresFit lsf) {
+    protected DoubleMatrix1D quarterRootVariance(final LeastSquaresFit lsf) {
 
         // help("MArrayLM-class")
         // fit$sigma <- sqrt(sum(out$residuals^2)/out$df.residual)
         // sy <- sqrt(fit$sigma)
-        DoubleMatrix2D residuals = lsf.getResiduals();
-        DoubleMatrix1D sy = new DenseDoubleMatrix1D(residuals.rows());
-        // sum squared residuals
-        for (int row = 0; row < residuals.rows(); row++) {
-            double sum = 0;
-            for (int column = 0; column < residuals.columns(); column++) {
-                Double val = residuals.get(row, column);
-                if (!Double.isNaN(val)) {
-                    sum += val * val;
-                }
+        // sum squared residuals, computed row by row rather than from the full matrix of residuals
+        final DoubleMatrix1D sy = new DenseDoubleMatrix1D(lsf.getCoefficients().columns());
+        RowChunks.forEachChunk(executor, sy.size(), (from, to) -> {
+            for (int row = from; row < to; row++) {
+                sy.setQuick(row, lsf.residualSumOfSquares(row));
             }
-            sy.set(row, sum);
-        }
+        });
         // sigma (ssq/n)
         // if you have missing values in the expression matrix
         // you'll get a residual dof of 0
@@ -19,19 +19,24 @@
 
 package ubic.basecode.math.linearmodels;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
-import cern.colt.function.DoubleFunction;
-import cern.colt.list.BooleanArrayList;
 import cern.colt.list.DoubleArrayList;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import org.apache.commons.math3.special.Gamma;
 
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import cern.jet.math.Functions;
-import ubic.basecode.dataStructure.matrix.MatrixUtil;
 import ubic.basecode.math.DescriptiveWithMissing;
+import ubic.basecode.math.PValueCalculator;
 import ubic.basecode.math.SpecFunc;
+import ubic.basecode.math.linalg.QRDecomposition;
 
 /**
  * Implements methods described in
@@ -40,81 +45,136 @@ import ubic.basecode.math.SpecFunc;
  * experiments. Statistical Applications in Genetics and Molecular Biology Volume 3, Issue 1, Article 3.
  * <p>
  * R code snippets in comments are from squeezeVar.R in the limma source code.
+ * <p>
+ * The computations are done in loops over primitive arrays; the variants taking Colt vectors are kept for
+ * compatibility.
  *
  * @author paul
  */
 public class ModeratedTstat {
 
-    private final static DoubleFunction digamma = new DoubleFunction() {
-        @Override
-        public double apply(double v) {
-            return Gamma.digamma(v);
-        }
-    };
-    private final static DoubleFunction trigammainverse = new DoubleFunction() {
-        @Override
-        public double apply(double v) {
-            return SpecFunc.trigammaInverse(v);
-        }
-    };
-    private final static DoubleFunction trigamma = new DoubleFunction() {
-        @Override
-        public double apply(double v) {
-            return Gamma.trigamma(v);
-        }
-    };
     public static final double TOOSMALL = Math.pow(10, -15);
 
+    private static final PValueCalculator pValueCalculator = new PValueCalculator();
+
     /**
      * Does essentially the same thing as limma::ebayes
      *
      * @param fit which will be modified
      */
     public static void ebayes(LeastSquaresFit fit) {
-        List<LinearModelSummary> summaries = fit.summarize();
-        DoubleMatrix1D sigmas = new DenseDoubleMatrix1D(new double[summaries.size()]);
-        DoubleMatrix1D dofs = new DenseDoubleMatrix1D(new double[summaries.size()]);
-        int i = 0;
+        ebayes(Collections.singletonList(fit));
+    }
+
+    /**
+     * Moderate several fits with a single prior, estimated from the residual variances of all their rows. This is the
+     * same as running {@link #ebayes(LeastSquaresFit)} on a fit of all the rows at once; for instance, the data can be
+     * fitted in blocks of rows (see {@link PreparedDesign}) and then moderated together.
+     *
+     * @param fits which will be modified
+     * @return the scale (aka s2.prior or s20 in limma) and df2 (aka df.prior) in a double array of length 2
+     */
+    public static double[] ebayes(List<LeastSquaresFit> fits) {
+        int n = 0;
+        for (LeastSquaresFit fit : fits) {
+            n += fit.getCoefficients().columns();
+        }
+        double[] vars = new double[n];
+        double[] dofs = new double[n];
+        int offset = 0;
         // corner case can get nulls, example: GSE10778
-        for ( LinearModelSummary lms : summaries) {
-            if (Double.isNaN(lms.getSigma())) {
-                sigmas.set(i, Double.NaN);
-                dofs.set(i, Double.NaN);
-            } else {
-                sigmas.set(i, lms.getSigma());
-                dofs.set(i, lms.getResidualsDof());  // collect vector of dofs instead of assuming fixed value.
-            }
-            i++;
+        for (LeastSquaresFit fit : fits) {
+            fit.residualVariances(vars, dofs, offset);
+            offset += fit.getCoefficients().columns();
+        }
 
+        double[] ffit = fitFDist(vars, dofs);
+        double[] varPost = squeezeVariances(vars, dofs, ffit[0], ffit[1]);
+
+        offset = 0;
+        for (LeastSquaresFit fit : fits) {
+            int rows = fit.getCoefficients().columns();
+            DoubleMatrix1D vp = new DenseDoubleMatrix1D(rows);
+            vp.assign(Arrays.copyOfRange(varPost, offset, offset + rows));
+            fit.ebayesUpdate(ffit[1], ffit[0], vp);
+            offset += rows;
         }
-        squeezeVar(sigmas.copy().assign(Functions.square), dofs, fit);
+        return ffit;
     }
 
     /**
-     * defining 'ok' as non-missing and non-infinite and not very close to zero as per limma implementation
+     * Compute the moderated t-statistics of all the coefficients of a fit on which ebayes was run, and their p-values,
+     * without summarizing each row. The values are the same as those of the summaries.
+     * <p>
+     * Each coefficient is processed as a loop over all the rows, concurrently if the fit has an executor.
      *
-     * @param x
-     * @return
+     * @param fit a fit that has been moderated
+     * @return the t-statistics and the p-values, as two matrices with a row per coefficient and a column per data row;
+     * values are missing for the coefficients that were not estimated.
+     * @throws IllegalStateException if ebayes was not run on the fit
      */
-    private static final BooleanArrayList okVars(DoubleMatrix1D x) {
-        assert x.size() > 0;
-        BooleanArrayList answer = new BooleanArrayList(x.size());
-        for (int i = 0; i < x.size(); i++) {
-            double a = x.getQuick(i);
-            answer.add(!(Double.isNaN(a) || Double.isInfinite(a) || a < -1e-15));
+    public static DoubleMatrix2D[] moderatedTStatistics(LeastSquaresFit fit) {
+        if (!fit.isHasBeenShrunken()) {
+            throw new IllegalStateException("ebayes must be run on the fit first");
         }
-        return answer;
+        final DoubleMatrix2D coefficients = fit.getCoefficients();
+        final int numCoefficients = coefficients.rows();
+        final int n = coefficients.columns();
+
+        // rows sharing a QR share the unscaled standard deviations; this is done serially since chol2inv is lazy
+        final double[][] sdUnscaled = new double[numCoefficients][n];
+        final double[] dfTotal = new double[n];
+        final double[] varPostSqrtInv = new double[n];
+        Map<QRDecomposition, DoubleMatrix1D> cache = new IdentityHashMap<>();
+        for (int i = 0; i < n; i++) {
+            double[] sd = fit.stdevUnscaled(i, cache);
+            if (sd == null) {
+                for (int c = 0; c < numCoefficients; c++) {
+                    sdUnscaled[c][i] = Double.NaN;
+                }
+                dfTotal[i] = Double.NaN;
+                continue;
+            }
+            for (int c = 0; c < numCoefficients; c++) {
+                sdUnscaled[c][i] = sd[c];
+            }
+            // out$t <- coefficients / stdev.unscaled / sqrt(out$s2.post)
+            // df.total <- df.residual + out$df.prior
+            varPostSqrtInv[i] = 1.0 / Math.sqrt(fit.getVarPost().getQuick(i));
+            dfTotal[i] = fit.getResidualDof(i) + fit.getDfPrior();
+        }
+
+        final DoubleMatrix2D tstats = new DenseDoubleMatrix2D(numCoefficients, n);
+        final DoubleMatrix2D pvalues = new DenseDoubleMatrix2D(numCoefficients, n);
+        RowChunks.forEachChunk(fit.getExecutor(), numCoefficients, (from, to) -> {
+            double[] t = new double[n];
+            for (int c = from; c < to; c++) {
+                double[] sd = sdUnscaled[c];
+                for (int i = 0; i < n; i++) {
+                    t[i] = Double.isNaN(sd[i]) ? Double.NaN : coefficients.getQuick(c, i) / sd[i] * varPostSqrtInv[i];
+                }
+                double[] p = pValueCalculator.tTestTwoSided(t, dfTotal);
+                for (int i = 0; i < n; i++) {
+                    if (Double.isNaN(t[i])) {
+                        p[i] = Double.NaN;
+                    }
+                }
+                tstats.viewRow(c).assign(t);
+                pvalues.viewRow(c).assign(p);
+            }
+        });
+        return new DoubleMatrix2D[]{tstats, pvalues};
     }
 
-    private static final BooleanArrayList okDfs(DoubleMatrix1D x) {
-        assert x.size() > 0;
-        BooleanArrayList answer = new BooleanArrayList(x.size());
+    /**
+     * defining 'ok' as non-missing and non-infinite and not very close to zero as per limma implementation
+     */
+    private static boolean okVar(double a) {
+        return !(Double.isNaN(a) || Double.isInfinite(a) || a < -1e-15);
+    }
 
-        for (int i = 0; i < x.size(); i++) {
-            double a = x.getQuick(i);
-            answer.add(!(Double.isNaN(a) || Double.isInfinite(a) || a < TOOSMALL));
-        }
-        return answer;
+    private static boolean okDf(double a) {
+        return !(Double.isNaN(a) || Double.isInfinite(a) || a < TOOSMALL);
     }
 
     /*
@@ -123,40 +183,66 @@ public class ModeratedTstat {
      * @return the scale (aka s2.prior or s20 in limma) and df2 (aka df.prior) in a double array of length 2
      */
     protected static double[] fitFDist(final DoubleMatrix1D vars, final DoubleMatrix1D df1s) {
+        return fitFDist(vars.toArray(), df1s.toArray());
+    }
 
-        BooleanArrayList ok = MatrixUtil.conjunction(okVars(vars), okDfs(df1s));
-
-        DoubleMatrix1D x = MatrixUtil.stripNonOK(vars, ok);
-        DoubleMatrix1D df1 = MatrixUtil.stripNonOK(df1s, ok);
+    /**
+     * @param vars variances
+     * @param df1s degrees of freedom
+     * @return the scale (aka s2.prior or s20 in limma) and df2 (aka df.prior) in a double array of length 2
+     */
+    static double[] fitFDist(final double[] vars, final double[] df1s) {
+        int n = 0;
+        for (int i = 0; i < vars.length; i++) {
+            if (okVar(vars[i]) && okDf(df1s[i])) {
+                n++;
+            }
+        }
 
-        if (x.size() == 0) {
+        if (n == 0) {
             throw new IllegalStateException("There were no valid values of variance to perform eBayes parameter estimation");
         }
 
         // stay away from zero variance
-        x = x.assign(Functions.max(1e-5 * DescriptiveWithMissing.median(new DoubleArrayList(vars.toArray()))));
+        double floor = 1e-5 * DescriptiveWithMissing.median(new DoubleArrayList(vars.clone()));
+        double[] x = new double[n];
+        double[] df1 = new double[n];
+        for (int i = 0, k = 0; i < vars.length; i++) {
+            if (okVar(vars[i]) && okDf(df1s[i])) {
+                x[k] = Math.max(vars[i], floor);
+                df1[k] = df1s[i];
+                k++;
+            }
+        }
 
         // z <- log(x)
-        DoubleMatrix1D z = x.copy().assign(Functions.log);
-
         // e <- z-digamma(df1/2)+log(df1/2)
-        DoubleMatrix1D e1 = df1.copy().assign(Functions.div(2.0)).assign(digamma);
-        DoubleMatrix1D e2 = df1.copy().assign(Functions.div(2.0)).assign(Functions.log);
-        DoubleMatrix1D e = z.copy().assign(e1, Functions.minus).assign(e2, Functions.plus);
+        double[] e = new double[n];
+        for (int i = 0; i < n; i++) {
+            double halfDf = df1[i] / 2.0;
+            e[i] = Math.log(x[i]) - Gamma.digamma(halfDf) + Math.log(halfDf);
+        }
 
-        int n = x.size();
         if (n < 2) {
             throw new IllegalStateException("Too few valid variance values to do eBayes parameter estimation (require at least 2)");
         }
 
         //  emean <- mean(e)
-        double emean = e.zSum() / n;
+        double emean = sum(e) / n;
         // evar <- sum((e-emean)^2)/(n-1)
-        double evar = e.copy().assign(Functions.minus(emean)).aggregate(Functions.plus, Functions.square)
-                / (n - 1);
+        double evar = 0.0;
+        for (int i = n; --i >= 0; ) {
+            double d = e[i] - emean;
+            evar += d * d;
+        }
+        evar = evar / (n - 1);
 
         // evar <- evar - mean(trigamma(df1/2))
-        evar = evar - df1.copy().assign(Functions.div(2.0)).assign(trigamma).zSum() / df1.size();
+        double trigammaSum = 0.0;
+        for (int i = 0; i < n; i++) {
+            trigammaSum += Gamma.trigamma(df1[i] / 2.0);
+        }
+        evar = evar - trigammaSum / n;
         double df2;
         double s20;
         if (evar > 0.0) {
@@ -169,12 +255,24 @@ public class ModeratedTstat {
         } else {
             df2 = Double.POSITIVE_INFINITY;
             // s20 <- mean(x)
-            s20 = x.copy().aggregate(Functions.plus, Functions.identity) / x.size();
+            double xsum = 0.0;
+            for (int i = n; --i >= 0; ) {
+                xsum += x[i];
+            }
+            s20 = xsum / n;
         }
 
         return new double[]{s20, df2};
     }
 
+    private static double sum(double[] values) {
+        double sum = 0.0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
 
     /*
      * Return the scale and df2. Original implementation, does not handle missing values, kept here for posterity/comparison/debugging.
@@ -244,16 +342,24 @@ public class ModeratedTstat {
      * @return vector of squeezed variances (varPost or s2.post)
      */
     protected static DoubleMatrix1D squeezeVariances(DoubleMatrix1D var, DoubleMatrix1D df, double[] fit) {
-        double varPrior = fit[0];
-        double dfPrior = fit[1];
+        return new DenseDoubleMatrix1D(squeezeVariances(var.toArray(), df.toArray(), fit[0], fit[1]));
+    }
 
+    /**
+     * @param var      estimated residual variances from original model fit
+     * @param df       degrees of freedom
+     * @param varPrior s2.prior
+     * @param dfPrior  df.prior
+     * @return squeezed variances (varPost or s2.post)
+     */
+    static double[] squeezeVariances(double[] var, double[] df, double varPrior, double dfPrior) {
         //   out$var.post <- (df*var + out$df.prior*out$var.prior) / df.total
-
-        DoubleMatrix1D dfTotal = df.copy().assign(Functions.plus(dfPrior));
-
-        return var.copy().assign(df, Functions.mult)
-                .assign(Functions.plus(dfPrior * varPrior)).assign(dfTotal, Functions.div);
-
+        double[] varPost = new double[var.length];
+        double prior = dfPrior * varPrior;
+        for (int i = 0; i < var.length; i++) {
+            varPost[i] = (var[i] * df[i] + prior) / (df[i] + dfPrior);
+        }
+        return varPost;
     }
 
 }
@@ -0,0 +1,165 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.bitvector.BitVector;
+import cern.colt.list.IntArrayList;
+import cern.colt.matrix.DoubleMatrix2D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ubic.basecode.math.linalg.QRDecomposition;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A {@link DesignMatrix} with its decompositions, to be reused by many fits against the same design (e.g. subsets,
+ * permutations or successive blocks of rows of the data), see
+ * {@link LeastSquaresFit#LeastSquaresFit(PreparedDesign, ubic.basecode.dataStructure.matrix.DoubleMatrix)}.
+ * <p>
+ * The QR decomposition of the design (and with it chol2inv and the pivot order) is computed once. The QRs for the
+ * patterns of missing values encountered by the fits are kept in a bounded cache, the least recently used patterns
+ * being evicted first.
+ * <p>
+ * Instances are thread-safe, so they can be shared by fits running concurrently. Weighted fits are not supported,
+ * since the decomposition then differs for each row.
+ *
+ * @author poirigui
+ */
+public class PreparedDesign {
+
+    private static final Logger log = LoggerFactory.getLogger( PreparedDesign.class );
+
+    /**
+     * Default maximum number of QRs kept for patterns of missing values.
+     */
+    public static final int DEFAULT_MAX_CACHED_PATTERNS = 1000;
+
+    private final DesignMatrix designMatrix;
+
+    private final QRDecomposition qr;
+
+    private final int maxCachedPatterns;
+
+    /**
+     * Guarded by itself.
+     */
+    private final Map<BitVector, QRDecomposition> patternQrs;
+
+    public PreparedDesign( DesignMatrix designMatrix ) {
+        this( designMatrix, DEFAULT_MAX_CACHED_PATTERNS );
+    }
+
+    /**
+     * @param designMatrix      the design
+     * @param maxCachedPatterns maximum number of QRs kept for patterns of missing values; zero disables caching.
+     */
+    public PreparedDesign( DesignMatrix designMatrix, final int maxCachedPatterns ) {
+        if ( maxCachedPatterns < 0 ) {
+            throw new IllegalArgumentException( "The maximum number of cached patterns must be zero or more" );
+        }
+        this.designMatrix = designMatrix;
+        this.maxCachedPatterns = maxCachedPatterns;
+        this.qr = prepare( new QRDecomposition( designMatrix.getDoubleMatrix() ) );
+        this.patternQrs = new LinkedHashMap<BitVector, QRDecomposition>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<BitVector, QRDecomposition> eldest ) {
+                return size() > maxCachedPatterns;
+            }
+        };
+    }
+
+    public DesignMatrix getDesignMatrix() {
+        return designMatrix;
+    }
+
+    /**
+     * @return the QR decomposition of the full design
+     */
+    public QRDecomposition getQR() {
+        return qr;
+    }
+
+    /**
+     * @return (X'X)^-1, the unscaled covariance matrix of the coefficients of the full design
+     */
+    public DoubleMatrix2D getChol2inv() {
+        return qr.chol2inv();
+    }
+
+    public IntArrayList getPivotOrder() {
+        return qr.getPivotOrder();
+    }
+
+    public int getMaxCachedPatterns() {
+        return maxCachedPatterns;
+    }
+
+    /**
+     * @return the number of QRs currently cached for patterns of missing values
+     */
+    public int getNumCachedPatterns() {
+        synchronized ( patternQrs ) {
+            return patternQrs.size();
+        }
+    }
+
+    /**
+     * Obtain the QR to use for rows with the given pattern of values present, computing it if needed.
+     * <p>
+     * The decomposition is done outside the lock, so fits running concurrently are not held up by each other; two
+     * threads may then compute the same QR, but only one is kept.
+     *
+     * @param valuesPresent pattern of values present, one bit per sample
+     * @param factory       computes the QR of the design (without the missing samples) if it is not cached
+     * @return
+     */
+    QRDecomposition getQR( BitVector valuesPresent, Supplier<QRDecomposition> factory ) {
+        if ( valuesPresent.cardinality() == valuesPresent.size() ) {
+            return qr;
+        }
+        QRDecomposition result;
+        synchronized ( patternQrs ) {
+            result = patternQrs.get( valuesPresent );
+        }
+        if ( result != null ) {
+            return result;
+        }
+        QRDecomposition computed = prepare( factory.get() );
+        synchronized ( patternQrs ) {
+            result = patternQrs.get( valuesPresent );
+            if ( result == null ) {
+                result = computed;
+                patternQrs.put( valuesPresent, result );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the lazily-initialized parts of the QR before it gets shared, since they are not thread-safe.
+     */
+    private static QRDecomposition prepare( QRDecomposition qr ) {
+        qr.getQ();
+        try {
+            qr.chol2inv();
+        } catch ( IllegalStateException e ) {
+            // will be raised again if a fit needs it
+            log.debug( "Could not compute chol2inv: " + e.getMessage() );
+        }
+        return qr;
+    }
+}
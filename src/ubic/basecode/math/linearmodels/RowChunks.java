@@ -0,0 +1,100 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a range of rows into contiguous chunks and processes them, either serially or using an executor.
+ * <p>
+ * Chunks are disjoint, so callers can write the results for each row into a pre-allocated array and then merge them
+ * in order once all the chunks are done; this is how results identical to the serial path are obtained.
+ *
+ * @author poirigui
+ */
+final class RowChunks {
+
+    /**
+     * Number of chunks per available thread; more than one helps balance rows that are more expensive than others
+     * (e.g. with missing values).
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Processes the rows from (inclusive) to to (exclusive).
+     */
+    @FunctionalInterface
+    interface ChunkAction {
+        void apply( int from, int to );
+    }
+
+    private RowChunks() {
+    }
+
+    /**
+     * @param executor if null, the rows are processed serially in the calling thread, as a single chunk
+     * @param numRows  number of rows to process
+     * @param action   invoked once per chunk; must be safe to call concurrently for disjoint chunks
+     */
+    static void forEachChunk( @Nullable ExecutorService executor, int numRows, ChunkAction action ) {
+        if ( numRows == 0 ) {
+            return;
+        }
+
+        if ( executor == null ) {
+            action.apply( 0, numRows );
+            return;
+        }
+
+        int parallelism = executor instanceof ForkJoinPool ? ( ( ForkJoinPool ) executor ).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int numChunks = Math.max( 1, Math.min( numRows, parallelism * CHUNKS_PER_THREAD ) );
+        int chunkSize = ( numRows + numChunks - 1 ) / numChunks;
+
+        List<Callable<Void>> tasks = new ArrayList<>( numChunks );
+        for ( int from = 0; from < numRows; from += chunkSize ) {
+            final int start = from;
+            final int end = Math.min( numRows, from + chunkSize );
+            tasks.add( () -> {
+                action.apply( start, end );
+                return null;
+            } );
+        }
+
+        try {
+            for ( Future<Void> f : executor.invokeAll( tasks ) ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while processing rows", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            } else if ( e.getCause() instanceof Error ) {
+                throw ( Error ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.list.DoubleArrayList;
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+import org.jspecify.annotations.Nullable;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Fits the same design to data supplied in blocks of rows (e.g. from
+ * {@link ubic.basecode.io.reader.DoubleMatrixReader#readBlocks(java.io.InputStream, int)}), so that only one block
+ * needs to be held in memory at a time. The QR decomposition of the design, and those for patterns of missing values,
+ * are computed once and reused for all the blocks (see {@link PreparedDesign}).
+ * <p>
+ * The summaries are the same as those obtained by fitting all the rows at once with {@link LeastSquaresFit}. Since
+ * moderating the statistics requires the variances of all the rows, this is done with a known prior, either provided
+ * with {@link #setPrior(double, double)} or estimated by a first pass over the data with
+ * {@link #estimatePrior(Iterator)}.
+ * <p>
+ * Weighted regression is not supported.
+ *
+ * @author poirigui
+ */
+public class StreamingLeastSquaresFit {
+
+    /**
+     * Decompositions of the design, shared by all blocks.
+     */
+    private final PreparedDesign design;
+
+    @Nullable
+    private final ExecutorService executor;
+
+    private double varPrior = Double.NaN;
+
+    private double dfPrior = Double.NaN;
+
+    /**
+     * @param designMatrix the design, whose rows correspond to the columns of each block of data
+     */
+    public StreamingLeastSquaresFit( DesignMatrix designMatrix ) {
+        this( designMatrix, null );
+    }
+
+    /**
+     * @param designMatrix the design, whose rows correspond to the columns of each block of data
+     * @param executor     used to fit chunks of rows of each block concurrently; if null, blocks are fitted serially.
+     */
+    public StreamingLeastSquaresFit( DesignMatrix designMatrix, @Nullable ExecutorService executor ) {
+        this( new PreparedDesign( designMatrix ), executor );
+    }
+
+    /**
+     * @param design   the design, whose rows correspond to the columns of each block of data
+     * @param executor used to fit chunks of rows of each block concurrently; if null, blocks are fitted serially.
+     */
+    public StreamingLeastSquaresFit( PreparedDesign design, @Nullable ExecutorService executor ) {
+        this.design = design;
+        this.executor = executor;
+    }
+
+    /**
+     * Moderate the statistics of the blocks fitted from now on, as done by {@link ModeratedTstat#ebayes}.
+     *
+     * @param varPrior prior variance
+     * @param dfPrior  prior degrees of freedom
+     */
+    public void setPrior( double varPrior, double dfPrior ) {
+        this.varPrior = varPrior;
+        this.dfPrior = dfPrior;
+    }
+
+    /**
+     * Estimate the prior used to moderate the statistics from the residual variances of all the rows, the same way
+     * {@link ModeratedTstat#ebayes} does. Only the variances and degrees of freedom of the rows are retained.
+     *
+     * @param blocks blocks of rows; typically the data will have to be read again to be fitted.
+     * @return the prior variance and degrees of freedom, which will be used for subsequent fits
+     */
+    public double[] estimatePrior( Iterator<? extends DoubleMatrix<String, String>> blocks ) {
+        DoubleArrayList vars = new DoubleArrayList();
+        DoubleArrayList dofs = new DoubleArrayList();
+        while ( blocks.hasNext() ) {
+            LeastSquaresFit fit = fitBlock( blocks.next() );
+            int rows = fit.getCoefficients().columns();
+            double[] blockVars = new double[rows];
+            double[] blockDofs = new double[rows];
+            fit.residualVariances( blockVars, blockDofs, 0 );
+            vars.addAllOf( new DoubleArrayList( blockVars ) );
+            dofs.addAllOf( new DoubleArrayList( blockDofs ) );
+        }
+        vars.trimToSize();
+        dofs.trimToSize();
+        double[] prior = ModeratedTstat.fitFDist( vars.elements(), dofs.elements() );
+        setPrior( prior[0], prior[1] );
+        return prior;
+    }
+
+    /**
+     * Fit each block and pass its summaries to the consumer, in order. Only one block is held at a time.
+     *
+     * @param blocks   blocks of rows
+     * @param anova    whether to compute the ANOVA tables
+     * @param consumer receives the summaries of the rows of each block
+     */
+    public void fit( Iterator<? extends DoubleMatrix<String, String>> blocks, boolean anova,
+            Consumer<List<LinearModelSummary>> consumer ) {
+        while ( blocks.hasNext() ) {
+            consumer.accept( summarizeBlock( blocks.next(), anova ) );
+        }
+    }
+
+    /**
+     * Lazy version of {@link #fit(Iterator, boolean, Consumer)}: each block is read and fitted when the next batch of
+     * summaries is requested.
+     *
+     * @param blocks blocks of rows
+     * @param anova  whether to compute the ANOVA tables
+     * @return the summaries of the rows of each block
+     */
+    public Iterator<List<LinearModelSummary>> summarize( final Iterator<? extends DoubleMatrix<String, String>> blocks,
+            final boolean anova ) {
+        return new Iterator<List<LinearModelSummary>>() {
+            @Override
+            public boolean hasNext() {
+                return blocks.hasNext();
+            }
+
+            @Override
+            public List<LinearModelSummary> next() {
+                return summarizeBlock( blocks.next(), anova );
+            }
+        };
+    }
+
+    public double getDfPrior() {
+        return dfPrior;
+    }
+
+    public double getVarPrior() {
+        return varPrior;
+    }
+
+    private LeastSquaresFit fitBlock( DoubleMatrix<String, String> block ) {
+        return new LeastSquaresFit( design, block, executor );
+    }
+
+    private List<LinearModelSummary> summarizeBlock( DoubleMatrix<String, String> block, boolean anova ) {
+        LeastSquaresFit fit = fitBlock( block );
+        if ( !Double.isNaN( varPrior ) ) {
+            double[] vars = new double[block.rows()];
+            double[] dofs = new double[block.rows()];
+            fit.residualVariances( vars, dofs, 0 );
+            DoubleMatrix1D varPost = new DenseDoubleMatrix1D(
+                    ModeratedTstat.squeezeVariances( vars, dofs, varPrior, dfPrior ) );
+            fit.ebayesUpdate( dfPrior, varPrior, varPost );
+        }
+        return fit.summarize( anova );
+    }
+}
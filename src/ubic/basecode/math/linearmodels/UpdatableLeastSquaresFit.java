@@ -0,0 +1,337 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.list.IntArrayList;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.jspecify.annotations.Nullable;
+import ubic.basecode.math.PValueCalculator;
+import ubic.basecode.math.linalg.QRDecomposition;
+import ubic.basecode.math.linalg.QRUpdate;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A least squares fit that is updated, rather than redone, when samples are added to or removed from the data, e.g.
+ * when a few samples are excluded, or to compute leave-one-out diagnostics.
+ * <p>
+ * Only the triangular factor R of the design, and for each row of the data its projections Q'y on the design and its
+ * residual sum of squares, are kept. These are updated with Givens rotations (see {@link QRUpdate}), so that adding or
+ * removing a sample costs O(p^2) for the design and O(p) per row of data, where p is the number of coefficients; the
+ * coefficients, residual variances and t-statistics are then obtained in O(p^2) per row.
+ * <p>
+ * The fit must be unweighted, without missing values, and its design must have full rank. The design must keep full
+ * rank as samples are removed.
+ *
+ * @author poirigui
+ */
+public class UpdatableLeastSquaresFit {
+
+    private static final PValueCalculator pValueCalculator = new PValueCalculator();
+
+    /**
+     * The original fit, for its design and data.
+     */
+    private final LeastSquaresFit fit;
+
+    @Nullable
+    private final ExecutorService executor;
+
+    private final int numRows;
+
+    private final int p;
+
+    /**
+     * Columns of the design, in the order of the columns of R.
+     */
+    private final int[] pivot;
+
+    /**
+     * Upper triangular factor of the design.
+     */
+    private final double[][] r;
+
+    /**
+     * Projections on the design of each row of the data, p values per row.
+     */
+    private final double[] z;
+
+    /**
+     * Residual sum of squares of each row of the data.
+     */
+    private final double[] rss;
+
+    /**
+     * Samples of the original fit that were removed.
+     */
+    private final boolean[] removed;
+
+    private int numSamples;
+
+    /**
+     * @param fit an unweighted fit without missing values; it is not modified.
+     * @throws IllegalArgumentException if the fit is weighted, has missing values or if its design is rank-deficient
+     */
+    public UpdatableLeastSquaresFit( LeastSquaresFit fit ) {
+        if ( fit.getWeights() != null ) {
+            throw new IllegalArgumentException( "Weighted fits cannot be updated" );
+        }
+        if ( fit.isHasMissing() ) {
+            throw new IllegalArgumentException( "Fits with missing values cannot be updated" );
+        }
+        QRDecomposition qr = fit.getQR();
+        if ( qr == null || !qr.hasFullRank() ) {
+            throw new IllegalArgumentException( "The design of the fit must have full rank" );
+        }
+
+        this.fit = fit;
+        this.executor = fit.getExecutor();
+        this.numRows = fit.getCoefficients().columns();
+        this.p = fit.getCoefficients().rows();
+        this.numSamples = fit.getDesign().rows();
+        this.removed = new boolean[numSamples];
+
+        IntArrayList pivotOrder = qr.getPivotOrder();
+        this.pivot = new int[p];
+        for ( int k = 0; k < p; k++ ) {
+            pivot[k] = pivotOrder.get( k );
+        }
+        this.r = qr.getR().toArray();
+
+        // z = R b, which is Q'y
+        final DoubleMatrix2D coefficients = fit.getCoefficients();
+        this.z = new double[numRows * p];
+        this.rss = new double[numRows];
+        RowChunks.forEachChunk( executor, numRows, ( from, to ) -> {
+            for ( int i = from; i < to; i++ ) {
+                for ( int k = 0; k < p; k++ ) {
+                    double v = 0.0;
+                    for ( int j = k; j < p; j++ ) {
+                        v += r[k][j] * coefficients.getQuick( pivot[j], i );
+                    }
+                    z[i * p + k] = v;
+                }
+                rss[i] = fit.residualSumOfSquares( i );
+            }
+        } );
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param designRow row of the design matrix for the sample, one value per coefficient
+     * @param values    values of the sample, one per row of the data
+     */
+    public void addSample( double[] designRow, final double[] values ) {
+        checkValues( values );
+        final double[] rotations = QRUpdate.update( r, pivot( designRow ) );
+        RowChunks.forEachChunk( executor, numRows, ( from, to ) -> {
+            for ( int i = from; i < to; i++ ) {
+                double zeta = QRUpdate.updateEffects( rotations, z, i * p, values[i] );
+                rss[i] += zeta * zeta;
+            }
+        } );
+        numSamples++;
+    }
+
+    /**
+     * Remove a sample, which was added or was part of the original fit.
+     *
+     * @param designRow row of the design matrix for the sample, one value per coefficient
+     * @param values    values of the sample, one per row of the data
+     * @throws IllegalArgumentException if the design would not have full rank without the sample; the fit is then left
+     *                                  unchanged
+     */
+    public void removeSample( double[] designRow, final double[] values ) {
+        checkValues( values );
+        final double[] rotations = QRUpdate.downdate( r, pivot( designRow ) );
+        RowChunks.forEachChunk( executor, numRows, ( from, to ) -> {
+            for ( int i = from; i < to; i++ ) {
+                double zeta = QRUpdate.downdateEffects( rotations, z, i * p, values[i] );
+                // guard against cancellation
+                rss[i] = Math.max( 0.0, rss[i] - zeta * zeta );
+            }
+        } );
+        numSamples--;
+    }
+
+    /**
+     * Remove a sample of the original fit.
+     *
+     * @param sample index of the sample, i.e. of the column of the data of the original fit
+     * @throws IllegalArgumentException if the sample was already removed or if the design would not have full rank
+     *                                  without it
+     */
+    public void removeSample( int sample ) {
+        if ( removed[sample] ) {
+            throw new IllegalArgumentException( "Sample " + sample + " was already removed" );
+        }
+        removeSample( fit.getDesign().viewRow( sample ).toArray(), fit.getData().viewColumn( sample ).toArray() );
+        removed[sample] = true;
+    }
+
+    /**
+     * Add back a sample of the original fit that was removed with {@link #removeSample(int)}.
+     *
+     * @param sample index of the sample, i.e. of the column of the data of the original fit
+     * @throws IllegalArgumentException if the sample was not removed
+     */
+    public void restoreSample( int sample ) {
+        if ( !removed[sample] ) {
+            throw new IllegalArgumentException( "Sample " + sample + " was not removed" );
+        }
+        addSample( fit.getDesign().viewRow( sample ).toArray(), fit.getData().viewColumn( sample ).toArray() );
+        removed[sample] = false;
+    }
+
+    /**
+     * @return the current number of samples
+     */
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    /**
+     * @return residual degrees of freedom, the same for all rows
+     */
+    public int getResidualDof() {
+        return numSamples - p;
+    }
+
+    /**
+     * @return coefficients, with a row per coefficient and a column per row of the data, as in
+     * {@link LeastSquaresFit#getCoefficients()}
+     */
+    public DoubleMatrix2D getCoefficients() {
+        final DoubleMatrix2D coefficients = new DenseDoubleMatrix2D( p, numRows );
+        RowChunks.forEachChunk( executor, numRows, ( from, to ) -> {
+            double[] beta = new double[p];
+            for ( int i = from; i < to; i++ ) {
+                backSolve( i, beta );
+                for ( int k = 0; k < p; k++ ) {
+                    coefficients.setQuick( pivot[k], i, beta[k] );
+                }
+            }
+        } );
+        return coefficients;
+    }
+
+    /**
+     * @return residual variance (sigma^2) of each row of the data; NaN if there are no residual degrees of freedom.
+     */
+    public double[] getResidualVariances() {
+        int rdf = getResidualDof();
+        double[] vars = new double[numRows];
+        for ( int i = 0; i < numRows; i++ ) {
+            vars[i] = rdf > 0 ? rss[i] / rdf : Double.NaN;
+        }
+        return vars;
+    }
+
+    /**
+     * Compute the t-statistics of all the coefficients and their p-values, as in the (unmoderated) summaries of a fit of
+     * the current samples.
+     *
+     * @return the t-statistics and the p-values, as two matrices with a row per coefficient and a column per row of the
+     * data; all NaN if there are no residual degrees of freedom
+     */
+    public DoubleMatrix2D[] tStatistics() {
+        // diagonal of (R'R)^-1, from the inverse of R
+        final double[] sdUnscaled = new double[p];
+        double[][] rinv = new double[p][p];
+        for ( int j = 0; j < p; j++ ) {
+            rinv[j][j] = 1.0 / r[j][j];
+            for ( int i = j - 1; i >= 0; i-- ) {
+                double t = 0.0;
+                for ( int k = i + 1; k <= j; k++ ) {
+                    t += r[i][k] * rinv[k][j];
+                }
+                rinv[i][j] = -t / r[i][i];
+            }
+        }
+        for ( int k = 0; k < p; k++ ) {
+            double v = 0.0;
+            for ( int j = k; j < p; j++ ) {
+                v += rinv[k][j] * rinv[k][j];
+            }
+            sdUnscaled[k] = Math.sqrt( v );
+        }
+
+        final int rdf = getResidualDof();
+        final DoubleMatrix2D tstats = new DenseDoubleMatrix2D( p, numRows );
+        final DoubleMatrix2D pvalues = new DenseDoubleMatrix2D( p, numRows );
+        if ( rdf <= 0 ) {
+            // the residual variance is not defined, and neither is the t distribution
+            tstats.assign( Double.NaN );
+            pvalues.assign( Double.NaN );
+            return new DoubleMatrix2D[] { tstats, pvalues };
+        }
+        RowChunks.forEachChunk( executor, numRows, ( from, to ) -> {
+            double[] beta = new double[p];
+            double[] t = new double[p];
+            for ( int i = from; i < to; i++ ) {
+                backSolve( i, beta );
+                double sigma = Math.sqrt( rss[i] / rdf );
+                for ( int k = 0; k < p; k++ ) {
+                    t[k] = beta[k] / ( sdUnscaled[k] * sigma );
+                }
+                double[] pv = pValueCalculator.tTestTwoSided( t, rdf );
+                for ( int k = 0; k < p; k++ ) {
+                    tstats.setQuick( pivot[k], i, t[k] );
+                    pvalues.setQuick( pivot[k], i, pv[k] );
+                }
+            }
+        } );
+        return new DoubleMatrix2D[] { tstats, pvalues };
+    }
+
+    /**
+     * Solve R beta = z for a row of the data.
+     *
+     * @param beta receives the coefficients, in the order of the columns of R
+     */
+    private void backSolve( int i, double[] beta ) {
+        for ( int k = p - 1; k >= 0; k-- ) {
+            double v = z[i * p + k];
+            for ( int j = k + 1; j < p; j++ ) {
+                v -= r[k][j] * beta[j];
+            }
+            beta[k] = v / r[k][k];
+        }
+    }
+
+    private double[] pivot( double[] designRow ) {
+        if ( designRow.length != p ) {
+            throw new IllegalArgumentException( "Design row must have " + p + " values, got " + designRow.length );
+        }
+        double[] x = new double[p];
+        for ( int k = 0; k < p; k++ ) {
+            x[k] = designRow[pivot[k]];
+        }
+        return x;
+    }
+
+    private void checkValues( double[] values ) {
+        if ( values.length != numRows ) {
+            throw new IllegalArgumentException( "Expected " + numRows + " values, got " + values.length );
+        }
+        for ( double v : values ) {
+            if ( Double.isNaN( v ) || Double.isInfinite( v ) ) {
+                throw new IllegalArgumentException( "Missing values are not supported" );
+            }
+        }
+    }
+}
@@ -89,6 +89,23 @@ public class Configuration {
         }
     }
 
+    /**
+     * Obtain a double configuration value by key.
+     *
+     * @return the value, or null if it is not set or blank
+     * @throws NumberFormatException if the value is not a number
+     * @see Double#parseDouble(String)
+     */
+    @Nullable
+    public static Double getDouble( String key ) {
+        String val = getString( key );
+        if ( val != null && !val.trim().isEmpty() ) {
+            return Double.parseDouble( val.trim() );
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Set a configuration by key.
      */
@@ -0,0 +1,117 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.dataStructure.matrix;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class DenseFloatMatrixTest extends AbstractDoubleMatrixTest {
+
+    @Before
+    public void setUp() throws Exception {
+        testdata = DoubleMatrixFactory.densefloat(
+                f.read( DenseFloatMatrixTest.class.getResourceAsStream( "/data/testdata.txt" ) ) );
+        testM = DoubleMatrixFactory.densefloat( testArray );
+        testM.setRowNames( Arrays.asList( "a", "b", "c" ) );
+        testM.setColumnNames( Arrays.asList( "w", "x", "y", "z" ) );
+    }
+
+    /**
+     * 27873.8 is not representable as a float.
+     */
+    @Override
+    @Test
+    public void testGet() {
+        assertEquals( 27873.8, testdata.get( 2, 4 ), 0.001 );
+        assertEquals( ( double ) 27873.8f, testdata.get( 2, 4 ), 0.0 );
+    }
+
+    @Test
+    public void testRoundedToFloat() {
+        DoubleMatrix<String, String> m = DoubleMatrixFactory.densefloat( 1, 1 );
+        m.set( 0, 0, 0.1 );
+        assertEquals( ( double ) 0.1f, m.get( 0, 0 ), 0.0 );
+        assertNotEquals( 0.1, m.get( 0, 0 ), 0.0 );
+    }
+
+    @Test
+    public void testDerivedMatricesAreFloat() {
+        assertTrue( testM.copy() instanceof DenseFloatMatrix );
+        assertTrue( testM.transpose() instanceof DenseFloatMatrix );
+        assertTrue( testM.getRowRange( 1, 2 ) instanceof DenseFloatMatrix );
+        assertTrue( testM.subsetColumns( Arrays.asList( "z", "w" ) ) instanceof DenseFloatMatrix );
+        DoubleMatrix<String, String> t = testM.transpose();
+        assertEquals( 4, t.rows() );
+        assertEquals( 14.0, t.get( 3, 1 ), 0.0 );
+        assertEquals( "z", t.getRowName( 3 ) );
+        DoubleMatrix<String, String> s = testM.subsetColumns( Arrays.asList( "z", "w" ) );
+        assertArrayEquals( new double[] { 14, 11 }, s.getRow( 1 ), 0.0 );
+    }
+
+    @Test
+    public void testViewsWriteThrough() {
+        testM.viewRow( 1 ).set( 2, 42.0 );
+        assertEquals( 42.0, testM.get( 1, 2 ), 0.0 );
+        testM.viewColumn( 3 ).set( 0, -1.0 );
+        assertEquals( -1.0, testM.get( 0, 3 ), 0.0 );
+
+        DoubleMatrix2D m = ( ( DenseFloatMatrix<String, String> ) testM ).asDoubleMatrix2D();
+        DoubleMatrix2D view = m.viewDice().viewPart( 1, 1, 2, 2 ).viewRowFlip();
+        assertEquals( 23.0, view.get( 0, 1 ), 0.0 );
+        view.set( 1, 0, 7.0 );
+        assertEquals( 7.0, testM.get( 1, 1 ), 0.0 );
+
+        DoubleMatrix1D selection = m.viewRow( 2 ).viewSelection( new int[] { 3, 0 } ).viewFlip();
+        assertArrayEquals( new double[] { 21, 24 }, selection.toArray(), 0.0 );
+        selection.set( 0, 5.0 );
+        assertEquals( 5.0, testM.get( 2, 0 ), 0.0 );
+
+        DoubleMatrix2D selection2 = m.viewSelection( new int[] { 2, 0 }, new int[] { 3, 2 } ).viewDice();
+        assertEquals( 3.0, selection2.get( 1, 1 ), 0.0 );
+        assertEquals( -1.0, selection2.viewRow( 0 ).get( 1 ), 0.0 );
+        assertEquals( 23.0, selection2.viewColumn( 0 ).get( 1 ), 0.0 );
+    }
+
+    @Test
+    public void testLike1DSharesCells() {
+        DenseFloatMatrix2D m = ( DenseFloatMatrix2D ) ( ( DenseFloatMatrix<String, String> ) testM )
+                .asDoubleMatrix2D();
+        // the second column, from the raw offset and stride of the row-major storage
+        DoubleMatrix1D column = m.like1D( m.rows(), 1, m.columns() );
+        assertArrayEquals( m.viewColumn( 1 ).toArray(), column.toArray(), 0.0 );
+        column.set( 2, 42.0 );
+        assertEquals( 42.0, testM.get( 2, 1 ), 0.0 );
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        DoubleMatrix2D m = ( ( DenseFloatMatrix<String, String> ) testM ).asDoubleMatrix2D();
+        DoubleMatrix2D copy = m.copy();
+        copy.set( 0, 0, 100.0 );
+        assertEquals( 1.0, testM.get( 0, 0 ), 0.0 );
+        DoubleMatrix<String, String> copy2 = testM.copy();
+        copy2.set( 0, 0, 100.0 );
+        assertEquals( 1.0, testM.get( 0, 0 ), 0.0 );
+    }
+}
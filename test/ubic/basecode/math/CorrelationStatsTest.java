@@ -19,6 +19,7 @@
 package ubic.basecode.math;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -186,4 +187,23 @@ public class CorrelationStatsTest {
         assertEquals( expected, actual, 0.0001 );
     }
 
+    @Test
+    public void testPvalueAsByteUncached() {
+        // one-sided pvalue of 0.01237
+        assertEquals( 16, CorrelationStats.pvalueAsByteUncached( 0.5, 20 ) );
+        assertEquals( 16, CorrelationStats.pvalueAsByteUncached( -0.5, 20 ) );
+        assertEquals( 255, CorrelationStats.pvalueAsByteUncached( 1.0, 20 ) );
+        assertEquals( 0, CorrelationStats.pvalueAsByteUncached( 0.0, 20 ) );
+        assertEquals( 0, CorrelationStats.pvalueAsByteUncached( 0.5, 2 ) );
+    }
+
+    @Test
+    public void testSpearmanPvalueBatch() {
+        double[] actual = CorrelationStats.spearmanPvalue( new double[] { -0.966667, Double.NaN, 0.9166667 },
+                new int[] { 9, 9, 6 } );
+        assertEquals( 4.960317e-5, actual[0], 0.0000001 );
+        assertTrue( Double.isNaN( actual[1] ) );
+        assertEquals( 0.016667, actual[2], 0.00001 );
+    }
+
 }
@@ -0,0 +1,194 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class MappedCorrelationMatrixTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private RowCorrelations correlations;
+    private List<String> names;
+
+    @Before
+    public void setUp() {
+        Random random = new Random( 11 );
+        double[][] d = new double[50][20];
+        for ( int i = 0; i < d.length; i++ ) {
+            for ( int j = 0; j < d[i].length; j++ ) {
+                d[i][j] = random.nextGaussian() + ( i % 3 ) * j / 4.0;
+                if ( i % 10 == 0 && random.nextDouble() < 0.3 ) {
+                    d[i][j] = Double.NaN;
+                }
+            }
+        }
+        // a constant row, with missing correlations
+        Arrays.fill( d[7], 3.0 );
+        correlations = new RowCorrelations( d );
+        names = new ArrayList<>();
+        for ( int i = 0; i < d.length; i++ ) {
+            names.add( "gene" + i );
+        }
+    }
+
+    @Test
+    public void testWriteAndOpen() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            MappedCorrelationMatrix.write( correlations, names, true, pool, path );
+        } finally {
+            pool.shutdown();
+        }
+        MappedCorrelationMatrix matrix = MappedCorrelationMatrix.open( path );
+        check( matrix );
+        assertEquals( 50 * 49, Files.size( path ) - headerSize() );
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        MappedCorrelationMatrix.write( correlations, names, true, null, path, 100 );
+        check( MappedCorrelationMatrix.open( path, 100 ) );
+        // the layout does not depend on the segments
+        check( MappedCorrelationMatrix.open( path ) );
+        check( MappedCorrelationMatrix.open( path, 49 ) );
+    }
+
+    @Test
+    public void testWithoutPvalues() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        MappedCorrelationMatrix.write( correlations, names, false, null, path );
+        MappedCorrelationMatrix matrix = MappedCorrelationMatrix.open( path );
+        assertFalse( matrix.hasPvalues() );
+        assertEquals( 50 * 49 / 2, Files.size( path ) - headerSize() );
+        assertEquals( CorrelationStats.byteToCorrel( CorrelationStats.correlAsByte( correlations.correlation( 3,
+                4 ) ) ), matrix.getCorrelation( "gene4", "gene3" ), 0.0 );
+        try {
+            matrix.getPvalue( 3, 4 );
+            fail( "Expected an IllegalStateException" );
+        } catch ( IllegalStateException e ) {
+            // expected
+        }
+    }
+
+    /**
+     * A perfect correlation is stored as the highest byte that does not mark a missing correlation.
+     */
+    @Test
+    public void testMissingAndPerfectCorrelations() throws Exception {
+        RowCorrelations c = new RowCorrelations( new double[][] { { 1, 2, 3, 4 }, { 2, 4, 6, 8 }, { 5, 5, 5, 5 } } );
+        Path path = temporaryFolder.newFile().toPath();
+        MappedCorrelationMatrix.write( c, Arrays.asList( "a", "b", "c" ), true, null, path );
+        MappedCorrelationMatrix matrix = MappedCorrelationMatrix.open( path );
+        assertEquals( CorrelationStats.byteToCorrel( MappedCorrelationMatrix.MISSING_CORRELATION - 1 ),
+                matrix.getCorrelation( 0, 1 ), 0.0 );
+        assertFalse( Double.isNaN( matrix.getPvalue( 0, 1 ) ) );
+        assertTrue( Double.isNaN( matrix.getCorrelation( "a", "c" ) ) );
+        assertTrue( Double.isNaN( matrix.getCorrelation( 2, 1 ) ) );
+        assertTrue( Double.isNaN( matrix.getPvalue( 1, 2 ) ) );
+        assertTrue( Double.isNaN( matrix.getRow( 2 )[0] ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        MappedCorrelationMatrix.write( correlations, names, true, null, path );
+        byte[] bytes = Files.readAllBytes( path );
+        Files.write( path, Arrays.copyOf( bytes, bytes.length - 1 ) );
+        MappedCorrelationMatrix.open( path );
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotCorrelations() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        Files.write( path, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 } );
+        MappedCorrelationMatrix.open( path );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateNames() throws Exception {
+        names.set( 1, "gene0" );
+        MappedCorrelationMatrix.write( correlations, names, false, null, temporaryFolder.newFile().toPath() );
+    }
+
+    private void check( MappedCorrelationMatrix matrix ) {
+        assertEquals( 50, matrix.getNumRows() );
+        assertEquals( names, matrix.getRowNames() );
+        assertEquals( 12, matrix.getRowIndex( "gene12" ) );
+        assertEquals( -1, matrix.getRowIndex( "foo" ) );
+        assertTrue( matrix.hasPvalues() );
+        for ( int i = 0; i < 50; i++ ) {
+            double[] row = matrix.getRow( i );
+            assertEquals( 1.0, row[i], 0.0 );
+            ByteBuffer bytes = matrix.getCorrelationBytes( i );
+            ByteBuffer pvalueBytes = matrix.getPvalueBytes( i );
+            assertEquals( 49 - i, bytes.remaining() );
+            for ( int j = 0; j < 50; j++ ) {
+                if ( i == j ) {
+                    continue;
+                }
+                double r = correlations.correlation( i, j );
+                if ( i == 7 || j == 7 ) {
+                    assertTrue( Double.isNaN( r ) );
+                    assertTrue( Double.isNaN( row[j] ) );
+                    assertTrue( Double.isNaN( matrix.getPvalue( i, j ) ) );
+                    if ( j > i ) {
+                        assertEquals( MappedCorrelationMatrix.MISSING_CORRELATION, bytes.get( j - i - 1 ) & 0xFF );
+                    }
+                    continue;
+                }
+                assertEquals( r, row[j], 1.0 / 128 );
+                assertEquals( row[j], matrix.getCorrelation( j, i ), 0.0 );
+                assertEquals( CorrelationStats.byteToPvalue( CorrelationStats.pvalueAsByteUncached( r,
+                        correlations.getNumPresent( i, j ) ) ), matrix.getPvalue( i, j ), 0.0 );
+                if ( j > i ) {
+                    assertEquals( row[j], CorrelationStats.byteToCorrel( bytes.get( j - i - 1 ) & 0xFF ), 0.0 );
+                    assertEquals( matrix.getPvalue( i, j ), CorrelationStats.byteToPvalue( pvalueBytes.get( j - i
+                            - 1 ) & 0xFF ), 0.0 );
+                }
+            }
+        }
+        assertTrue( Double.isNaN( matrix.getPvalue( 3, 3 ) ) );
+    }
+
+    private long headerSize() {
+        long size = 16;
+        for ( String name : names ) {
+            size += 4 + name.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import org.apache.commons.math3.distribution.FDistribution;
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class PValueCalculatorTest {
+
+    private final PValueCalculator calculator = new PValueCalculator();
+
+    @Test
+    public void testTTest() {
+        double[] t = { -3.2, -0.5, 0.0, 1.7, 12.0, Double.NaN };
+        for ( double df : new double[] { 2, 7.5, 30 } ) {
+            double[] p = calculator.tTestTwoSided( t, df );
+            for ( int i = 0; i < t.length; i++ ) {
+                double expected = 2.0 * ( 1.0 - new TDistribution( df ).cumulativeProbability( Math.abs( t[i] ) ) );
+                assertEquals( expected, p[i], 0.0 );
+                assertEquals( expected, calculator.tTestTwoSided( t[i], df ), 0.0 );
+            }
+        }
+        // R: 2*pt(-2.5, 10)
+        assertEquals( 0.03144, calculator.tTestTwoSided( 2.5, 10 ), 1e-5 );
+    }
+
+    @Test
+    public void testTTestPerStatisticDof() {
+        double[] p = calculator.tTestTwoSided( new double[] { 2.5, 2.5, 1.0 }, new double[] { 10, Double.NaN, 10 } );
+        assertEquals( calculator.tTestTwoSided( 2.5, 10 ), p[0], 0.0 );
+        assertTrue( Double.isNaN( p[1] ) );
+        assertEquals( calculator.tTestTwoSided( 1.0, 10 ), p[2], 0.0 );
+    }
+
+    @Test
+    public void testFTest() {
+        double[] f = { 0.1, 1.0, 4.5, 40.0 };
+        double[] df1 = { 1, 2, 3, 1 };
+        double[] df2 = { 10, 12.5, 10, 10 };
+        double[] p = calculator.fTest( f, df1, df2 );
+        for ( int i = 0; i < f.length; i++ ) {
+            assertEquals( 1.0 - new FDistribution( df1[i], df2[i] ).cumulativeProbability( f[i] ), p[i], 0.0 );
+        }
+        // R: pf(4.5, 3, 10, lower.tail=F)
+        assertEquals( 0.03031, calculator.fTest( 4.5, 3, 10 ), 1e-5 );
+
+        p = calculator.fTest( new double[] { 1.0, 1.0 }, new double[] { 0, Double.NaN }, new double[] { 10, 10 } );
+        assertTrue( Double.isNaN( p[0] ) );
+        assertTrue( Double.isNaN( p[1] ) );
+    }
+
+    @Test(expected = NotStrictlyPositiveException.class)
+    public void testFTestInvalidDof() {
+        calculator.fTest( 1.0, -1, 10 );
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.apache.commons.math3.analysis.interpolation.LoessInterpolator;
+import org.junit.Test;
+import ubic.basecode.util.Configuration;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class SmoothTest {
+
+    @Test
+    public void testLoessFitSameAsLoessInterpolator() {
+        DoubleMatrix2D xy = randomData( 500, 1 );
+        DoubleMatrix2D fit = Smooth.loessFit( xy, Smooth.BANDWIDTH, 0.0 );
+        DoubleMatrix2D sorted = xy.viewSorted( 0 );
+        double[] expected = new LoessInterpolator( Smooth.BANDWIDTH, Smooth.ROBUSTNESS_ITERS )
+                .smooth( sorted.viewColumn( 0 ).toArray(), sorted.viewColumn( 1 ).toArray() );
+        assertArrayEquals( sorted.viewColumn( 0 ).toArray(), fit.viewColumn( 0 ).toArray(), 0.0 );
+        assertArrayEquals( expected, fit.viewColumn( 1 ).toArray(), 0.0 );
+    }
+
+    @Test
+    public void testLoessFitWithDelta() {
+        DoubleMatrix2D xy = randomData( 5000, 2 );
+        DoubleMatrix2D exact = Smooth.loessFit( xy );
+        DoubleMatrix2D fit = Smooth.loessFit( xy, Smooth.BANDWIDTH, 0.01 * ( exact.get( exact.rows() - 1, 0 ) - exact.get( 0, 0 ) ) );
+        assertEquals( exact.rows(), fit.rows() );
+        assertArrayEquals( exact.viewColumn( 0 ).toArray(), fit.viewColumn( 0 ).toArray(), 0.0 );
+        // the noise has a standard deviation of 0.5
+        assertArrayEquals( exact.viewColumn( 1 ).toArray(), fit.viewColumn( 1 ).toArray(), 0.01 );
+
+        Configuration.setString( "loess.delta", "0.01" );
+        try {
+            assertArrayEquals( fit.viewColumn( 1 ).toArray(), Smooth.loessFit( xy ).viewColumn( 1 ).toArray(), 0.0 );
+        } finally {
+            Configuration.reset( "loess.delta" );
+        }
+
+        // a delta larger than the range only computes the extremities
+        fit = Smooth.loessFit( xy, Smooth.BANDWIDTH, 100.0 );
+        int n = fit.rows();
+        double slope = ( fit.get( n - 1, 1 ) - fit.get( 0, 1 ) ) / ( fit.get( n - 1, 0 ) - fit.get( 0, 0 ) );
+        assertEquals( fit.get( 0, 1 ) + slope * ( fit.get( n / 2, 0 ) - fit.get( 0, 0 ) ), fit.get( n / 2, 1 ), 1e-10 );
+    }
+
+    @Test
+    public void testLoessFitMissingAndDuplicates() {
+        DoubleMatrix2D xy = new DenseDoubleMatrix2D( new double[][] { { 3, 9 }, { 1, 1 }, { Double.NaN, 2 },
+                { 2, 5 }, { 4, Double.POSITIVE_INFINITY }, { 2, 4 }, { 5, 25 }, { 4, 16 }, { 6, 36 } } );
+        DoubleMatrix2D fit = Smooth.loessFit( xy, Smooth.BANDWIDTH, 0.0 );
+        assertArrayEquals( new double[] { 1, 2, 3, 4, 5, 6 }, fit.viewColumn( 0 ).toArray(), 0.0 );
+        double[] expected = new LoessInterpolator( Smooth.BANDWIDTH, Smooth.ROBUSTNESS_ITERS )
+                .smooth( new double[] { 1, 2, 3, 4, 5, 6 }, new double[] { 1, 4, 9, 16, 25, 36 } );
+        assertArrayEquals( expected, fit.viewColumn( 1 ).toArray(), 0.0 );
+    }
+
+    private static DoubleMatrix2D randomData( int n, long seed ) {
+        Random random = new Random( seed );
+        DoubleMatrix2D xy = new DenseDoubleMatrix2D( n, 2 );
+        for ( int i = 0; i < n; i++ ) {
+            double x = 10 * random.nextDouble();
+            xy.set( i, 0, x );
+            xy.set( i, 1, Math.sin( x ) + 0.5 * random.nextGaussian() );
+        }
+        return xy;
+    }
+}
@@ -120,6 +120,45 @@ public class TestMatrixStats {
 
     }
 
+    @Test
+    public final void testCorrelationMatrixParallelWithMissing() {
+        // enough rows for several tiles
+        java.util.Random random = new java.util.Random( 12345 );
+        double[][] d = new double[600][12];
+        for ( int i = 0; i < d.length; i++ ) {
+            for ( int j = 0; j < d[i].length; j++ ) {
+                d[i][j] = i % 7 == 3 ? 5.0 : random.nextGaussian() + ( i % 5 ) * j;
+                if ( i % 11 == 0 && random.nextDouble() < 0.3 ) {
+                    d[i][j] = Double.NaN;
+                }
+            }
+        }
+        DoubleMatrix<String, String> data = DoubleMatrixFactory.dense( d );
+        DoubleMatrix<String, String> serial = MatrixStats.correlationMatrix( data );
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool( 4 );
+        DoubleMatrix<String, String> parallel;
+        try {
+            parallel = MatrixStats.correlationMatrix( data, pool );
+        } finally {
+            pool.shutdown();
+        }
+        for ( int i = 0; i < d.length; i++ ) {
+            assertArrayEquals( serial.getRow( i ), parallel.getRow( i ), 0.0 );
+            assertEquals( 1.0, serial.get( i, i ), 0.0 );
+            for ( int j = i + 1; j < d.length; j += 13 ) {
+                if ( i % 7 == 3 || j % 7 == 3 ) {
+                    // constant rows
+                    assertTrue( Double.isNaN( serial.get( i, j ) ) );
+                } else {
+                    double expected = DescriptiveWithMissing.correlation( new cern.colt.list.DoubleArrayList( d[i] ),
+                            new cern.colt.list.DoubleArrayList( d[j] ) );
+                    assertEquals( expected, serial.get( i, j ), 1e-10 );
+                }
+                assertEquals( serial.get( i, j ), serial.get( j, i ), 0.0 );
+            }
+        }
+    }
+
     @Test
     public final void testCorrelationMatrixThreshold() throws Exception {
         double threshold = 0.5;
@@ -147,6 +186,201 @@ public class TestMatrixStats {
 
     }
 
+    @Test
+    public final void testCorrelationWithScatteredMissingValues() {
+        // more than one word of mask per row
+        java.util.Random random = new java.util.Random( 2026 );
+        double[][] d = new double[80][150];
+        for ( int i = 0; i < d.length; i++ ) {
+            double missingRate = i % 4 == 0 ? 0.0 : i % 4 == 1 ? 0.02 : i % 4 == 2 ? 0.3 : 0.95;
+            for ( int j = 0; j < d[i].length; j++ ) {
+                d[i][j] = random.nextDouble() < missingRate ? Double.NaN : 100 + random.nextGaussian() + ( i % 3 ) * j
+                        / 50.0;
+            }
+        }
+        // a row with a single value, and a row without any value
+        java.util.Arrays.fill( d[5], Double.NaN );
+        d[5][70] = 1.0;
+        java.util.Arrays.fill( d[9], Double.NaN );
+        RowCorrelations rc = new RowCorrelations( d );
+        for ( int i = 0; i < d.length; i++ ) {
+            for ( int j = 0; j < d.length; j++ ) {
+                if ( i == j ) {
+                    continue;
+                }
+                double expected = DescriptiveWithMissing.correlation( new cern.colt.list.DoubleArrayList( d[i] ),
+                        new cern.colt.list.DoubleArrayList( d[j] ) );
+                double actual = rc.correlation( i, j );
+                if ( i == 9 || j == 9 || Double.isNaN( expected ) ) {
+                    assertTrue( Double.isNaN( actual ) );
+                } else {
+                    assertEquals( expected, actual, 1e-8 );
+                }
+            }
+        }
+    }
+
+    @Test
+    public final void testSpearmanCorrelationMatrix() {
+        java.util.Random random = new java.util.Random( 77 );
+        double[][] d = new double[300][15];
+        for ( int i = 0; i < d.length; i++ ) {
+            for ( int j = 0; j < d[i].length; j++ ) {
+                // plenty of ties
+                d[i][j] = Math.round( 2 * random.nextGaussian() + ( i % 3 ) * j / 5.0 );
+            }
+        }
+        // missing values at the same places in two rows, which are then ranked the same way
+        d[10][3] = d[10][7] = d[20][3] = d[20][7] = Double.NaN;
+        DoubleMatrix<String, String> data = DoubleMatrixFactory.dense( d );
+        DoubleMatrix<String, String> serial = MatrixStats.spearmanCorrelationMatrix( data, null );
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool( 4 );
+        try {
+            DoubleMatrix<String, String> parallel = MatrixStats.spearmanCorrelationMatrix( data, pool );
+            for ( int i = 0; i < d.length; i++ ) {
+                assertArrayEquals( serial.getRow( i ), parallel.getRow( i ), 0.0 );
+            }
+        } finally {
+            pool.shutdown();
+        }
+        for ( int i = 0; i < d.length; i += 7 ) {
+            for ( int j = 0; j < d.length; j++ ) {
+                if ( ( i == 10 || i == 20 ) != ( j == 10 || j == 20 ) ) {
+                    continue;
+                }
+                assertEquals( i == j ? 1.0 : Distance.spearmanRankCorrelation( new cern.colt.list.DoubleArrayList(
+                        d[i] ), new cern.colt.list.DoubleArrayList( d[j] ) ), serial.get( i, j ), 1e-10 );
+            }
+        }
+        assertEquals( Distance.spearmanRankCorrelation( new cern.colt.list.DoubleArrayList( d[10] ),
+                new cern.colt.list.DoubleArrayList( d[20] ) ), serial.get( 10, 20 ), 1e-10 );
+
+        // thresholded, with p-values
+        RowCorrelations spearman = RowCorrelations.spearman( d );
+        CorrelationEdges edges = spearman.edges( null, 0.5 );
+        int[] counts = new int[edges.getNumEdges()];
+        int[] rows = new int[edges.getNumEdges()];
+        for ( int i = 0; i < d.length; i++ ) {
+            for ( int k = edges.getRowPointers()[i]; k < edges.getRowPointers()[i + 1]; k++ ) {
+                rows[k] = i;
+                counts[k] = spearman.getNumPresent( i, edges.getColumns()[k] );
+            }
+        }
+        double[] pvalues = CorrelationStats.spearmanPvalue( edges.getValues(), counts );
+        for ( int k = 0; k < edges.getNumEdges(); k++ ) {
+            assertEquals( serial.get( rows[k], edges.getColumns()[k] ), edges.getValues()[k], 0.0 );
+            // p-values are cached by bins of correlation, so they depend a little on the order they are computed in
+            assertEquals( CorrelationStats.spearmanPvalue( edges.getValues()[k], counts[k] ), pvalues[k], 1e-4 );
+        }
+        assertEquals( 13, spearman.getNumPresent( 10, 20 ) );
+        assertEquals( 13, spearman.getNumPresent( 0, 10 ) );
+        assertEquals( 15, spearman.getNumPresent( 0, 1 ) );
+
+        // top-k
+        CorrelationNeighbours neighbours = spearman.nearestNeighbours( null, 3, true, true );
+        assertEquals( serial.get( 0, neighbours.getNeighbours( 0 )[0] ), neighbours.getCorrelations( 0 )[0], 1e-10 );
+    }
+
+    @Test
+    public final void testCorrelationEdges() throws Exception {
+        double threshold = 0.5;
+        DoubleMatrix<String, String> expected = MatrixStats.correlationMatrix( testdata );
+        CorrelationEdges edges = MatrixStats.correlationEdges( testdata, threshold, null );
+        assertEquals( testdata.rows(), edges.getNumRows() );
+        int numEdges = 0;
+        int[] degrees = new int[testdata.rows()];
+        for ( int i = 0; i < testdata.rows(); i++ ) {
+            for ( int j = 0; j < testdata.rows(); j++ ) {
+                if ( i != j && Math.abs( expected.get( i, j ) ) > threshold ) {
+                    assertEquals( expected.get( i, j ), edges.get( i, j ), 1e-10 );
+                    degrees[i]++;
+                    if ( i < j ) {
+                        numEdges++;
+                    }
+                } else {
+                    assertTrue( Double.isNaN( edges.get( i, j ) ) );
+                }
+            }
+        }
+        assertEquals( numEdges, edges.getNumEdges() );
+        assertArrayEquals( degrees, edges.getDegrees() );
+
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool( 4 );
+        try {
+            CorrelationEdges parallel = MatrixStats.correlationEdges( testdata, threshold, pool );
+            assertArrayEquals( edges.getRowPointers(), parallel.getRowPointers() );
+            assertArrayEquals( edges.getColumns(), parallel.getColumns() );
+            assertArrayEquals( edges.getValues(), parallel.getValues(), 0.0 );
+
+            java.util.concurrent.atomic.AtomicInteger streamed = new java.util.concurrent.atomic.AtomicInteger();
+            new RowCorrelations( testdata.asArray() ).forEachEdge( pool, threshold, ( i, j, r ) -> {
+                assertEquals( edges.get( i, j ), r, 0.0 );
+                streamed.incrementAndGet();
+            } );
+            assertEquals( numEdges, streamed.get() );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public final void testCorrelationNeighbours() {
+        java.util.Random random = new java.util.Random( 54321 );
+        double[][] d = new double[400][20];
+        for ( int i = 0; i < d.length; i++ ) {
+            for ( int j = 0; j < d[i].length; j++ ) {
+                d[i][j] = random.nextGaussian() + ( i % 4 ) * Math.sin( j );
+                if ( i % 9 == 0 && random.nextDouble() < 0.2 ) {
+                    d[i][j] = Double.NaN;
+                }
+            }
+        }
+        DoubleMatrix<String, String> data = DoubleMatrixFactory.dense( d );
+        DoubleMatrix<String, String> full = MatrixStats.correlationMatrix( data );
+        int k = 10;
+        for ( boolean absolute : new boolean[] { false, true } ) {
+            CorrelationNeighbours neighbours = MatrixStats.correlationNeighbours( data, k, absolute, null );
+            for ( int i = 0; i < d.length; i++ ) {
+                double[] scores = new double[d.length - 1];
+                for ( int j = 0, m = 0; j < d.length; j++ ) {
+                    if ( j != i ) {
+                        scores[m++] = absolute ? Math.abs( full.get( i, j ) ) : full.get( i, j );
+                    }
+                }
+                java.util.Arrays.sort( scores );
+                assertEquals( k, neighbours.getNumNeighbours( i ) );
+                int[] partners = neighbours.getNeighbours( i );
+                double[] correlations = neighbours.getCorrelations( i );
+                for ( int m = 0; m < k; m++ ) {
+                    assertEquals( full.get( i, partners[m] ), correlations[m], 1e-10 );
+                    assertEquals( scores[scores.length - 1 - m], absolute ? Math.abs( correlations[m] )
+                            : correlations[m], 1e-10 );
+                }
+            }
+
+            RowCorrelations rc = new RowCorrelations( d );
+            CorrelationNeighbours unpruned = rc.nearestNeighbours( null, k, absolute, false );
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool( 4 );
+            CorrelationNeighbours parallel;
+            try {
+                parallel = rc.nearestNeighbours( pool, k, absolute, true );
+            } finally {
+                pool.shutdown();
+            }
+            for ( int i = 0; i < d.length; i++ ) {
+                assertArrayEquals( neighbours.getNeighbours( i ), unpruned.getNeighbours( i ) );
+                assertArrayEquals( neighbours.getCorrelations( i ), unpruned.getCorrelations( i ), 0.0 );
+                assertArrayEquals( neighbours.getNeighbours( i ), parallel.getNeighbours( i ) );
+            }
+        }
+
+        // fewer rows than k
+        CorrelationNeighbours few = new RowCorrelations( new double[][] { { 1, 2, 3 }, { 1, 3, 2 } } )
+                .nearestNeighbours( null, 5, false, true );
+        assertEquals( 1, few.getNumNeighbours( 0 ) );
+        assertArrayEquals( new int[] { 0 }, few.getNeighbours( 1 ) );
+    }
+
     @Test
     public void testCountsPerMillionWithMissing() throws Exception {
         DoubleMatrix<String, String> counts = new DenseDoubleMatrix<>( new double[][] {
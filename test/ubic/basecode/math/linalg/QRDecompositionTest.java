@@ -14,7 +14,9 @@
  */
 package ubic.basecode.math.linalg;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
+
+import java.util.Random;
 
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -266,6 +268,126 @@ public class QRDecompositionTest {
 
     }
 
+    /**
+     * The LAPACK and Java implementations must agree on the compact QR and qraux, not just on the solution.
+     */
+    @Test
+    public void testLapackSameAsJava() throws Exception {
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read( this.getClass()
+                .getResourceAsStream( "/data/example.metadata.small.txt" ) );
+        DoubleMatrix2D design = new DenseDoubleMatrix2D( new DesignMatrix( sampleInfo ).getMatrix().asArray() );
+        DoubleMatrix<String, String> data = new DoubleMatrixReader().read( this.getClass().getResourceAsStream(
+                "/data/example.madata.small.txt" ) );
+        DoubleMatrix2D y = solver.transpose( new DenseDoubleMatrix2D( data.getRowRange( 0, 9 ).asArray() ) );
+        assertSameDecomposition( design, y, true );
+        assertSameDecomposition( design, y, false );
+
+        // the first column is already reduced, LAPACK skips the reflection but LINPACK does not
+        DoubleMatrix2D reduced = new DenseDoubleMatrix2D( new double[][] { { 2, 1 }, { 0, 3 }, { 0, 4 } } );
+        assertSameDecomposition( reduced, new DenseDoubleMatrix2D( new double[][] { { 1 }, { 2 }, { 5 } } ), true );
+    }
+
+    @Test
+    public void testLapackFallbackWhenPivoting() throws Exception {
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read( this.getClass()
+                .getResourceAsStream( "/data/lmtest2.des.txt" ) );
+        DoubleMatrix2D design = new DenseDoubleMatrix2D( new DesignMatrix( sampleInfo, true ).getMatrix().asArray() );
+        QRDecomposition qr = new QRDecomposition( design, true, true );
+        assertFalse( qr.isLapack() );
+        assertEquals( 8, qr.getRank() );
+        assertEquals( new QRDecomposition( design, true, false ).getPivotOrder(), qr.getPivotOrder() );
+    }
+
+    /**
+     * Designs wider than a block, with collinear columns in the first and second blocks.
+     */
+    @Test
+    public void testBlocked() {
+        int n = 100, p = QRDecomposition.BLOCK_SIZE * 2 + 6;
+        Random random = new Random( 123 );
+        DoubleMatrix2D design = new DenseDoubleMatrix2D( n, p );
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < p; j++ ) {
+                design.set( i, j, random.nextGaussian() );
+            }
+        }
+        DoubleMatrix2D y = new DenseDoubleMatrix2D( n, 3 );
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < 3; j++ ) {
+                y.set( i, j, random.nextGaussian() );
+            }
+        }
+        assertSameDecomposition( design, y, true );
+
+        for ( int i = 0; i < n; i++ ) {
+            design.set( i, 10, 2 * design.get( i, 1 ) );
+            design.set( i, 40, design.get( i, 3 ) + design.get( i, 5 ) );
+        }
+        QRDecomposition qr = new QRDecomposition( design, true, false );
+        assertEquals( p - 2, qr.getRank() );
+        assertEquals( 10, qr.getPivotOrder().get( p - 2 ) );
+        assertEquals( 40, qr.getPivotOrder().get( p - 1 ) );
+
+        int[] kept = new int[p - 2];
+        for ( int j = 0, k = 0; j < p; j++ ) {
+            if ( j != 10 && j != 40 ) {
+                kept[k++] = j;
+            }
+        }
+        DoubleMatrix2D expected = new QRDecomposition( design.viewSelection( null, kept ).copy(), true, true )
+                .solve( y );
+        DoubleMatrix2D coefs = qr.solve( y );
+        for ( int k = 0; k < kept.length; k++ ) {
+            assertArrayEquals( expected.viewRow( k ).toArray(), coefs.viewRow( kept[k] ).toArray(), 1e-10 );
+        }
+        assertTrue( Double.isNaN( coefs.get( 10, 0 ) ) );
+        assertTrue( Double.isNaN( coefs.get( 40, 2 ) ) );
+
+        // a single right-hand side is done one reflector at a time
+        DoubleMatrix2D effects = qr.effects( y );
+        for ( int j = 0; j < 3; j++ ) {
+            assertArrayEquals( effects.viewColumn( j ).toArray(), qr.effects( y.viewColumn( j ) ).toArray(), 1e-10 );
+        }
+    }
+
+    /**
+     * All the reflectors must be applied to y, including the one for the last row of a square design.
+     */
+    @Test
+    public void testSquare() {
+        DoubleMatrix2D design = new DenseDoubleMatrix2D( new double[][] { { 1, 1 }, { 1, 2 } } );
+        DoubleMatrix2D y = new DenseDoubleMatrix2D( new double[][] { { 3 }, { 5 } } );
+        for ( boolean useLapack : new boolean[] { true, false } ) {
+            DoubleMatrix2D coefs = new QRDecomposition( design, true, useLapack ).solve( y );
+            assertEquals( 1.0, coefs.get( 0, 0 ), 1e-10 );
+            assertEquals( 2.0, coefs.get( 1, 0 ), 1e-10 );
+        }
+    }
+
+    private void assertSameDecomposition( DoubleMatrix2D design, DoubleMatrix2D y, boolean pivoting ) {
+        QRDecomposition lapack = new QRDecomposition( design, pivoting, true );
+        QRDecomposition java = new QRDecomposition( design, pivoting, false );
+        assertTrue( lapack.isLapack() );
+        assertFalse( java.isLapack() );
+        assertEquals( java.getRank(), lapack.getRank() );
+        assertEquals( java.getPivotOrder(), lapack.getPivotOrder() );
+        assertArrayEquals( java.getQraux().toArray(), lapack.getQraux().toArray(), 1e-10 );
+        assertMatrixEquals( java.getQR(), lapack.getQR() );
+        assertMatrixEquals( java.getR(), lapack.getR() );
+        assertMatrixEquals( java.getQ(), lapack.getQ() );
+        assertMatrixEquals( java.chol2inv(), lapack.chol2inv() );
+        assertMatrixEquals( java.effects( y ), lapack.effects( y ) );
+        assertMatrixEquals( java.solve( y ), lapack.solve( y ) );
+    }
+
+    private static void assertMatrixEquals( DoubleMatrix2D expected, DoubleMatrix2D actual ) {
+        assertEquals( expected.rows(), actual.rows() );
+        assertEquals( expected.columns(), actual.columns() );
+        for ( int i = 0; i < expected.rows(); i++ ) {
+            assertArrayEquals( expected.viewRow( i ).toArray(), actual.viewRow( i ).toArray(), 1e-10 );
+        }
+    }
+
     @Test
     public void test3() {
 
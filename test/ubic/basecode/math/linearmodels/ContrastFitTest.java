@@ -0,0 +1,220 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.linalg.Algebra;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrixImpl;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class ContrastFitTest {
+
+    private static final double TOLERANCE = 1e-8;
+
+    private DesignMatrix designMatrix;
+
+    @Before
+    public void setUp() throws Exception {
+        designMatrix = new DesignMatrix( new StringMatrixReader().read( getClass()
+                .getResourceAsStream( "/data/limmatest.design.txt" ) ), true );
+    }
+
+    /**
+     * With the identity as contrasts, the statistics are those of the coefficients.
+     */
+    @Test
+    public void testIdentity() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.missing.txt" );
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data );
+        assertTrue( fit.isHasMissing() );
+        int p = fit.getCoefficients().rows();
+        ContrastFit cf = new ContrastFit( fit, identity( p ) );
+        assertFalse( cf.isShrunken() );
+
+        LinearModelSummaries summaries = fit.summarizeColumns( false );
+        List<String> names = summaries.getCoefficientNames();
+        for ( int k = 0; k < p; k++ ) {
+            String name = names.get( k );
+            assertArrayEquals( summaries.getEstimates( name ), cf.getCoefficients().viewRow( k ).toArray(), TOLERANCE );
+            assertArrayEquals( summaries.getTStats( name ), cf.getTStats().viewRow( k ).toArray(), 1e-6 );
+            assertArrayEquals( summaries.getPValues( name ), cf.getPValues().viewRow( k ).toArray(), TOLERANCE );
+            // the "Std. Error" of the summaries is unscaled
+            assertArrayEquals( summaries.getStdErrs( name ), cf.getStdevUnscaled().viewRow( k ).toArray(), TOLERANCE );
+        }
+    }
+
+    @Test
+    public void testModerated() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.missing.txt" );
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data );
+        ModeratedTstat.ebayes( fit );
+        ContrastFit cf = new ContrastFit( fit, identity( fit.getCoefficients().rows() ) );
+        assertTrue( cf.isShrunken() );
+        DoubleMatrix2D[] expected = ModeratedTstat.moderatedTStatistics( fit );
+        for ( int k = 0; k < fit.getCoefficients().rows(); k++ ) {
+            assertArrayEquals( expected[0].viewRow( k ).toArray(), cf.getModeratedTStats().viewRow( k ).toArray(),
+                    TOLERANCE );
+            assertArrayEquals( expected[1].viewRow( k ).toArray(), cf.getModeratedPValues().viewRow( k ).toArray(),
+                    TOLERANCE );
+        }
+    }
+
+    /**
+     * A column in the middle of the design can be dropped for rows with missing values.
+     */
+    @Test
+    public void testDroppedColumn() {
+        // a four-level factor, three samples per level: intercept and indicators of levels B, C and D
+        ObjectMatrix<String, String, Object> sampleInfo = new ObjectMatrixImpl<>( 12, 1 );
+        for ( int i = 0; i < 12; i++ ) {
+            sampleInfo.set( i, 0, String.valueOf( ( char ) ( 'A' + i / 3 ) ) );
+        }
+        sampleInfo.addColumnName( "Factor" );
+        DesignMatrix dm = new DesignMatrix( sampleInfo, true );
+        DoubleMatrix2D design = dm.getDoubleMatrix();
+        assertEquals( 4, design.columns() );
+        Random random = new Random( 3 );
+        double[][] y = new double[3][12];
+        for ( int r = 0; r < 3; r++ ) {
+            for ( int i = 0; i < 12; i++ ) {
+                y[r][i] = random.nextGaussian() + i / 3;
+            }
+        }
+        // all the B samples are missing in the first row, and all the C samples in the second
+        for ( int i = 3; i < 6; i++ ) {
+            y[0][i] = Double.NaN;
+            y[1][i + 3] = Double.NaN;
+        }
+        LeastSquaresFit fit = new LeastSquaresFit( dm, new DenseDoubleMatrix2D( y ), null, null );
+        ContrastFit cf = new ContrastFit( fit, identity( 4 ) );
+        List<LinearModelSummary> summaries = fit.summarize();
+        for ( int r = 0; r < 3; r++ ) {
+            // the summary only has the coefficients that were estimated
+            double[] expected = summaries.get( r ).getStdevUnscaled();
+            int e = 0;
+            for ( int k = 0; k < 4; k++ ) {
+                if ( !Double.isNaN( fit.getCoefficients().get( k, r ) ) ) {
+                    assertEquals( expected[e++], cf.getStdevUnscaled().get( k, r ), TOLERANCE );
+                }
+            }
+            assertEquals( expected.length, e );
+        }
+        assertTrue( Double.isNaN( cf.getStdevUnscaled().get( 1, 0 ) ) );
+        assertEquals( Math.sqrt( 2.0 / 3.0 ), cf.getStdevUnscaled().get( 3, 0 ), TOLERANCE );
+        assertFalse( Double.isNaN( cf.getTStats().get( 3, 0 ) ) );
+
+        // D - C, refitting the first row without the B samples and column
+        ContrastFit dc = new ContrastFit( fit, new DenseDoubleMatrix2D( new double[][] { { 0 }, { 0 }, { -1 },
+                { 1 } } ) );
+        int[] samples = { 0, 1, 2, 6, 7, 8, 9, 10, 11 };
+        LeastSquaresFit refit = new LeastSquaresFit( design.viewSelection( samples, new int[] { 0, 2, 3 } ).copy(),
+                new DenseDoubleMatrix2D( y ).viewSelection( new int[] { 0 }, samples ).copy() );
+        ContrastFit expected = new ContrastFit( refit, new DenseDoubleMatrix2D( new double[][] { { 0 }, { -1 },
+                { 1 } } ) );
+        assertEquals( expected.getCoefficients().get( 0, 0 ), dc.getCoefficients().get( 0, 0 ), TOLERANCE );
+        assertEquals( expected.getStdevUnscaled().get( 0, 0 ), dc.getStdevUnscaled().get( 0, 0 ), TOLERANCE );
+        assertEquals( expected.getTStats().get( 0, 0 ), dc.getTStats().get( 0, 0 ), 1e-6 );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testModeratedWithoutEbayes() throws Exception {
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, read( "/data/limmatest.data.txt" ) );
+        new ContrastFit( fit, identity( fit.getCoefficients().rows() ) ).getModeratedTStats();
+    }
+
+    /**
+     * Contrasts are the coefficients of the design re-parameterized accordingly: X C'^-1.
+     */
+    @Test
+    public void testReparameterization() throws Exception {
+        for ( String resource : new String[] { "/data/limmatest.data.txt", "/data/limmatest.data.missing.txt" } ) {
+            LeastSquaresFit fit = new LeastSquaresFit( designMatrix, read( resource ) );
+            // mean of the first group and mean of the second group
+            DoubleMatrix2D contrasts = new DenseDoubleMatrix2D( new double[][] { { 1, 1 }, { 0, 1 } } );
+            ContrastFit cf = new ContrastFit( fit, contrasts );
+
+            DoubleMatrix2D design = Algebra.DEFAULT.mult( fit.getDesign(),
+                    Algebra.DEFAULT.inverse( contrasts.viewDice() ) );
+            LeastSquaresFit refit = new LeastSquaresFit( design, fit.getData() );
+            ContrastFit expected = new ContrastFit( refit, identity( 2 ) );
+            for ( int k = 0; k < 2; k++ ) {
+                assertArrayEquals( refit.getCoefficients().viewRow( k ).toArray(),
+                        cf.getCoefficients().viewRow( k ).toArray(), TOLERANCE );
+                assertArrayEquals( expected.getStdevUnscaled().viewRow( k ).toArray(),
+                        cf.getStdevUnscaled().viewRow( k ).toArray(), TOLERANCE );
+                assertArrayEquals( expected.getTStats().viewRow( k ).toArray(),
+                        cf.getTStats().viewRow( k ).toArray(), 1e-6 );
+                assertArrayEquals( expected.getPValues().viewRow( k ).toArray(),
+                        cf.getPValues().viewRow( k ).toArray(), TOLERANCE );
+            }
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.missing.txt" );
+        DoubleMatrix2D contrasts = new DenseDoubleMatrix2D( new double[][] { { 1, 1, 0 }, { 0, 1, 1 } } );
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        try {
+            ContrastFit serial = new ContrastFit( new LeastSquaresFit( designMatrix, data ), contrasts );
+            ContrastFit parallel = new ContrastFit( new LeastSquaresFit( designMatrix, data, null, pool ),
+                    contrasts );
+            for ( int k = 0; k < contrasts.columns(); k++ ) {
+                assertArrayEquals( serial.getCoefficients().viewRow( k ).toArray(),
+                        parallel.getCoefficients().viewRow( k ).toArray(), 0.0 );
+                assertArrayEquals( serial.getTStats().viewRow( k ).toArray(),
+                        parallel.getTStats().viewRow( k ).toArray(), 0.0 );
+                assertArrayEquals( serial.getPValues().viewRow( k ).toArray(),
+                        parallel.getPValues().viewRow( k ).toArray(), 0.0 );
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongNumberOfCoefficients() throws Exception {
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, read( "/data/limmatest.data.txt" ) );
+        new ContrastFit( fit, identity( fit.getCoefficients().rows() + 1 ) );
+    }
+
+    private static DoubleMatrix2D identity( int p ) {
+        DoubleMatrix2D result = new DenseDoubleMatrix2D( p, p );
+        for ( int k = 0; k < p; k++ ) {
+            result.set( k, k, 1.0 );
+        }
+        return result;
+    }
+
+    private DoubleMatrix<String, String> read( String resource ) throws Exception {
+        return new DoubleMatrixReader().read( getClass().getResourceAsStream( resource ) );
+    }
+}
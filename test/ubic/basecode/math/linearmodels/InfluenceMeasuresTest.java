@@ -0,0 +1,207 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * The influence measures are checked against their definitions, by refitting each row without each of its samples.
+ *
+ * @author poirigui
+ */
+public class InfluenceMeasuresTest {
+
+    private static final double TOLERANCE = 1e-8;
+
+    private DesignMatrix designMatrix;
+
+    @Before
+    public void setUp() throws Exception {
+        designMatrix = new DesignMatrix( new StringMatrixReader().read( getClass()
+                .getResourceAsStream( "/data/limmatest.design.txt" ) ), true );
+    }
+
+    @Test
+    public void testInfluenceMeasures() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.txt" );
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data );
+        InfluenceMeasures im = new InfluenceMeasures( fit );
+        for ( int i = 0; i < 10; i++ ) {
+            assertLeaveOneOut( fit, im, i, null );
+        }
+    }
+
+    @Test
+    public void testInfluenceMeasuresWithMissing() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.missing.txt" );
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data );
+        assertTrue( fit.isHasMissing() );
+        InfluenceMeasures im = new InfluenceMeasures( fit );
+        int withMissing = 0;
+        for ( int i = 0; i < data.rows(); i++ ) {
+            boolean missing = false;
+            for ( int j = 0; j < data.columns(); j++ ) {
+                if ( Double.isNaN( data.get( i, j ) ) ) {
+                    missing = true;
+                    assertTrue( Double.isNaN( im.getHatValues().get( i, j ) ) );
+                    assertTrue( Double.isNaN( im.getStudentizedResiduals().get( i, j ) ) );
+                }
+            }
+            if ( missing ) {
+                assertLeaveOneOut( fit, im, i, null );
+                withMissing++;
+            }
+        }
+        assertTrue( withMissing > 0 );
+        assertArrayEquals( im.getStudentizedResiduals().viewRow( 3 ).toArray(),
+                fit.getStudentizedResiduals().viewRow( 3 ).toArray(), 0.0 );
+    }
+
+    @Test
+    public void testInfluenceMeasuresWeighted() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.txt" );
+        DoubleMatrix2D weights = new DenseDoubleMatrix2D( data.rows(), data.columns() );
+        for ( int i = 0; i < data.rows(); i++ ) {
+            for ( int j = 0; j < data.columns(); j++ ) {
+                weights.set( i, j, 0.5 + ( ( i + 3 * j ) % 7 ) / 4.0 );
+            }
+        }
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data, weights );
+        InfluenceMeasures im = new InfluenceMeasures( fit );
+        for ( int i = 0; i < 10; i++ ) {
+            assertLeaveOneOut( fit, im, i, weights );
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        DoubleMatrix<String, String> data = read( "/data/limmatest.data.missing.txt" );
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        try {
+            InfluenceMeasures serial = new InfluenceMeasures( new LeastSquaresFit( designMatrix, data ) );
+            InfluenceMeasures parallel = new InfluenceMeasures( new LeastSquaresFit( designMatrix, data, null, pool ) );
+            for ( int i = 0; i < data.rows(); i++ ) {
+                assertArrayEquals( serial.getHatValues().viewRow( i ).toArray(),
+                        parallel.getHatValues().viewRow( i ).toArray(), 0.0 );
+                assertArrayEquals( serial.getStudentizedResiduals().viewRow( i ).toArray(),
+                        parallel.getStudentizedResiduals().viewRow( i ).toArray(), 0.0 );
+                assertArrayEquals( serial.getCooksDistances().viewRow( i ).toArray(),
+                        parallel.getCooksDistances().viewRow( i ).toArray(), 0.0 );
+                assertArrayEquals( serial.getDffits().viewRow( i ).toArray(),
+                        parallel.getDffits().viewRow( i ).toArray(), 0.0 );
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Check the measures of a row by refitting it without each of its samples.
+     */
+    private static void assertLeaveOneOut( LeastSquaresFit fit, InfluenceMeasures im, int i, DoubleMatrix2D weights ) {
+        DoubleMatrix2D A = fit.getDesign();
+        DoubleMatrix2D b = fit.getData();
+        int[] present = present( b, i, -1 );
+        int p = A.columns();
+        double[] fitted = fitRow( A, b, weights, i, present );
+        double rss = 0.0, sumH = 0.0;
+        for ( int j : present ) {
+            double e = b.get( i, j ) - fitted[j];
+            rss += w( weights, i, j ) * e * e;
+            sumH += im.getHatValues().get( i, j );
+        }
+        double s2 = rss / ( present.length - p );
+        assertEquals( p, sumH, TOLERANCE );
+
+        for ( int j : present ) {
+            int[] without = present( b, i, j );
+            double[] looFitted = fitRow( A, b, weights, i, without );
+            if ( Double.isNaN( looFitted[j] ) ) {
+                // the design has no longer full rank without the sample
+                continue;
+            }
+            double looRss = 0.0, cook = 0.0;
+            for ( int k : without ) {
+                double e = b.get( i, k ) - looFitted[k];
+                looRss += w( weights, i, k ) * e * e;
+            }
+            for ( int k : present ) {
+                double d = fitted[k] - looFitted[k];
+                cook += w( weights, i, k ) * d * d;
+            }
+            cook /= p * s2;
+            double looSigma = Math.sqrt( looRss / ( without.length - p ) );
+            double h = im.getHatValues().get( i, j );
+            double dffits = Math.sqrt( w( weights, i, j ) ) * ( fitted[j] - looFitted[j] ) / ( looSigma * Math.sqrt( h ) );
+            double rstudent = Math.sqrt( w( weights, i, j ) ) * ( b.get( i, j ) - fitted[j] )
+                    / ( looSigma * Math.sqrt( 1.0 - h ) );
+
+            assertEquals( cook, im.getCooksDistances().get( i, j ), TOLERANCE );
+            assertEquals( dffits, im.getDffits().get( i, j ), TOLERANCE );
+            assertEquals( rstudent, im.getStudentizedResiduals().get( i, j ), TOLERANCE );
+        }
+    }
+
+    /**
+     * @return fitted values of row i at all the samples, using the given samples for the fit
+     */
+    private static double[] fitRow( DoubleMatrix2D A, DoubleMatrix2D b, DoubleMatrix2D weights, int i, int[] samples ) {
+        DoubleMatrix2D y = b.viewSelection( new int[] { i }, samples ).copy();
+        LeastSquaresFit f = weights == null ? new LeastSquaresFit( A.viewSelection( samples, null ).copy(), y )
+                : new LeastSquaresFit( A.viewSelection( samples, null ).copy(), y,
+                weights.viewSelection( new int[] { i }, samples ).copy() );
+        double[] fitted = new double[A.rows()];
+        for ( int k = 0; k < A.rows(); k++ ) {
+            for ( int c = 0; c < A.columns(); c++ ) {
+                fitted[k] += A.get( k, c ) * f.getCoefficients().get( c, 0 );
+            }
+        }
+        return fitted;
+    }
+
+    /**
+     * @return samples with a value in row i, except the excluded one
+     */
+    private static int[] present( DoubleMatrix2D b, int i, int excluded ) {
+        int n = 0;
+        for ( int j = 0; j < b.columns(); j++ ) {
+            if ( j != excluded && !Double.isNaN( b.get( i, j ) ) ) n++;
+        }
+        int[] result = new int[n];
+        for ( int j = 0, k = 0; j < b.columns(); j++ ) {
+            if ( j != excluded && !Double.isNaN( b.get( i, j ) ) ) result[k++] = j;
+        }
+        return result;
+    }
+
+    private static double w( DoubleMatrix2D weights, int i, int j ) {
+        return weights == null ? 1.0 : weights.get( i, j );
+    }
+
+    private DoubleMatrix<String, String> read( String resource ) throws Exception {
+        return new DoubleMatrixReader().read( getClass().getResourceAsStream( resource ) );
+    }
+}
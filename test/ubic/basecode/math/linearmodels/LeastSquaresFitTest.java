@@ -30,6 +30,7 @@ import ubic.basecode.math.MatrixStats;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.GZIPInputStream;
 
 import static java.util.Objects.requireNonNull;
@@ -1101,6 +1102,281 @@ public class LeastSquaresFitTest {
 
     }
 
+    /**
+     * Rows sharing a pattern of missing values are solved together; check against fitting each row on its own.
+     */
+    @Test
+    public void testMissingPatternGroupsSameAsSingleRows() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo );
+
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, testMatrix );
+        assertTrue( fit.isHasMissing() );
+        for ( int i = 0; i < testMatrix.rows(); i++ ) {
+            DoubleMatrix2D row = new DenseDoubleMatrix2D( new double[][] { testMatrix.getRow( i ) } );
+            LeastSquaresFit single = new LeastSquaresFit( designMatrix, row, null );
+            assertArrayEquals( single.getCoefficients().viewColumn( 0 ).toArray(),
+                    fit.getCoefficients().viewColumn( i ).toArray(), 1e-10 );
+            if ( single.isHasMissing() ) {
+                assertEquals( single.getResidualDofs().get( 0 ), fit.getResidualDofs().get( i ) );
+            } else {
+                assertEquals( single.getResidualDof(), ( int ) fit.getResidualDofs().get( i ) );
+            }
+        }
+    }
+
+    /**
+     * The ANOVA tables are computed for all the rows sharing a QR at once; check against the ANOVA of each row fitted on
+     * its own, with missing values and weights.
+     */
+    @Test
+    public void testBatchedAnovaSameAsSingleRows() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo );
+        DoubleMatrix2D weights = new DenseDoubleMatrix2D( testMatrix.asArray() );
+        weights.assign( Functions.abs ).assign( Functions.inv );
+
+        for ( DoubleMatrix2D w : new DoubleMatrix2D[] { null, weights } ) {
+            List<GenericAnovaResult> batched = new LeastSquaresFit( designMatrix, testMatrix, w ).anova();
+            assertEquals( testMatrix.rows(), batched.size() );
+            for ( int i = 0; i < testMatrix.rows(); i++ ) {
+                DoubleMatrix2D row = new DenseDoubleMatrix2D( new double[][] { testMatrix.getRow( i ) } );
+                DoubleMatrix2D rowWeights = w == null ? null : w.viewPart( i, 0, 1, w.columns() ).copy();
+                GenericAnovaResult expected = new LeastSquaresFit( designMatrix, row, rowWeights ).anova().get( 0 );
+                GenericAnovaResult actual = batched.get( i );
+                assertEquals( expected.getResidualsDof(), actual.getResidualsDof(), 0.0 );
+                for ( String factor : expected.getMainEffectFactorNames() ) {
+                    assertEquals( expected.getMainEffectDof( factor ), actual.getMainEffectDof( factor ), 0.0 );
+                    assertEquals( expected.getMainEffectFStat( factor ), actual.getMainEffectFStat( factor ), 1e-8 );
+                    assertEquals( expected.getMainEffectPValue( factor ), actual.getMainEffectPValue( factor ), 1e-10 );
+                }
+            }
+        }
+    }
+
+    /**
+     * Fitting chunks of rows in parallel must give exactly the same results as the serial fit, with or without weights.
+     */
+    @Test
+    public void testParallelFitWithMissing() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo );
+        DoubleMatrix2D weights = new DenseDoubleMatrix2D( testMatrix.asArray() );
+        weights.assign( Functions.abs ).assign( Functions.inv );
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            for ( DoubleMatrix2D w : new DoubleMatrix2D[] { null, weights } ) {
+                LeastSquaresFit serial = new LeastSquaresFit( designMatrix, testMatrix, w, null );
+                LeastSquaresFit parallel = new LeastSquaresFit( designMatrix, testMatrix, w, pool );
+                assertTrue( parallel.isHasMissing() );
+                for ( int i = 0; i < serial.getCoefficients().columns(); i++ ) {
+                    assertArrayEquals( serial.getCoefficients().viewColumn( i ).toArray(),
+                            parallel.getCoefficients().viewColumn( i ).toArray(), 0.0 );
+                    assertArrayEquals( serial.getResiduals().viewRow( i ).toArray(),
+                            parallel.getResiduals().viewRow( i ).toArray(), 0.0 );
+                }
+                assertEquals( serial.getResidualDofs(), parallel.getResidualDofs() );
+
+                List<LinearModelSummary> expected = serial.summarize( true );
+                List<LinearModelSummary> actual = parallel.summarize( true );
+                assertEquals( expected.size(), actual.size() );
+                for ( int i = 0; i < expected.size(); i++ ) {
+                    assertEquals( expected.get( i ).toString(), actual.get( i ).toString() );
+                    assertArrayEquals( expected.get( i ).getStdevUnscaled(), actual.get( i ).getStdevUnscaled(), 0.0 );
+                }
+            }
+
+            // no missing values: a single QR, solved in chunks.
+            DoubleMatrix2D complete = new DenseDoubleMatrix2D( testMatrix.asArray() );
+            complete.assign( v -> Double.isNaN( v ) ? 1.0 : v );
+            LeastSquaresFit serial = new LeastSquaresFit( designMatrix, complete, null, null );
+            LeastSquaresFit parallel = new LeastSquaresFit( designMatrix, complete, null, pool );
+            assertFalse( parallel.isHasMissing() );
+            assertEquals( serial.getResidualDof(), parallel.getResidualDof() );
+            for ( int i = 0; i < complete.rows(); i++ ) {
+                assertArrayEquals( serial.getCoefficients().viewColumn( i ).toArray(),
+                        parallel.getCoefficients().viewColumn( i ).toArray(), 0.0 );
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Fitted values and residuals are computed on demand; summaries must not depend on whether they were materialized.
+     */
+    @Test
+    public void testLazyFittedAndResiduals() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo );
+        DoubleMatrix2D weights = new DenseDoubleMatrix2D( testMatrix.asArray() ).assign( Functions.abs )
+                .assign( Functions.inv );
+
+        for ( DoubleMatrix2D w : new DoubleMatrix2D[] { null, weights } ) {
+            LeastSquaresFit lean = new LeastSquaresFit( designMatrix, testMatrix, w );
+            List<LinearModelSummary> leanSummaries = lean.summarize( true );
+
+            LeastSquaresFit eager = new LeastSquaresFit( designMatrix, testMatrix, w );
+            DoubleMatrix2D fitted = eager.getFitted();
+            DoubleMatrix2D residuals = eager.getResiduals();
+            List<LinearModelSummary> eagerSummaries = eager.summarize( true );
+
+            assertEquals( eagerSummaries.size(), leanSummaries.size() );
+            for ( int i = 0; i < eagerSummaries.size(); i++ ) {
+                assertEquals( eagerSummaries.get( i ).toString(), leanSummaries.get( i ).toString() );
+                assertArrayEquals( eagerSummaries.get( i ).getResiduals(), leanSummaries.get( i ).getResiduals(),
+                        0.0 );
+            }
+
+            for ( int i = 0; i < testMatrix.rows(); i++ ) {
+                for ( int j = 0; j < testMatrix.columns(); j++ ) {
+                    double y = testMatrix.get( i, j );
+                    if ( Double.isNaN( y ) ) {
+                        assertTrue( Double.isNaN( fitted.get( i, j ) ) );
+                        assertTrue( Double.isNaN( residuals.get( i, j ) ) );
+                    } else {
+                        assertEquals( y, fitted.get( i, j ) + residuals.get( i, j ), 1e-10 );
+                    }
+                }
+            }
+            assertSame( residuals, eager.getResiduals() );
+        }
+    }
+
+    /**
+     * The columnar summaries must hold the same statistics as the per-row summaries.
+     */
+    @Test
+    public void testSummarizeColumns() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo );
+
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, testMatrix );
+        ModeratedTstat.ebayes( fit );
+        List<LinearModelSummary> expected = fit.summarize( true );
+        LinearModelSummaries columns = fit.summarizeColumns( true );
+
+        assertEquals( expected.size(), columns.size() );
+        assertTrue( columns.isShrunken() );
+        assertEquals( testMatrix.getRowNames(), columns.getKeys() );
+        assertEquals( designMatrix.getMatrix().getColNames(), columns.getCoefficientNames() );
+        List<String> anovaTerms = columns.getAnovaTerms();
+        assertFalse( anovaTerms.isEmpty() );
+
+        int fitted = 0;
+        for ( int i = 0; i < expected.size(); i++ ) {
+            LinearModelSummary lms = expected.get( i );
+            assertEquals( lms.getSigma(), columns.getSigma()[i], 0.0 );
+            assertEquals( lms.getRSquared(), columns.getRSquared()[i], 0.0 );
+            assertEquals( lms.getAdjRSquared(), columns.getAdjRSquared()[i], 0.0 );
+            assertEquals( lms.getFStat(), columns.getFStats()[i], 0.0 );
+            assertEquals( lms.getNumeratorDof(), columns.getNumeratorDof()[i], 0.0 );
+            assertEquals( lms.getResidualsDof(), columns.getResidualsDof()[i], 0.0 );
+            assertEquals( lms.getOverallPValue(), columns.getOverallPValues()[i], 0.0 );
+
+            DoubleMatrix<String, String> table = lms.getContrastCoefficients();
+            if ( table.rows() == 0 ) {
+                // not fitted
+                for ( String c : columns.getCoefficientNames() ) {
+                    assertTrue( Double.isNaN( columns.getEstimates( c )[i] ) );
+                }
+                continue;
+            }
+            fitted++;
+            for ( String c : columns.getCoefficientNames() ) {
+                assertEquals( table.getByKeys( c, "Estimate" ), columns.getEstimates( c )[i], 0.0 );
+                assertEquals( table.getByKeys( c, "Std. Error" ), columns.getStdErrs( c )[i], 0.0 );
+                assertEquals( table.getByKeys( c, "t value" ), columns.getTStats( c )[i], 0.0 );
+                assertEquals( table.getByKeys( c, "Pr(>|t|)" ), columns.getPValues( c )[i], 0.0 );
+            }
+
+            GenericAnovaResult anova = requireNonNull( lms.getAnova() );
+            for ( String term : anova.getMainEffectFactorNames() ) {
+                assertEquals( anova.getMainEffectFStat( term ), columns.getAnovaFStats( term )[i], 0.0 );
+                assertEquals( anova.getMainEffectPValue( term ), columns.getAnovaPValues( term )[i], 0.0 );
+                assertEquals( anova.getMainEffectDof( term ), columns.getAnovaDof( term )[i], 0.0 );
+            }
+            assertEquals( anova.getResidualsDof(), columns.getAnovaResidualsDof()[i], 0.0 );
+            assertEquals( anova.toString(), columns.getAnova( i ).toString() );
+            assertEquals( lms.toString(), columns.getSummary( i ).toString() );
+        }
+        assertTrue( fitted > 0 );
+        assertEquals( expected.get( 3 ).toString(), columns.asList().get( 3 ).toString() );
+    }
+
+    /**
+     * Fitting data stored as floats is the same as fitting the floats widened to doubles.
+     */
+    @Test
+    public void testFloatData() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo );
+
+        DenseFloatMatrix<String, String> floatMatrix = DoubleMatrixFactory.densefloat( testMatrix );
+        DoubleMatrix<String, String> widened = DoubleMatrixFactory.dense( floatMatrix.asArray() );
+        widened.setRowNames( testMatrix.getRowNames() );
+        widened.setColumnNames( testMatrix.getColNames() );
+
+        LeastSquaresFit expected = new LeastSquaresFit( designMatrix, widened );
+        LeastSquaresFit actual = new LeastSquaresFit( designMatrix, floatMatrix );
+        assertArrayEquals( expected.getCoefficients().toArray(), actual.getCoefficients().toArray() );
+
+        // the data is copied, so modifying it does not change the residuals and summaries, which are computed lazily
+        DoubleMatrix<String, String> original = floatMatrix.copy();
+        floatMatrix.set( 0, 0, 1000.0 );
+        floatMatrix.viewRow( 1 ).assign( 0.0 );
+        assertArrayEquals( expected.getResiduals().toArray(), actual.getResiduals().toArray() );
+        List<LinearModelSummary> expectedSummaries = expected.summarize( true );
+        List<LinearModelSummary> actualSummaries = actual.summarize( true );
+        for ( int i = 0; i < expectedSummaries.size(); i++ ) {
+            assertEquals( expectedSummaries.get( i ).toString(), actualSummaries.get( i ).toString() );
+        }
+
+        // rounding to floats barely changes the fit
+        DoubleMatrix2D coefficients = new LeastSquaresFit( designMatrix, testMatrix ).getCoefficients();
+        for ( int i = 0; i < coefficients.rows(); i++ ) {
+            for ( int j = 0; j < coefficients.columns(); j++ ) {
+                assertEquals( coefficients.get( i, j ), actual.getCoefficients().get( i, j ),
+                        1e-5 * Math.max( 1.0, Math.abs( coefficients.get( i, j ) ) ) );
+            }
+        }
+
+        DoubleMatrix<String, String> standardized = MatrixStats.standardize( original );
+        assertTrue( standardized instanceof DenseFloatMatrix );
+        assertEquals( testMatrix.getRowNames(), standardized.getRowNames() );
+    }
+
     /**
      * Tests limma-like functionality
      * <p>
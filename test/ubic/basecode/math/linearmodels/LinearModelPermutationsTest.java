@@ -0,0 +1,188 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrixImpl;
+import ubic.basecode.dataStructure.matrix.StringMatrix;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class LinearModelPermutationsTest {
+
+    private static final int NUM_PERMUTATIONS = 50;
+
+    private PreparedDesign design;
+    private DoubleMatrix2D data;
+
+    @Before
+    public void setUp() throws Exception {
+        DoubleMatrix<String, String> testMatrix = new DoubleMatrixReader().read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        design = new PreparedDesign( new DesignMatrix( sampleInfo ) );
+        data = new DenseDoubleMatrix2D( testMatrix.asArray() );
+    }
+
+    @Test
+    public void testSamplesT() {
+        checkSamplesT( design, data );
+    }
+
+    /**
+     * Rows whose missing values remove a level of a factor drop a column in the middle of the design.
+     */
+    @Test
+    public void testSamplesTWithDroppedColumn() {
+        // a four-level factor, three samples per level
+        ObjectMatrix<String, String, Object> sampleInfo = new ObjectMatrixImpl<>( 12, 1 );
+        for ( int i = 0; i < 12; i++ ) {
+            sampleInfo.set( i, 0, String.valueOf( ( char ) ( 'A' + i / 3 ) ) );
+        }
+        sampleInfo.addColumnName( "Factor" );
+        PreparedDesign factorDesign = new PreparedDesign( new DesignMatrix( sampleInfo, true ) );
+        Random random = new Random( 5 );
+        DoubleMatrix2D y = new DenseDoubleMatrix2D( 4, 12 );
+        for ( int r = 0; r < y.rows(); r++ ) {
+            for ( int i = 0; i < y.columns(); i++ ) {
+                y.setQuick( r, i, random.nextGaussian() + i / 3 );
+            }
+        }
+        // all the B samples are missing in the first row, and all the C samples in the second
+        for ( int i = 3; i < 6; i++ ) {
+            y.setQuick( 0, i, Double.NaN );
+            y.setQuick( 1, i + 3, Double.NaN );
+        }
+        LinearModelPermutations.Result result = checkSamplesT( factorDesign, y );
+        // only the coefficient of the missing level is not estimated
+        for ( int c = 0; c < result.getNames().size(); c++ ) {
+            for ( int i = 0; i < y.rows(); i++ ) {
+                assertEquals( ( c == 1 && i == 0 ) || ( c == 2 && i == 1 ),
+                        Double.isNaN( result.getObserved().get( c, i ) ) );
+            }
+        }
+    }
+
+    /**
+     * The p-values are checked by refitting each permutation of the samples separately.
+     */
+    private static LinearModelPermutations.Result checkSamplesT( PreparedDesign design, DoubleMatrix2D data ) {
+        LinearModelPermutations.Result result = new LinearModelPermutations( design, data,
+                LinearModelPermutations.Statistic.T, LinearModelPermutations.Strategy.SAMPLES )
+                .run( NUM_PERMUTATIONS, 42L, null );
+
+        LinearModelSummaries observed = new LeastSquaresFit( design.getDesignMatrix(), data, null, null )
+                .summarizeColumns( false );
+        assertEquals( observed.getCoefficientNames(), result.getNames() );
+        int[][] reached = new int[result.getNames().size()][data.rows()];
+        int[][] computed = new int[result.getNames().size()][data.rows()];
+        for ( long seed : LinearModelPermutations.seeds( 42L, NUM_PERMUTATIONS ) ) {
+            int[] permutation = LinearModelPermutations.permutation( data.columns(), seed );
+            LinearModelSummaries permuted = new LeastSquaresFit( design.getDesignMatrix(),
+                    data.viewSelection( null, permutation ).copy(), null, null ).summarizeColumns( false );
+            for ( int c = 0; c < result.getNames().size(); c++ ) {
+                String name = result.getNames().get( c );
+                for ( int i = 0; i < data.rows(); i++ ) {
+                    double t = permuted.getTStats( name )[i];
+                    if ( !Double.isNaN( t ) ) {
+                        computed[c][i]++;
+                        if ( Math.abs( t ) >= Math.abs( observed.getTStats( name )[i] ) ) {
+                            reached[c][i]++;
+                        }
+                    }
+                }
+            }
+        }
+        for ( int c = 0; c < result.getNames().size(); c++ ) {
+            String name = result.getNames().get( c );
+            assertArrayEquals( observed.getTStats( name ), result.getObserved().viewRow( c ).toArray(), 1e-6 );
+            for ( int i = 0; i < data.rows(); i++ ) {
+                if ( Double.isNaN( observed.getTStats( name )[i] ) ) {
+                    assertTrue( Double.isNaN( result.getPValues().get( c, i ) ) );
+                } else {
+                    assertEquals( ( reached[c][i] + 1.0 ) / ( computed[c][i] + 1.0 ), result.getPValues().get( c, i ),
+                            1e-12 );
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testParallelIsReproducible() {
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            for ( LinearModelPermutations.Statistic statistic : LinearModelPermutations.Statistic.values() ) {
+                for ( LinearModelPermutations.Strategy strategy : LinearModelPermutations.Strategy.values() ) {
+                    LinearModelPermutations permutations = new LinearModelPermutations( design, data, statistic,
+                            strategy );
+                    LinearModelPermutations.Result serial = permutations.run( NUM_PERMUTATIONS, 7L, null );
+                    LinearModelPermutations.Result parallel = permutations.run( NUM_PERMUTATIONS, 7L, pool );
+                    assertEquals( serial.getNames(), parallel.getNames() );
+                    assertEquals( NUM_PERMUTATIONS, parallel.getNumPermutations() );
+                    for ( int s = 0; s < serial.getNames().size(); s++ ) {
+                        assertArrayEquals( serial.getPValues().viewRow( s ).toArray(),
+                                parallel.getPValues().viewRow( s ).toArray(), 0.0 );
+                        for ( double p : parallel.getPValues().viewRow( s ).toArray() ) {
+                            assertTrue( Double.isNaN( p ) || ( p >= 1.0 / ( NUM_PERMUTATIONS + 1 ) && p <= 1.0 ) );
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testModeratedF() {
+        LinearModelPermutations.Result result = new LinearModelPermutations( design, data,
+                LinearModelPermutations.Statistic.MODERATED_F, LinearModelPermutations.Strategy.SAMPLES )
+                .run( NUM_PERMUTATIONS, 42L, null );
+        LeastSquaresFit fit = new LeastSquaresFit( design.getDesignMatrix(), data, null, null );
+        ModeratedTstat.ebayes( fit );
+        LinearModelSummaries summaries = fit.summarizeColumns( true );
+        assertEquals( summaries.getAnovaTerms(), result.getNames() );
+        for ( int s = 0; s < result.getNames().size(); s++ ) {
+            assertArrayEquals( summaries.getAnovaFStats( result.getNames().get( s ) ),
+                    result.getObserved().viewRow( s ).toArray(), 1e-10 );
+        }
+    }
+
+    @Test
+    public void testPermutation() {
+        int[] permutation = LinearModelPermutations.permutation( 10, 3L );
+        boolean[] seen = new boolean[10];
+        for ( int j : permutation ) {
+            assertFalse( seen[j] );
+            seen[j] = true;
+        }
+        assertArrayEquals( permutation, LinearModelPermutations.permutation( 10, 3L ) );
+    }
+}
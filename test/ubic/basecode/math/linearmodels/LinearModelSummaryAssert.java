@@ -0,0 +1,47 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Assertions on summaries of fits that are expected to be the same, such as fits of the same data done in different
+ * ways.
+ *
+ * @author poirigui
+ */
+final class LinearModelSummaryAssert {
+
+    private LinearModelSummaryAssert() {
+    }
+
+    static void assertSameSummaries( List<LinearModelSummary> expected, List<LinearModelSummary> actual ) {
+        assertEquals( expected.size(), actual.size() );
+        for ( int i = 0; i < expected.size(); i++ ) {
+            LinearModelSummary e = expected.get( i );
+            LinearModelSummary a = actual.get( i );
+            assertEquals( e.getKey(), a.getKey() );
+            assertEquals( e.toString(), a.toString() );
+            assertArrayEquals( e.getCoefficients(), a.getCoefficients(), 0.0 );
+            assertEquals( e.getSigma(), a.getSigma(), 1e-10 );
+            assertEquals( e.getResidualsDof(), a.getResidualsDof(), 0.0 );
+            assertEquals( e.getFStat(), a.getFStat(), 1e-10 );
+            assertEquals( e.getOverallPValue(), a.getOverallPValue(), 1e-10 );
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.StringMatrix;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class MappedLinearModelSummariesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndOpen() throws Exception {
+        LeastSquaresFit fit = fit();
+        ModeratedTstat.ebayes( fit );
+        LinearModelSummaries expected = fit.summarizeColumns( true );
+        Path path = temporaryFolder.newFile().toPath();
+        MappedLinearModelSummaries.write( expected, path );
+        MappedLinearModelSummaries actual = MappedLinearModelSummaries.open( path );
+
+        assertEquals( expected.size(), actual.size() );
+        assertEquals( expected.getKeys(), actual.getKeys() );
+        assertEquals( expected.getTerms(), actual.getTerms() );
+        assertEquals( expected.getCoefficientNames(), actual.getCoefficientNames() );
+        assertTrue( actual.isShrunken() );
+        assertEquals( expected.getPriorDof(), actual.getPriorDof(), 0.0 );
+        assertEquals( expected.getPriorVariance(), actual.getPriorVariance(), 0.0 );
+        for ( String c : expected.getCoefficientNames() ) {
+            assertArrayEquals( expected.getEstimates( c ), actual.getEstimates( c ), 0.0 );
+            assertArrayEquals( expected.getStdErrs( c ), actual.getStdErrs( c ), 0.0 );
+            assertArrayEquals( expected.getTStats( c ), actual.getTStats( c ), 0.0 );
+            assertArrayEquals( expected.getPValues( c ), actual.getPValues( c ), 0.0 );
+            assertEquals( expected.getEstimates( c )[3], actual.getEstimate( c, 3 ), 0.0 );
+        }
+        assertArrayEquals( expected.getSigma(), actual.getSigma(), 0.0 );
+        assertArrayEquals( expected.getRSquared(), actual.getRSquared(), 0.0 );
+        assertArrayEquals( expected.getAdjRSquared(), actual.getAdjRSquared(), 0.0 );
+        assertArrayEquals( expected.getFStats(), actual.getFStats(), 0.0 );
+        assertArrayEquals( expected.getNumeratorDof(), actual.getNumeratorDof(), 0.0 );
+        assertArrayEquals( expected.getResidualsDof(), actual.getResidualsDof(), 0.0 );
+        assertArrayEquals( expected.getOverallPValues(), actual.getOverallPValues(), 0.0 );
+
+        assertTrue( actual.hasAnova() );
+        assertEquals( expected.getAnovaTerms(), actual.getAnovaTerms() );
+        for ( String t : expected.getAnovaTerms() ) {
+            assertArrayEquals( expected.getAnovaFStats( t ), actual.getAnovaFStats( t ), 0.0 );
+            assertArrayEquals( expected.getAnovaPValues( t ), actual.getAnovaPValues( t ), 0.0 );
+            assertArrayEquals( expected.getAnovaDof( t ), actual.getAnovaDof( t ), 0.0 );
+            assertArrayEquals( expected.getAnovaSsq( t ), actual.getAnovaSsq( t ), 0.0 );
+        }
+        assertArrayEquals( expected.getAnovaResidualsDof(), actual.getAnovaResidualsDof(), 0.0 );
+        assertArrayEquals( expected.getAnovaResidualsSsq(), actual.getAnovaResidualsSsq(), 0.0 );
+
+        for ( int i = 0; i < expected.size(); i++ ) {
+            LinearModelSummary e = expected.getSummary( i );
+            LinearModelSummary a = actual.asList().get( i );
+            assertEquals( e.getKey(), a.getKey() );
+            assertArrayEquals( e.getCoefficients(), a.getCoefficients(), 0.0 );
+            assertArrayEquals( e.getStdevUnscaled(), a.getStdevUnscaled(), 0.0 );
+            assertEquals( e.getSigma(), a.getSigma(), 0.0 );
+            assertEquals( e.getFStat(), a.getFStat(), 0.0 );
+            assertEquals( e.getOverallPValue(), a.getOverallPValue(), 0.0 );
+            assertEquals( e.isShrunken(), a.isShrunken() );
+            for ( String factor : e.getFactorNames() ) {
+                assertEquals( e.getContrastPValues( factor ), a.getContrastPValues( factor ) );
+                assertEquals( e.getContrastTStats( factor ), a.getContrastTStats( factor ) );
+            }
+            assertEquals( e.getAnova().toString(), a.getAnova().toString() );
+        }
+    }
+
+    @Test
+    public void testWithoutAnova() throws Exception {
+        LinearModelSummaries expected = fit().summarizeColumns( false );
+        Path path = temporaryFolder.newFile().toPath();
+        MappedLinearModelSummaries.write( expected, path );
+        MappedLinearModelSummaries actual = MappedLinearModelSummaries.open( path );
+        assertFalse( actual.hasAnova() );
+        assertFalse( actual.isShrunken() );
+        assertNull( actual.getSummary( 0 ).getAnova() );
+        for ( String c : expected.getCoefficientNames() ) {
+            assertArrayEquals( expected.getPValues( c ), actual.getPValues( c ), 0.0 );
+        }
+        try {
+            actual.getAnovaTerms();
+            fail( "Expected an IllegalStateException" );
+        } catch ( IllegalStateException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNullKey() throws Exception {
+        LeastSquaresFit fit = fit();
+        LinearModelSummaries columns = fit.summarizeColumns( false );
+        LinearModelSummaries expected = new LinearModelSummaries( fit, Arrays.asList( "a", null, "c" ), 3,
+                columns.getTerms(), columns.getCoefficientNames(), null, false, 0.0, Double.NaN );
+        Path path = temporaryFolder.newFile().toPath();
+        MappedLinearModelSummaries.write( expected, path );
+        MappedLinearModelSummaries actual = MappedLinearModelSummaries.open( path );
+        assertEquals( expected.getKeys(), actual.getKeys() );
+        assertNull( actual.getSummary( 1 ).getKey() );
+        assertEquals( "c", actual.getSummary( 2 ).getKey() );
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        MappedLinearModelSummaries.write( fit().summarizeColumns( true ), path );
+        byte[] bytes = Files.readAllBytes( path );
+        Files.write( path, Arrays.copyOf( bytes, bytes.length - 8 ) );
+        MappedLinearModelSummaries.open( path );
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotSummaries() throws Exception {
+        Path path = temporaryFolder.newFile().toPath();
+        Files.write( path, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 } );
+        MappedLinearModelSummaries.open( path );
+    }
+
+    private LeastSquaresFit fit() throws Exception {
+        DoubleMatrix<String, String> testMatrix = new DoubleMatrixReader().read( this.getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read( this.getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        return new LeastSquaresFit( new DesignMatrix( sampleInfo ), testMatrix );
+    }
+}
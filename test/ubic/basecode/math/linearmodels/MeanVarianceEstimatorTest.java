@@ -32,6 +32,7 @@ import ubic.basecode.util.RegressionTesting;
 import java.io.File;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -146,6 +147,37 @@ public class MeanVarianceEstimatorTest {
 
     }
 
+    /**
+     * The weights do not depend on how the rows are processed, and the library sizes are left as they are.
+     */
+    @Test
+    public void testVoomParallel() throws Exception {
+        DoubleMatrixReader reader = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = reader.read(this.getClass()
+                .getResourceAsStream("/data/lmtest11.dat.txt"));
+        DoubleMatrix1D libSize = MatrixStats.colSums(testMatrix);
+        double[] originalLibSize = libSize.toArray();
+        testMatrix = MatrixStats.convertToLog2Cpm(testMatrix, libSize);
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read(this.getClass().getResourceAsStream(
+                "/data/lmtest11.des.txt"));
+        DesignMatrix d = new DesignMatrix(sampleInfo, true);
+
+        MeanVarianceEstimator expected = new MeanVarianceEstimator(d, testMatrix, libSize);
+        assertArrayEquals(originalLibSize, libSize.toArray(), 0.0);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            MeanVarianceEstimator actual = new MeanVarianceEstimator(d, testMatrix, libSize, pool);
+            for (int i = 0; i < testMatrix.rows(); i++) {
+                assertArrayEquals(expected.getWeights().viewRow(i).toArray(),
+                        actual.getWeights().viewRow(i).toArray(), 0.0);
+            }
+            assertArrayEquals(expected.getLoess().viewColumn(1).toArray(), actual.getLoess().viewColumn(1).toArray(),
+                    0.0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /**
      * Data has missing values, no Design matrix provided so plot a generic mean-variance plot
      *
@@ -21,13 +21,17 @@ package ubic.basecode.math.linearmodels;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.Test;
 
 import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.dataStructure.matrix.StringMatrix;
@@ -143,6 +147,73 @@ public class ModeratedTstatTest {
 
     }
 
+    /**
+     * Moderating blocks of rows together is the same as moderating a fit of all the rows.
+     */
+    @Test
+    public void testEbayesBlocks() throws Exception {
+        DoubleMatrix<String, String> testMatrix = new DoubleMatrixReader().read(this.getClass().getResourceAsStream(
+                "/data/limmatest.data.missing.txt"));
+        DesignMatrix d = new DesignMatrix(new StringMatrixReader().read(this.getClass()
+                .getResourceAsStream("/data/limmatest.design.txt")), true);
+
+        LeastSquaresFit fit = new LeastSquaresFit(d, testMatrix);
+        ModeratedTstat.ebayes(fit);
+
+        LeastSquaresFit fit1 = new LeastSquaresFit(d, testMatrix.getRowRange(0, 39));
+        LeastSquaresFit fit2 = new LeastSquaresFit(d, testMatrix.getRowRange(40, testMatrix.rows() - 1));
+        double[] prior = ModeratedTstat.ebayes(Arrays.asList(fit1, fit2));
+        assertEquals(fit.getVarPrior(), prior[0], 0.0);
+        assertEquals(fit.getDfPrior(), prior[1], 0.0);
+        assertEquals(fit.getDfPrior(), fit2.getDfPrior(), 0.0);
+
+        double[] varPost = fit.getVarPost().toArray();
+        assertArrayEquals(Arrays.copyOfRange(varPost, 0, 40), fit1.getVarPost().toArray(), 0.0);
+        assertArrayEquals(Arrays.copyOfRange(varPost, 40, varPost.length), fit2.getVarPost().toArray(), 0.0);
+    }
+
+    /**
+     * The moderated statistics computed in bulk are those of the summaries.
+     */
+    @Test
+    public void testModeratedTStatistics() throws Exception {
+        DoubleMatrix<String, String> testMatrix = new DoubleMatrixReader().read(this.getClass().getResourceAsStream(
+                "/data/limmatest.data.missing.txt"));
+        DesignMatrix d = new DesignMatrix(new StringMatrixReader().read(this.getClass()
+                .getResourceAsStream("/data/limmatest.design.txt")), true);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            LeastSquaresFit fit = new LeastSquaresFit(d, testMatrix);
+            try {
+                ModeratedTstat.moderatedTStatistics(fit);
+                fail("Expected an IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            ModeratedTstat.ebayes(fit);
+            DoubleMatrix2D[] tp = ModeratedTstat.moderatedTStatistics(fit);
+
+            LinearModelSummaries summaries = fit.summarizeColumns(false);
+            for (int c = 0; c < summaries.getCoefficientNames().size(); c++) {
+                String name = summaries.getCoefficientNames().get(c);
+                assertArrayEquals(summaries.getTStats(name), tp[0].viewRow(c).toArray(), 0.0);
+                assertArrayEquals(summaries.getPValues(name), tp[1].viewRow(c).toArray(), 0.0);
+            }
+
+            LeastSquaresFit parallel = new LeastSquaresFit(d, testMatrix, null, pool);
+            ModeratedTstat.ebayes(parallel);
+            assertArrayEquals(fit.getVarPost().toArray(), parallel.getVarPost().toArray(), 0.0);
+            DoubleMatrix2D[] ptp = ModeratedTstat.moderatedTStatistics(parallel);
+            for (int c = 0; c < tp[0].rows(); c++) {
+                assertArrayEquals(tp[0].viewRow(c).toArray(), ptp[0].viewRow(c).toArray(), 0.0);
+                assertArrayEquals(tp[1].viewRow(c).toArray(), ptp[1].viewRow(c).toArray(), 0.0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     @Test
     public void testFdist() {
         double[] x = new double[]{0.30232520254346584299,
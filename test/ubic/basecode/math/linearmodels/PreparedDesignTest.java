@@ -0,0 +1,102 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.StringMatrix;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import static ubic.basecode.math.linearmodels.LinearModelSummaryAssert.assertSameSummaries;
+
+/**
+ * @author poirigui
+ */
+public class PreparedDesignTest {
+
+    private DoubleMatrix<String, String> testMatrix;
+    private DesignMatrix designMatrix;
+
+    @Before
+    public void setUp() throws Exception {
+        testMatrix = new DoubleMatrixReader().read( getClass().getResourceAsStream(
+                "/data/example.madata.withmissing.small.txt" ) );
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read( getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        designMatrix = new DesignMatrix( sampleInfo );
+    }
+
+    @Test
+    public void testSameAsUnpreparedFit() {
+        List<LinearModelSummary> expected = new LeastSquaresFit( designMatrix, testMatrix ).summarize( true );
+        PreparedDesign design = new PreparedDesign( designMatrix );
+        assertEquals( design.getQR().getRank(), design.getChol2inv().rows() );
+        assertEquals( designMatrix.getDoubleMatrix().columns(), design.getPivotOrder().size() );
+
+        // twice, the second time with all the QRs cached
+        for ( int k = 0; k < 2; k++ ) {
+            LeastSquaresFit fit = new LeastSquaresFit( design, testMatrix );
+            assertTrue( fit.isHasMissing() );
+            assertSameSummaries( expected, fit.summarize( true ) );
+        }
+        assertTrue( design.getNumCachedPatterns() > 0 );
+    }
+
+    @Test
+    public void testBoundedCache() {
+        List<LinearModelSummary> expected = new LeastSquaresFit( designMatrix, testMatrix ).summarize( true );
+        PreparedDesign design = new PreparedDesign( designMatrix, 1 );
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            assertSameSummaries( expected, new LeastSquaresFit( design, testMatrix, pool ).summarize( true ) );
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue( design.getNumCachedPatterns() <= 1 );
+
+        design = new PreparedDesign( designMatrix, 0 );
+        assertSameSummaries( expected, new LeastSquaresFit( design, testMatrix ).summarize( true ) );
+        assertEquals( 0, design.getNumCachedPatterns() );
+    }
+
+    /**
+     * Fitting permutations of the data against the same prepared design.
+     */
+    @Test
+    public void testPermutations() {
+        PreparedDesign design = new PreparedDesign( designMatrix );
+        DoubleMatrix2D b = new DenseDoubleMatrix2D( testMatrix.asArray() );
+        int[] columns = new int[b.columns()];
+        for ( int i = 0; i < columns.length; i++ ) {
+            columns[i] = ( i + 3 ) % columns.length;
+        }
+        DoubleMatrix2D permuted = b.viewSelection( null, columns ).copy();
+        LeastSquaresFit expected = new LeastSquaresFit( designMatrix, permuted, null );
+        LeastSquaresFit actual = new LeastSquaresFit( design, permuted, null );
+        for ( int i = 0; i < b.rows(); i++ ) {
+            assertArrayEquals( expected.getCoefficients().viewColumn( i ).toArray(),
+                    actual.getCoefficients().viewColumn( i ).toArray(), 0.0 );
+        }
+        assertEquals( expected.getResidualDofs(), actual.getResidualDofs() );
+    }
+}
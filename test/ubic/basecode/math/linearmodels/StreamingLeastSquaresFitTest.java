@@ -0,0 +1,112 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.StringMatrix;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import static ubic.basecode.math.linearmodels.LinearModelSummaryAssert.assertSameSummaries;
+
+/**
+ * @author poirigui
+ */
+public class StreamingLeastSquaresFitTest {
+
+    private static final String DATA = "/data/example.madata.withmissing.small.txt";
+
+    @Test
+    public void testReadBlocks() throws Exception {
+        DoubleMatrix<String, String> all = new DoubleMatrixReader().read( getClass().getResourceAsStream( DATA ) );
+        Iterator<DoubleMatrix<String, String>> blocks = readBlocks( 7 );
+        int row = 0;
+        while ( blocks.hasNext() ) {
+            DoubleMatrix<String, String> block = blocks.next();
+            assertTrue( block.rows() <= 7 );
+            assertEquals( all.getColNames(), block.getColNames() );
+            for ( int i = 0; i < block.rows(); i++ ) {
+                assertEquals( all.getRowName( row ), block.getRowName( i ) );
+                assertArrayEquals( all.getRow( row ), block.getRow( i ), 0.0 );
+                row++;
+            }
+        }
+        assertEquals( all.rows(), row );
+    }
+
+    @Test
+    public void testStreamingFitSameAsFullFit() throws Exception {
+        DesignMatrix designMatrix = readDesign();
+        DoubleMatrix<String, String> all = new DoubleMatrixReader().read( getClass().getResourceAsStream( DATA ) );
+        List<LinearModelSummary> expected = new LeastSquaresFit( designMatrix, all ).summarize( true );
+
+        final List<LinearModelSummary> actual = new ArrayList<>();
+        new StreamingLeastSquaresFit( designMatrix ).fit( readBlocks( 7 ), true, actual::addAll );
+        assertSameSummaries( expected, actual );
+
+        // lazily and in parallel
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            List<LinearModelSummary> lazy = new ArrayList<>();
+            Iterator<List<LinearModelSummary>> it = new StreamingLeastSquaresFit( designMatrix, pool )
+                    .summarize( readBlocks( 11 ), true );
+            while ( it.hasNext() ) {
+                lazy.addAll( it.next() );
+            }
+            assertSameSummaries( expected, lazy );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamingFitWithEstimatedPrior() throws Exception {
+        DesignMatrix designMatrix = readDesign();
+        DoubleMatrix<String, String> all = new DoubleMatrixReader().read( getClass().getResourceAsStream( DATA ) );
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, all );
+        ModeratedTstat.ebayes( fit );
+        List<LinearModelSummary> expected = fit.summarize( true );
+
+        StreamingLeastSquaresFit sfit = new StreamingLeastSquaresFit( designMatrix );
+        double[] prior = sfit.estimatePrior( readBlocks( 7 ) );
+        assertEquals( fit.getVarPrior(), prior[0], 1e-10 );
+        assertEquals( fit.getDfPrior(), prior[1], 1e-10 );
+
+        final List<LinearModelSummary> actual = new ArrayList<>();
+        sfit.fit( readBlocks( 7 ), true, actual::addAll );
+        assertSameSummaries( expected, actual );
+        for ( LinearModelSummary lms : actual ) {
+            assertTrue( lms.isShrunken() );
+        }
+    }
+
+    private Iterator<DoubleMatrix<String, String>> readBlocks( int blockSize ) throws IOException {
+        return new DoubleMatrixReader().readBlocks( getClass().getResourceAsStream( DATA ), blockSize );
+    }
+
+    private DesignMatrix readDesign() throws IOException {
+        StringMatrix<String, String> sampleInfo = new StringMatrixReader().read( getClass().getResourceAsStream(
+                "/data/example.metadata.small.txt" ) );
+        return new DesignMatrix( sampleInfo );
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The baseCode project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.basecode.math.linearmodels;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.StringMatrix;
+import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.io.reader.StringMatrixReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author poirigui
+ */
+public class UpdatableLeastSquaresFitTest {
+
+    private static final double TOLERANCE = 1e-8;
+
+    private StringMatrix<String, String> sampleInfo;
+    private DesignMatrix designMatrix;
+    private DoubleMatrix<String, String> data;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new DoubleMatrixReader().read( getClass().getResourceAsStream( "/data/limmatest.data.txt" ) );
+        sampleInfo = new StringMatrixReader().read( getClass().getResourceAsStream( "/data/limmatest.design.txt" ) );
+        designMatrix = new DesignMatrix( sampleInfo, true );
+    }
+
+    @Test
+    public void testRemoveSample() {
+        LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data );
+        UpdatableLeastSquaresFit updatable = new UpdatableLeastSquaresFit( fit );
+        assertEquals( fit.getResidualDof(), updatable.getResidualDof() );
+        assertFitEquals( fit, updatable );
+
+        updatable.removeSample( 2 );
+        assertEquals( data.columns() - 1, updatable.getNumSamples() );
+        assertFitEquals( fitWithout( 2 ), updatable );
+
+        try {
+            updatable.removeSample( 2 );
+            fail( "Expected an IllegalArgumentException" );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+
+        updatable.restoreSample( 2 );
+        assertFitEquals( fit, updatable );
+    }
+
+    @Test
+    public void testAddSample() {
+        int last = data.columns() - 1;
+        LeastSquaresFit full = new LeastSquaresFit( designMatrix, data );
+        UpdatableLeastSquaresFit updatable = new UpdatableLeastSquaresFit( fitWithout( last ) );
+        updatable.addSample( full.getDesign().viewRow( last ).toArray(), data.getColumn( last ) );
+        assertEquals( data.columns(), updatable.getNumSamples() );
+        assertFitEquals( full, updatable );
+    }
+
+    @Test
+    public void testLeaveOneOutParallel() {
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        try {
+            LeastSquaresFit fit = new LeastSquaresFit( designMatrix, data, null, pool );
+            UpdatableLeastSquaresFit updatable = new UpdatableLeastSquaresFit( fit );
+            for ( int j = 0; j < data.columns(); j++ ) {
+                updatable.removeSample( j );
+                assertFitEquals( fitWithout( j ), updatable );
+                updatable.restoreSample( j );
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoResidualDof() {
+        DoubleMatrix2D design = new DenseDoubleMatrix2D( new double[][] { { 1, 0 }, { 1, 1 }, { 1, 2 }, { 1, 3 } } );
+        DoubleMatrix2D y = new DenseDoubleMatrix2D( new double[][] { { 0.5, 1.2, 1.9, 3.4 } } );
+        UpdatableLeastSquaresFit updatable = new UpdatableLeastSquaresFit( new LeastSquaresFit( design, y ) );
+        updatable.removeSample( 0 );
+        updatable.removeSample( 1 );
+        assertEquals( 0, updatable.getResidualDof() );
+        DoubleMatrix2D[] tstats = updatable.tStatistics();
+        for ( DoubleMatrix2D m : tstats ) {
+            for ( int k = 0; k < 2; k++ ) {
+                assertTrue( Double.isNaN( m.get( k, 0 ) ) );
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValues() throws Exception {
+        DoubleMatrix<String, String> missing = new DoubleMatrixReader()
+                .read( getClass().getResourceAsStream( "/data/limmatest.data.missing.txt" ) );
+        new UpdatableLeastSquaresFit( new LeastSquaresFit( designMatrix, missing ) );
+    }
+
+    /**
+     * Fit the design to the data without one of the samples.
+     */
+    private LeastSquaresFit fitWithout( int sample ) {
+        List<String> samples = new ArrayList<>( data.getColNames() );
+        samples.remove( sample );
+        StringMatrix<String, String> design = new StringMatrix<>( sampleInfo.rows() - 1, sampleInfo.columns() );
+        design.setColumnNames( sampleInfo.getColNames() );
+        for ( int i = 0, k = 0; i < sampleInfo.rows(); i++ ) {
+            if ( i == sample ) {
+                continue;
+            }
+            for ( int j = 0; j < sampleInfo.columns(); j++ ) {
+                design.set( k, j, sampleInfo.get( i, j ) );
+            }
+            design.setRowName( sampleInfo.getRowName( i ), k++ );
+        }
+        return new LeastSquaresFit( new DesignMatrix( design, true ),
+                data.subsetColumns( samples ) );
+    }
+
+    private static void assertFitEquals( LeastSquaresFit expected, UpdatableLeastSquaresFit actual ) {
+        assertEquals( expected.getResidualDof(), actual.getResidualDof() );
+        DoubleMatrix2D coefficients = actual.getCoefficients();
+        double[] vars = actual.getResidualVariances();
+        DoubleMatrix2D[] tp = actual.tStatistics();
+        LinearModelSummaries summaries = expected.summarizeColumns( false );
+        for ( int c = 0; c < coefficients.rows(); c++ ) {
+            String name = summaries.getCoefficientNames().get( c );
+            assertArrayEquals( summaries.getEstimates( name ), coefficients.viewRow( c ).toArray(), TOLERANCE );
+            assertArrayEquals( summaries.getTStats( name ), tp[0].viewRow( c ).toArray(), 1e-6 );
+            assertArrayEquals( summaries.getPValues( name ), tp[1].viewRow( c ).toArray(), TOLERANCE );
+        }
+        double[] sigma = summaries.getSigma();
+        for ( int i = 0; i < vars.length; i++ ) {
+            assertEquals( sigma[i] * sigma[i], vars[i], TOLERANCE );
+        }
+    }
+}